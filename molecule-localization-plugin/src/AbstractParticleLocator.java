@@ -21,8 +21,10 @@
  */
 
 import java.awt.Font;
-import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -50,6 +52,8 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
     private static final int SOME_PRIME = 101;          // any prime number
     private static final int DEFAULT_SNR = 4;           // signal-to-noise ratio
     private static final int DEFAULT_SCALE = 300;       // intensity scale
+    private static final int MAGNIFICATION = 32;        // of reconstruction
+    private static final int OVERVIEW_SIZE = 4096;      // largest shown
     
     private static final String SNR = 
             "Localize_Particles.ParticleLocatorContext.snr";
@@ -57,25 +61,47 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
             "Localize_Particles.ParticleLocatorContext.pixel_size";
     private static final String PHOTON_SCALE = 
             "Localize_Particles.ParticleLocatorContext.photon_scale";
+    private static final String PYRAMID_FILE = 
+            "Localize_Particles.ParticleLocatorContext.pyramid_file";
     
     private final ImageStack stack;                 // stack of images
     private int localizations;                      // number of particles
-    private final Reconstruction reconstruct;       // reconstruction instance
+    private LocalizationStore store;                // every localization
     private final BackgroundNoise noiseEstimator;
+    private final PhotonCalibration calibration;
+    private final HotPixelMap hotPixels;
+    private final LivePreview preview;
+    private final GaussianRendering gaussians;
+    private final ReconstructionMovie movie;
+    private final DriftCorrection drift;
+    private final BlinkMerger blinks;
+    private final ParticleTracker tracker;
+    private final ClusterAnalysis clusters;
     private final ImageStack debugStack;            // stack of debugging images
     private final ResultsTable results;             // ImageJ results table
     private double signalNoiseRatio;
     private double photonScale;                     // photons per max. value
     private double pixelSize;
+    private String pyramidPath;                     // empty for a temp file
     private boolean debugMode = false;
     private boolean foundSomething;
     
+    // the processes as run on rounds of candidates, and their largest reach
+    private List<FrameProcess> stages;
+    private int reach;
+    
     /** 
      * An array of instances of process objects.  This array holds the 
      * processes to be performed on potential particle.  Order is important.
      */
     protected List<ImageProcess> processes;
     
+    /** 
+     * An array of the processes run on all of the localizations once the 
+     * stack has been searched.  Order is important.
+     */
+    protected List<PostProcess> postProcesses;
+    
     /**
      * An array of instances of setting objects.  These are objects that give
      * the user a set of options to change at the beginning of the plug-in.
@@ -98,6 +124,16 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
         return signalNoiseRatio;
     }
 
+    /**
+     * Retrieves the localizations found so far.  The store should only be
+     * read once the search has finished, and is replaced by the ones that
+     * post-processes return.
+     * @return the store of localizations
+     */
+    public final LocalizationStore getLocalizations() {
+        return store;
+    }
+
     /**
      * Retrieves the scale used to convert the image intensity to photon count.
      * @return the photon scale
@@ -118,17 +154,40 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
         localizations = 0;
         debugStack = new ImageStack(stack.getWidth(), stack.getHeight());
         noiseEstimator = new BackgroundNoise();
+        calibration = new PhotonCalibration();
+        hotPixels = new HotPixelMap();
+        preview = new LivePreview();
+        gaussians = new GaussianRendering();
+        movie = new ReconstructionMovie();
+        drift = new DriftCorrection();
+        blinks = new BlinkMerger();
+        tracker = new ParticleTracker();
+        clusters = new ClusterAnalysis();
 
-        // new reconstruction instance
-        reconstruct = new Reconstruction();
+        // new store of localizations to reconstruct
+        store = new LocalizationStore();
         
         // create list of processes
         processes = new ArrayList<ImageProcess>(0);
+        postProcesses = new ArrayList<PostProcess>(0);
+        postProcesses.add(drift);
+        postProcesses.add(blinks);
+        postProcesses.add(tracker);
+        postProcesses.add(clusters);
         
         // create list of settings
         settings = new ArrayList<SettingsDialog>(0);
         settings.add(this);
+        settings.add(getCalibration());
+        settings.add(hotPixels);
         settings.add(getNoiseEstimator());
+        settings.add(drift);
+        settings.add(blinks);
+        settings.add(tracker);
+        settings.add(clusters);
+        settings.add(preview);
+        settings.add(gaussians);
+        settings.add(movie);
 
         debugging = new ArrayList<DebugStats>(0);
         debugging.add(getNoiseEstimator());
@@ -155,6 +214,8 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
                 Prefs.get(PIXEL_SIZE, DEFAULT_SIZE), 2, 6, "nm");
         dialog.addNumericField("Full Photon Scale", 
                 Prefs.get(PHOTON_SCALE, DEFAULT_SCALE), 2, 6, "photons");
+        dialog.addStringField("Reconstruction File", 
+                Prefs.get(PYRAMID_FILE, ""), 20);
         dialog.addCheckbox("Debug Mode", false);
     }
 
@@ -165,18 +226,22 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
         signalNoiseRatio = dialog.getNextNumber();
         pixelSize = dialog.getNextNumber();
         photonScale = dialog.getNextNumber();
+        pyramidPath = dialog.getNextString().trim();
         debugMode = dialog.getNextBoolean();
         
         // log the values retrieved values
         IJ.log("Signal-to-Noise Ratio: " + signalNoiseRatio);
         IJ.log("Pixel Size: " + getPixelSize());
         IJ.log("Photons per Full Intensity Scale: " + photonScale);
+        IJ.log("Reconstruction File: " 
+                + (pyramidPath.isEmpty() ? "Temporary" : pyramidPath));
         IJ.log("Debug Mode: " + (debugMode ? "Enabled" : "Disabled"));
         
         // save to ImageJ for use during the next use of the plug-in
         Prefs.set(SNR, signalNoiseRatio);
         Prefs.set(PIXEL_SIZE, getPixelSize());
         Prefs.set(PHOTON_SCALE, photonScale);
+        Prefs.set(PYRAMID_FILE, pyramidPath);
     }
     
     /**
@@ -190,6 +255,14 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
             return 0;
         }
         
+        // load the camera calibration; exit if it does not fit the stack
+        if (!calibration.loadMaps(stack.getWidth(), stack.getHeight())) {
+            return 0;
+        }
+        
+        // find the hot pixels of the camera before they turn up as particles
+        hotPixels.prepare(stack, calibration, photonScale, signalNoiseRatio);
+        
         // reset all debug counters
         for (DebugStats tracker : debugging) {
             tracker.resetCounters();
@@ -213,6 +286,20 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
     // search each slice of the image stack
     private void searchStack() {
         
+        // run every process on rounds of candidates, adapting the ones that
+        // test a single candidate
+        stages = new ArrayList<FrameProcess>(processes.size());
+        reach = 0;
+        
+        for (ImageProcess process : processes) {
+            final FrameProcess stage = process instanceof FrameProcess
+                    ? (FrameProcess) process 
+                    : new FrameProcessAdapter(process);
+            
+            stages.add(stage);
+            reach = Math.max(reach, stage.getReach());
+        }
+        
         // initialize threads
         final int numCPU = Runtime.getRuntime().availableProcessors();
         Thread[] thread = new Thread[numCPU];
@@ -233,6 +320,9 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
         // assume nothing will be found
         foundSomething = false;
         
+        // show the localizations as they are found
+        preview.start(stack.getWidth(), stack.getHeight());
+        
         for (int i = 0; i < thread.length; i++) {
             thread[i].start();
         }
@@ -246,26 +336,19 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
             IJ.handleException(e);
         }
         
+        preview.stop();
+        
         if (foundSomething) {
             
-            // display reconstruction
-            final int[][] image =
-                    reconstruct.reconstruct(0, 0, 
-                            stack.getWidth(), 
-                            stack.getHeight(), 
-                            stack.getWidth() * 32, 
-                            stack.getHeight() * 32, 
-                            65535,
-                            1000.0 / pixelSize
-                            );
+            // correct and analyze the localizations
+            for (PostProcess process : postProcesses) {
+                store = process.runPostProcess(this, store);
+            }
             
-            final ImagePlus impRecon = 
-                    IJ.createImage("Reconstruction", "16-bit black", 
-                            stack.getWidth() * 32, 
-                            stack.getHeight() * 32, 1);
+            writeResults();
             
-            impRecon.getProcessor().setIntArray(image);
-            impRecon.show();
+            // display reconstruction
+            showReconstruction();
             
             // display debug stack
             if (debugMode) {
@@ -280,18 +363,107 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
         }
     }
     
+    // renders the reconstruction into a pyramid file and shows an overview;
+    // any region of the pyramid can be viewed with View_Reconstruction
+    private void showReconstruction() {
+        try {
+            final File file = findPyramidFile("reconstruction");
+            final ReconstructionPyramid pyramid = 
+                    ReconstructionPyramid.create(file, 
+                            stack.getWidth() * MAGNIFICATION, 
+                            stack.getHeight() * MAGNIFICATION);
+            
+            try {
+                new Reconstruction(store).render(pyramid, MAGNIFICATION);
+                
+                new ImagePlus("Reconstruction", 
+                        Reconstruction.overview(pyramid, OVERVIEW_SIZE, 
+                                65535, 1000.0 / pixelSize * MAGNIFICATION))
+                        .show();
+            } finally {
+                pyramid.close();
+            }
+            
+            IJ.log("Reconstruction: " + file.getPath());
+        } catch (IOException e) {
+            IJ.handleException(e);
+        }
+        
+        // draw every localization as a Gaussian as wide as its precision
+        if (gaussians.isEnabled()) {
+            final double scale = gaussians.getMagnification();
+            
+            try {
+                final File file = findPyramidFile("gaussian");
+                final ReconstructionPyramid pyramid = 
+                        ReconstructionPyramid.create(file, 
+                                (int) Math.ceil(stack.getWidth() * scale), 
+                                (int) Math.ceil(stack.getHeight() * scale));
+                
+                try {
+                    gaussians.render(store, pixelSize, pyramid);
+                    
+                    new ImagePlus("Gaussian Reconstruction", 
+                            Reconstruction.overview(pyramid, OVERVIEW_SIZE, 
+                                    65535, 1000.0 / pixelSize * scale))
+                            .show();
+                } finally {
+                    pyramid.close();
+                }
+                
+                IJ.log("Gaussian Reconstruction: " + file.getPath());
+            } catch (IOException e) {
+                IJ.handleException(e);
+            }
+        }
+        
+        // show how the reconstruction builds up over time
+        if (movie.isEnabled()) {
+            new ImagePlus("Reconstruction Movie", movie.render(store, 
+                    stack.getSize(), stack.getWidth(), stack.getHeight()))
+                    .show();
+        }
+    }
+    
+    // The file of a pyramid.  The reconstruction is written to the file 
+    // chosen, and other pyramids next to it with their name added; all are
+    // overwritten on every run.  Without a file chosen, temporary files are
+    // used that are deleted when ImageJ exits.
+    private File findPyramidFile(final String name) throws IOException {
+        if (pyramidPath == null || pyramidPath.isEmpty()) {
+            final File file = File.createTempFile(name, ".pyramid", 
+                    new File(IJ.getDirectory("temp")));
+            file.deleteOnExit();
+            return file;
+        }
+        
+        if (name.equals("reconstruction")) {
+            return new File(pyramidPath);
+        }
+        
+        return new File(pyramidPath.replaceFirst("(\\.pyramid)?$", 
+                "-" + name + ".pyramid"));
+    }
+    
     // search stack worker (per thread)
     private void searchStackWorker(final AtomicInteger iter) {
         
         final int stackSize = stack.getSize();
         final int indicator = stackSize / SOME_PRIME;
         
+        // reused for every slice and round of this thread
+        final FindParticles findParticles = new FindParticles();
+        final FrameCandidates candidates = new FrameCandidates();
+        final BitSet passed = new BitSet();
+        final float[] photons = new float[stack.getWidth() * stack.getHeight()];
+        
         // search every image slice
         try {
             for (int n = iter.getAndIncrement(); n < stackSize; 
                      n = iter.getAndIncrement()) {
 
-                searchImage(stack.getProcessor(n + 1), n + 1);
+                searchImage(stack.getProcessor(n + 1), n + 1, 
+                        findParticles, candidates, passed, photons);
                 
                 // space out progress indications to prevent slow down
                 if (indicator != 0 && n % indicator == 0) {
@@ -302,17 +474,20 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
                         break;
                     }
                 }
-            
             }
         } catch (Exception e) {
             IJ.handleException(e);
         }
         
     }
-
-    // search within the image
+    
+    // search within the image, one round of candidates at a time
     private void searchImage(final ImageProcessor image,
-                             final int slice) {
+                             final int slice,
+                             final FindParticles findParticles,
+                             final FrameCandidates candidates,
+                             final BitSet passed,
+                             final float[] photons) {
         
         // setup debug highlighter
         DebugImage debugImage = new DebugImage(null);
@@ -321,12 +496,15 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
         }
         
         // create new image context
-        final ImageContext context = new ImageContext(image, this);
-        
-        // locate all potential particles and clear "processed"-mask
-        final FindParticles findParticles = new FindParticles(context);
-        
+        final ImageContext context = 
+                new ImageContext(image, this, photons);
+
+        // clear "processed"-mask, leaving out the hot pixels, and locate all
+        // potential particles
         context.resetProcessed();
+        hotPixels.mark(context);
+        
+        findParticles.search(context);
         
         // update background noise highlights
         final Window bgWindow = noiseEstimator.getWindow();
@@ -337,27 +515,37 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
            }
         }
         
-        while (findParticles.hasNext()) {
-            final Point location = findParticles.getNext();
+        candidates.start(findParticles, image.getWidth(), image.getHeight());
+        
+        while (candidates.nextRound(context, reach)) {
+            final int count = candidates.getCount();
             
-            // have the locator skip this pixel in the future
-            context.setProcessed(location.x, location.y);
-            debugImage.blueHighlight(location.x, location.y);
+            for (int i = 0; i < count; i++) {
+                final FitRecord record = candidates.getRecord(i);
+                final int locationX = record.getCandidateX();
+                final int locationY = record.getCandidateY();
+                
+                // have the locator skip this pixel in the future
+                context.setProcessed(locationX, locationY);
+                debugImage.blueHighlight(locationX, locationY);
+            }
             
-            // run all image processes
-            boolean passed = true;
-            for (int i = 0; i < processes.size() && passed; i++) {
-                passed = processes.get(i).runProcess(context, location);
+            // run all image processes on the round
+            passed.clear();
+            passed.set(0, count);
+            
+            for (int s = 0; s < stages.size() && !passed.isEmpty(); s++) {
+                stages.get(s).runFrame(context, candidates, passed);
             }
             
-            // check if passed
-            if (passed) {
+            // save the candidates that passed in the order they were found
+            for (int i = passed.nextSetBit(0); i >= 0; 
+                    i = passed.nextSetBit(i + 1)) {
                 
-                // We found something!
-                foundSomething = true;
+                final FitRecord record = candidates.getRecord(i);
                 
                 // set the processed region as processed
-                final Window window = context.getWindow();
+                final Window window = record.getWindow();
                 
                 for (int x = window.left; x <= window.right; x++) {
                     for (int y = window.top; y <= window.bottom; y++) {
@@ -365,32 +553,46 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
                         debugImage.redHighlight(x, y);
                     }
                 }
+                
+                // We found something!
+                foundSomething = true;
 
-                // debugging info
-                synchronized (this) {
-                    localizations++;
-                }
+                // save the position in the results table
+                addLocalization(slice, 
+                        record.getX(), 
+                        record.getY(), 
+                        record.getPhotonCount(), 
+                        record.getBackgroundLevel(), 
+                        record.getPrecision());
                 
-                // get centroid and save in the results table
-                final Coordinates centroid = context.getCentroid();
+                // save any neighbors that were fitted along with it, marking
+                // a window as wide as the primary one around each so that 
+                // they are not found again as later candidates
+                final int radiusX = (window.right - window.left) / 2;
+                final int radiusY = (window.bottom - window.top) / 2;
                 
-                synchronized (results) {
-                    results.incrementCounter();
-                    results.addValue("Frame Number", slice);
-                    results.addValue("X (px)", centroid.getLastX());
-                    results.addValue("Y (px)", centroid.getLastY());
-                    results.addValue("X (nm)", 
-                            centroid.getLastX() * getPixelSize());
-                    results.addValue("Y (nm)", 
-                            centroid.getLastY() * getPixelSize());
-                    results.addValue("Intensity",
-                            context.getLastPhotonCount());
-                    results.addValue("Background (per pixel)", 
-                            context.getLastBackgroundLevel());
+                for (int k = 0; k < record.getEmitterCount(); k++) {
+                    final int emitterX = (int) record.getEmitterX(k);
+                    final int emitterY = (int) record.getEmitterY(k);
+                    
+                    for (int x = Math.max(emitterX - radiusX, 0); 
+                            x <= Math.min(emitterX + radiusX, 
+                                    image.getWidth() - 1); x++) {
+                        for (int y = Math.max(emitterY - radiusY, 0); 
+                                y <= Math.min(emitterY + radiusY, 
+                                        image.getHeight() - 1); y++) {
+                            context.setProcessed(x, y);
+                            debugImage.redHighlight(x, y);
+                        }
+                    }
+                    
+                    addLocalization(slice, 
+                            record.getEmitterX(k), 
+                            record.getEmitterY(k), 
+                            record.getEmitterPhotonCount(k), 
+                            record.getBackgroundLevel(), 
+                            record.getEmitterPrecision(k));
                 }
-                
-                // add to reconstructed image
-                reconstruct.add(centroid.getLastX(), centroid.getLastY());
             }
         }
         
@@ -402,6 +604,70 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
         }
     }
     
+    // saves a localization in the store
+    private void addLocalization(final int slice,
+                                 final double x,
+                                 final double y,
+                                 final double photons,
+                                 final double background,
+                                 final double precision) {
+        
+        // debugging info
+        synchronized (this) {
+            localizations++;
+        }
+        
+        // add to the store of localizations that is reconstructed
+        store.add(slice, x, y, photons, background, precision);
+        preview.add(x, y);
+    }
+    
+    // fills the results table from the store, frame by frame
+    private void writeResults() {
+        final List<LocalizationStore.Chunk> chunks = store.getChunks();
+        final int frames = stack.getSize();
+        
+        // sort references to the localizations by frame
+        final int[] sorted = LocalizationStore.sortByKey(chunks, frames + 1,
+                new LocalizationStore.Key() {
+                    @Override
+                    public int getKey(final LocalizationStore.Chunk chunk, 
+                                      final int index) {
+                        return Math.max(0, 
+                                Math.min(chunk.getFrames()[index], frames));
+                    }
+                }, new int[frames + 2]);
+        
+        for (int i = 0; i < sorted.length; i++) {
+            final LocalizationStore.Chunk chunk = 
+                    chunks.get(LocalizationStore.getChunkNumber(sorted[i]));
+            final int k = LocalizationStore.getIndex(sorted[i]);
+            
+            final double x = chunk.getX()[k];
+            final double y = chunk.getY()[k];
+            final double precision = chunk.getPrecisions()[k];
+            
+            results.incrementCounter();
+            results.addValue("Frame Number", chunk.getFrames()[k]);
+            results.addValue("X (px)", x);
+            results.addValue("Y (px)", y);
+            results.addValue("X (nm)", x * getPixelSize());
+            results.addValue("Y (nm)", y * getPixelSize());
+            results.addValue("Intensity", chunk.getPhotonCounts()[k]);
+            results.addValue("Background (per pixel)", 
+                    chunk.getBackgroundLevels()[k]);
+            if (!Double.isNaN(precision)) {
+                results.addValue("Precision (nm)", precision);
+            }
+            if (chunk.getTracks() != null) {
+                results.addValue("Track", chunk.getTracks()[k]);
+            }
+            if (chunk.getClusters() != null) {
+                results.addValue("Cluster", chunk.getClusters()[k]);
+            }
+        }
+    }
+    
     // display a dialog to the user requesting options
     private boolean retrieveOptions() {
         final Font header = new Font(Font.SANS_SERIF, Font.BOLD, 14);
@@ -435,6 +701,14 @@ public abstract class AbstractParticleLocator implements SettingsDialog {
         return noiseEstimator;
     }
 
+    /**
+     * Retrieves the calibration that converts images to photon counts.
+     * @return the photon calibration
+     */
+    protected final PhotonCalibration getCalibration() {
+        return calibration;
+    }
+
     /**
      * Retrieves the size (width or height) of a pixel in nanometers.
      * @return the pixel size
@@ -26,7 +26,6 @@ import java.awt.Point;
 import ij.IJ;
 import ij.Prefs;
 import ij.gui.GenericDialog;
-import ij.process.ImageProcessor;
 import static java.lang.Math.sqrt;
 import static java.lang.Math.abs;
 
@@ -96,19 +95,19 @@ public class BackgroundNoise implements SettingsDialog, DebugStats {
     /**
      * Attempts to make an estimate of the background noise by using the pixel
      * with the least intensity as a point of focus. The algorithm searches for
-     * a patch that fits the expected distribution of Poisson noise.
+     * a patch that fits the expected distribution of Poisson noise.  The read
+     * noise of the camera is removed from the variance if it is known.
      * @param context the current image context
-     * @return the average noise
+     * @return the average noise in photons
      */
     public final double calculateBackground(final ImageContext context) {
         synchronized (this) {
             totalAttempts++;
         }
         
-        final double photonScale = context.getImage().getMax() / 
-                context.getLocatorContext().getPhotonScale();
-        
-        final ImageProcessor image = context.getImage();
+        final float[] photons = context.getPhotons();
+        final float[] variance = context.getVariance();
+        final int width = context.getWidth();
         
         double bestDifference = Double.MAX_VALUE;
         int bestTop = 0;
@@ -128,24 +127,17 @@ public class BackgroundNoise implements SettingsDialog, DebugStats {
             final Point center = findMinimum(context);
             
             // get the window to calculate from
-            final Window window = getWindow(image, center, radius);
+            final Window window = getWindow(context, center, radius);
                                     
             // find the average and standard deviation squared
-            final double average = findAverage(window.top, 
-                                               window.bottom, 
-                                               window.left, 
-                                               window.right, 
-                                               image, 
-                                               photonScale);
+            final double average = findAverage(window, photons, width);
+            
+            double stddevsqr = findStdDevSquared(average, window, photons, 
+                    width);
             
-            final double stddevsqr = findStdDevSquared(
-                                        average,
-                                        window.top, 
-                                        window.bottom, 
-                                        window.left, 
-                                        window.right, 
-                                        image,
-                                        photonScale);
+            if (variance != null) {
+                stddevsqr -= findAverage(window, variance, width);
+            }
             
             // find the percent difference and repeat as necessary
             final double sqrtAverage = sqrt(average);
@@ -184,11 +176,11 @@ public class BackgroundNoise implements SettingsDialog, DebugStats {
         // save the boundary for debugging purposes
         bestWindow = new Window(bestTop, bestBottom, bestLeft, bestRight);
         
-        return bestAverage * photonScale;
+        return bestAverage;
     }
     
     // get a new window
-    private static Window getWindow(final ImageProcessor image,
+    private static Window getWindow(final ImageContext context,
                                              final Point center, 
                                              final int radius) {
         int top = center.y - radius;
@@ -199,29 +191,28 @@ public class BackgroundNoise implements SettingsDialog, DebugStats {
         if (top < 0) {
             top = 0;
         }
-        if (bottom >= image.getHeight()) {
-            bottom = image.getHeight() - 1;
+        if (bottom >= context.getHeight()) {
+            bottom = context.getHeight() - 1;
         }
         if (left < 0) {
             left = 0;
         }
-        if (right >= image.getWidth()) {
-            right = image.getWidth() - 1;
+        if (right >= context.getWidth()) {
+            right = context.getWidth() - 1;
         }
         
         return new Window(top, bottom, left, right);
     }
     
-    // gets the average intensity of the specified region
-    private static double findAverage(final int top, final int bottom, 
-                                      final int left, final int right, 
-                                      final ImageProcessor image,
-                                      final double scale) {
+    // gets the average value of the specified region
+    private static double findAverage(final Window window, 
+                                      final float[] values,
+                                      final int width) {
         double sum = 0;
         int count = 0;
-        for (int x = left; x <= right; x++) {
-            for (int y = top; y <= bottom; y++) {
-                sum += image.get(x, y) / scale;
+        for (int x = window.left; x <= window.right; x++) {
+            for (int y = window.top; y <= window.bottom; y++) {
+                sum += values[y * width + x];
                 count++;
             }
         }
@@ -231,16 +222,14 @@ public class BackgroundNoise implements SettingsDialog, DebugStats {
     
     // gets the standard deviation
     private static double findStdDevSquared(final double average,
-                                            final int top, final int bottom, 
-                                            final int left, final int right, 
-                                            final ImageProcessor image,
-                                            final double scale) {
+                                            final Window window, 
+                                            final float[] photons,
+                                            final int width) {
         double sum = 0;
         int count = 0;
-        for (int x = left; x <= right; x++) {
-            for (int y = top; y <= bottom; y++) {
-                final int intensity = image.get(x, y);
-                final double delta = intensity / scale - average;
+        for (int x = window.left; x <= window.right; x++) {
+            for (int y = window.top; y <= window.bottom; y++) {
+                final double delta = photons[y * width + x] - average;
                 sum += delta * delta;
                 count++;
             }
@@ -249,21 +238,46 @@ public class BackgroundNoise implements SettingsDialog, DebugStats {
         return sum / count;
     }
     
-    // find the pixel position with the least intensity
+    // find the pixel position with the least intensity; ties go to the 
+    // pixel with the smallest x (and then y) coordinate
     private static Point findMinimum(final ImageContext context) {
-        final ImageProcessor image = context.getImage();
+        final float[] photons = context.getPhotons();
+        final BlockSummary blocks = context.getBlocks();
+        final int width = context.getWidth();
+        final int height = context.getHeight();
+        final int size = BlockSummary.BLOCK_SIZE;
         final Point min = new Point(0, 0);
-        int minIntensity = Integer.MAX_VALUE;
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                final int intensity = image.get(x, y);
-                if (intensity < minIntensity && !context.isProcessed(x, y)) {
-                    minIntensity = intensity;
-                    min.x = x;
-                    min.y = y;
+        float minIntensity = Float.MAX_VALUE;
+        boolean found = false;
+        
+        for (int bx = 0; bx < blocks.getBlocksX(); bx++) {
+            for (int by = 0; by < blocks.getBlocksY(); by++) {
+                
+                // skip the blocks that cannot hold a smaller pixel
+                if (blocks.getMin(bx, by) > minIntensity) {
+                    continue;
+                }
+                
+                final int right = Math.min((bx + 1) * size, width);
+                final int bottom = Math.min((by + 1) * size, height);
+                
+                for (int x = bx * size; x < right; x++) {
+                    for (int y = by * size; y < bottom; y++) {
+                        final float intensity = photons[y * width + x];
+                        
+                        if ((intensity < minIntensity || (found 
+                                && intensity == minIntensity && x < min.x))
+                                && !context.isProcessed(x, y)) {
+                            minIntensity = intensity;
+                            min.x = x;
+                            min.y = y;
+                            found = true;
+                        }
+                    }
                 }
             }
         }
+        
         context.setProcessed(min.x, min.y);
         return min;
     }
@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+import java.awt.Font;
+import java.util.Arrays;
+import java.util.List;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+
+/**
+ * Merges the localizations of a fluorophore that stays on for several 
+ * frames into one.  The localizations are visited frame by frame, and each 
+ * joins the nearest open group within the merge distance that it has not 
+ * already joined in this frame.  A group stays open for as many dark frames
+ * as allowed; after that it is closed and written out as a single 
+ * localization at the photon-weighted mean position, with the summed 
+ * photon count, from the frame it started in.
+ *
+ * <p>Only the open groups are kept, on a grid with cells as wide as the 
+ * merge distance, so a localization is compared with the groups in the 
+ * nine cells around it and the work grows linearly with the number of 
+ * localizations.
+ */
+public class BlinkMerger implements PostProcess, SettingsDialog {
+    
+    private static final double DISTANCE_DEF = 50.0;
+    private static final int DARK_FRAMES_DEF = 1;
+    
+    private static final String ENABLED = 
+            "Localize_Particles.BlinkMerger.enabled";
+    
+    private static final String DISTANCE = 
+            "Localize_Particles.BlinkMerger.distance";
+    
+    private static final String DARK_FRAMES = 
+            "Localize_Particles.BlinkMerger.dark_frames";
+    
+    private boolean enabled;
+    private double distance;                // merge distance (nm)
+    private int darkFrames;
+    
+    @Override
+    public final void displaySettings(final GenericDialog dialog, 
+                                      final Font header) {
+        dialog.addMessage("Blink Merging", header);
+        dialog.addCheckbox("Merge Blinks", Prefs.get(ENABLED, false));
+        dialog.addNumericField("Merge Distance", 
+                Prefs.get(DISTANCE, DISTANCE_DEF), 1, 6, "nm");
+        dialog.addNumericField("Maximum Dark Frames", 
+                Prefs.get(DARK_FRAMES, DARK_FRAMES_DEF), 0, 6, "frames");
+    }
+    
+    @Override
+    public final void saveSettings(final GenericDialog dialog) {
+        enabled = dialog.getNextBoolean();
+        distance = dialog.getNextNumber();
+        darkFrames = Math.max(0, (int) dialog.getNextNumber());
+        
+        // nothing is within a distance of zero or less
+        if (enabled && !(distance > 0)) {
+            IJ.error("The merge distance must be positive; "
+                    + "no blinks will be merged.");
+            enabled = false;
+        }
+        
+        IJ.log("BlinkMerger Settings: ");
+        IJ.log("  Enabled: " + (enabled ? "True" : "False"));
+        IJ.log("  Merge Distance: " + distance + " nm");
+        IJ.log("  Maximum Dark Frames: " + darkFrames);
+        
+        Prefs.set(ENABLED, enabled);
+        Prefs.set(DISTANCE, distance);
+        Prefs.set(DARK_FRAMES, darkFrames);
+    }
+    
+    @Override
+    public final LocalizationStore runPostProcess(
+            final AbstractParticleLocator locator,
+            final LocalizationStore store) {
+        
+        if (!enabled) {
+            return store;
+        }
+        
+        final ImageStack stack = locator.getStack();
+        final int frames = stack.getSize();
+        final List<LocalizationStore.Chunk> chunks = store.getChunks();
+        
+        // sort references to the localizations by frame
+        final int[] start = new int[frames + 2];
+        final int[] sorted = FrameLinkGrid.sortByFrame(chunks, frames, start);
+        
+        // the merge distance is the cell size of the grid of open groups
+        final double mergeDistance = distance / locator.getPixelSize();
+        final FrameLinkGrid grid = new FrameLinkGrid(mergeDistance, 
+                stack.getWidth(), stack.getHeight());
+        final Groups groups = new Groups();
+        final double limit = mergeDistance * mergeDistance;
+        
+        // write out the groups as they are closed
+        final LocalizationStore merged = new LocalizationStore();
+        final FrameLinkGrid.Closer closer = new FrameLinkGrid.Closer() {
+            @Override
+            public void close(final int g) {
+                groups.write(g, merged);
+            }
+        };
+        
+        for (int n = 0; n <= frames; n++) {
+            
+            // close the groups that have been dark for too long
+            grid.closeBefore(n - darkFrames - 1, closer);
+            
+            for (int i = start[n]; i < start[n + 1]; i++) {
+                final LocalizationStore.Chunk chunk = 
+                        chunks.get(LocalizationStore.getChunkNumber(sorted[i]));
+                final int k = LocalizationStore.getIndex(sorted[i]);
+                final double x = chunk.getX()[k];
+                final double y = chunk.getY()[k];
+                
+                // the nearest open group not yet joined in this frame
+                int best = -1;
+                double bestDistance = limit;
+                
+                final int near = grid.findNear(x, y);
+                
+                for (int j = 0; j < near; j++) {
+                    final int g = grid.getNear(j);
+                    if (grid.getLast(g) == n) {
+                        continue;
+                    }
+                    
+                    final double dx = grid.getX(g) - x;
+                    final double dy = grid.getY(g) - y;
+                    final double d = dx * dx + dy * dy;
+                    
+                    if (d <= bestDistance) {
+                        bestDistance = d;
+                        best = g;
+                    }
+                }
+                
+                if (best < 0) {
+                    best = grid.open(-1);
+                    groups.open(best, n, grid.getCapacity());
+                }
+                
+                // keep the group in the cell of its mean position
+                groups.add(best, x, y, chunk.getPhotonCounts()[k], 
+                        chunk.getBackgroundLevels()[k], 
+                        chunk.getPrecisions()[k]);
+                grid.setLast(best, n);
+                grid.place(best, groups.getX(best), groups.getY(best));
+            }
+        }
+        
+        grid.closeBefore(Integer.MAX_VALUE, closer);
+        
+        IJ.log("Blink Merging: " + sorted.length + " localizations merged " 
+                + "into " + merged.size());
+        
+        return merged;
+    }
+    
+    /**
+     * The sums of the open groups of localizations, by their slot in the 
+     * grid.
+     */
+    private static final class Groups {
+        private int[] first = new int[0];
+        private double[] sumX = new double[0];
+        private double[] sumY = new double[0];
+        private double[] photons = new double[0];
+        private double[] background = new double[0];
+        private double[] information = new double[0];
+        private int[] count = new int[0];
+        
+        // starts an empty group in the given frame
+        private void open(final int g, final int frame, final int capacity) {
+            if (capacity > first.length) {
+                first = Arrays.copyOf(first, capacity);
+                sumX = Arrays.copyOf(sumX, capacity);
+                sumY = Arrays.copyOf(sumY, capacity);
+                photons = Arrays.copyOf(photons, capacity);
+                background = Arrays.copyOf(background, capacity);
+                information = Arrays.copyOf(information, capacity);
+                count = Arrays.copyOf(count, capacity);
+            }
+            
+            first[g] = frame;
+            sumX[g] = 0;
+            sumY[g] = 0;
+            photons[g] = 0;
+            background[g] = 0;
+            information[g] = 0;
+            count[g] = 0;
+        }
+        
+        // adds a localization; photon counts weight the position
+        private void add(final int g, 
+                         final double x, final double y,
+                         final double photonCount, 
+                         final double backgroundLevel,
+                         final double precision) {
+            final double weight = Math.max(photonCount, 1e-6);
+            
+            sumX[g] += weight * x;
+            sumY[g] += weight * y;
+            photons[g] += weight;
+            background[g] += backgroundLevel;
+            information[g] += 1.0 / (precision * precision);
+            count[g]++;
+        }
+        
+        private double getX(final int g) {
+            return sumX[g] / photons[g];
+        }
+        
+        private double getY(final int g) {
+            return sumY[g] / photons[g];
+        }
+        
+        // writes out a group as a single localization
+        private void write(final int g, final LocalizationStore merged) {
+            
+            // NaN when the precision of any of them is unknown
+            merged.add(first[g], getX(g), getY(g), photons[g], 
+                    background[g] / count[g], 
+                    1.0 / Math.sqrt(information[g]));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+
+/**
+ * The largest and smallest value of every 8x8 block of an image, so that 
+ * searches can skip the blocks that cannot hold what they look for.  Blocks
+ * along the right and bottom edges may be smaller.
+ */
+public class BlockSummary {
+    
+    /** The width and height of a block in pixels. */
+    public static final int BLOCK_SIZE = 8;
+    
+    // the number of bits to shift a coordinate by to get its block
+    private static final int SHIFT = 3;
+    
+    private final int blocksX;
+    private final int blocksY;
+    private final float[] max;
+    private final float[] min;
+    
+    /**
+     * Summarizes an image in one pass over its rows.
+     * @param values the pixels of the image, row by row
+     * @param width the width of the image
+     * @param height the height of the image
+     */
+    public BlockSummary(final float[] values, 
+                        final int width, 
+                        final int height) {
+        
+        blocksX = (width + BLOCK_SIZE - 1) >> SHIFT;
+        blocksY = (height + BLOCK_SIZE - 1) >> SHIFT;
+        max = new float[blocksX * blocksY];
+        min = new float[blocksX * blocksY];
+        
+        for (int y = 0; y < height; y++) {
+            final int row = (y >> SHIFT) * blocksX;
+            final boolean first = (y & (BLOCK_SIZE - 1)) == 0;
+            
+            for (int bx = 0; bx < blocksX; bx++) {
+                final int start = y * width + (bx << SHIFT);
+                final int end = y * width 
+                        + Math.min((bx + 1) << SHIFT, width);
+                
+                // the extremes of this row within the block
+                float rowMax = values[start];
+                float rowMin = values[start];
+                
+                for (int i = start + 1; i < end; i++) {
+                    final float value = values[i];
+                    rowMax = Math.max(rowMax, value);
+                    rowMin = Math.min(rowMin, value);
+                }
+                
+                final int block = row + bx;
+                
+                if (first) {
+                    max[block] = rowMax;
+                    min[block] = rowMin;
+                } else {
+                    max[block] = Math.max(max[block], rowMax);
+                    min[block] = Math.min(min[block], rowMin);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return the number of blocks along the x-axis
+     */
+    public final int getBlocksX() {
+        return blocksX;
+    }
+    
+    /**
+     * @return the number of blocks along the y-axis
+     */
+    public final int getBlocksY() {
+        return blocksY;
+    }
+    
+    /**
+     * @param bx the x-index of the block
+     * @param by the y-index of the block
+     * @return the largest value within the block
+     */
+    public final float getMax(final int bx, final int by) {
+        return max[by * blocksX + bx];
+    }
+    
+    /**
+     * @param bx the x-index of the block
+     * @param by the y-index of the block
+     * @return the smallest value within the block
+     */
+    public final float getMin(final int bx, final int by) {
+        return min[by * blocksX + bx];
+    }
+}
@@ -0,0 +1,341 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+
+/**
+ * Stores a batch of candidate windows as a structure of arrays so that a
+ * fitter can run its iterations in lock-step across all of them.  Each 
+ * candidate keeps its index within the round it came from.
+ *
+ * <p>Per-pixel data is stored pixel-major: pixel {@code n} of candidate
+ * {@code j} is at {@code n * capacity + j}, so the innermost loops of a
+ * fitter run over contiguous candidates.
+ *
+ * <p>A batch is not thread-safe; keep one per thread.
+ */
+public class CandidateBatch {
+
+    private final int capacity;
+    private int windowSize;
+    private int count;
+
+    // where each candidate came from
+    private final int[] candidate;
+    private final int[] locationX;
+    private final int[] locationY;
+
+    // row and column projections of the windows (pixel-major)
+    private double[] xData;
+    private double[] yData;
+
+    // initial estimates made while gathering; the expected sum is taken at
+    // the initial y-position and gives the final photon count
+    private final double[] centerX;
+    private final double[] centerY;
+    private final double[] backgroundGuess;
+    private final double[] photonGuessX;
+    private final double[] photonGuessY;
+    private final double[] expectedSum;
+
+    // results
+    private final boolean[] passed;
+    private final double[] resultX;
+    private final double[] resultY;
+    private final double[] photonCount;
+    private final double[] backgroundLevel;
+
+    /**
+     * Creates an empty batch.
+     * @param capacity the maximum number of candidates in the batch
+     */
+    public CandidateBatch(final int capacity) {
+        this.capacity = capacity;
+
+        candidate = new int[capacity];
+        locationX = new int[capacity];
+        locationY = new int[capacity];
+        xData = new double[0];
+        yData = new double[0];
+
+        centerX = new double[capacity];
+        centerY = new double[capacity];
+        backgroundGuess = new double[capacity];
+        photonGuessX = new double[capacity];
+        photonGuessY = new double[capacity];
+        expectedSum = new double[capacity];
+
+        passed = new boolean[capacity];
+        resultX = new double[capacity];
+        resultY = new double[capacity];
+        photonCount = new double[capacity];
+        backgroundLevel = new double[capacity];
+    }
+
+    /**
+     * Adds a candidate to the batch.  The caller sets its projections and 
+     * initial estimates at the returned index.
+     * @param candidateIndex the index of the candidate within its round
+     * @param x the x-coordinate of the candidate pixel
+     * @param y the y-coordinate of the candidate pixel
+     * @param size the width and height of the candidate window
+     * @return the index of the candidate in the batch
+     */
+    public final int add(final int candidateIndex, final int x, final int y,
+            final int size) {
+
+        // resize the projections if the window size changed (this only
+        // happens between runs, when the batch has been flushed)
+        if (size != windowSize) {
+            windowSize = size;
+            xData = new double[size * capacity];
+            yData = new double[size * capacity];
+            count = 0;
+        }
+
+        final int index = count++;
+        candidate[index] = candidateIndex;
+        locationX[index] = x;
+        locationY[index] = y;
+        passed[index] = false;
+
+        for (int n = 0; n < size; n++) {
+            xData[n * capacity + index] = 0;
+            yData[n * capacity + index] = 0;
+        }
+
+        return index;
+    }
+
+    /**
+     * Sets one element of the column and row projections of a candidate.
+     * @param index the index of the candidate
+     * @param n the element of the projections
+     * @param x the column sum
+     * @param y the row sum
+     */
+    public final void setProjection(final int index, final int n,
+            final double x, final double y) {
+        xData[n * capacity + index] = x;
+        yData[n * capacity + index] = y;
+    }
+
+    /**
+     * Sets the initial estimates of a candidate.
+     * @param index the index of the candidate
+     * @param x the initial x-position (nm within the window)
+     * @param y the initial y-position (nm within the window)
+     * @param backgroundEstimate the initial background per pixel
+     * @param photonsX the initial photon coefficient of the x-axis
+     * @param photonsY the initial photon coefficient of the y-axis
+     * @param sum the sum of the model at the initial y-position
+     */
+    public final void setEstimates(final int index, final double x,
+            final double y, final double backgroundEstimate,
+            final double photonsX, final double photonsY, final double sum) {
+        centerX[index] = x;
+        centerY[index] = y;
+        backgroundGuess[index] = backgroundEstimate;
+        photonGuessX[index] = photonsX;
+        photonGuessY[index] = photonsY;
+        expectedSum[index] = sum;
+    }
+
+    /**
+     * Removes all candidates from the batch.
+     */
+    public final void clear() {
+        count = 0;
+    }
+
+    /**
+     * @return true if no more candidates fit in the batch
+     */
+    public final boolean isFull() {
+        return count == capacity;
+    }
+
+    /**
+     * @return the number of candidates in the batch
+     */
+    public final int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the maximum number of candidates in the batch
+     */
+    public final int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the width and height of the candidate windows
+     */
+    public final int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return the index of the candidate within its round
+     */
+    public final int getCandidate(final int index) {
+        return candidate[index];
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return the x-coordinate of the candidate pixel
+     */
+    public final int getLocationX(final int index) {
+        return locationX[index];
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return the y-coordinate of the candidate pixel
+     */
+    public final int getLocationY(final int index) {
+        return locationY[index];
+    }
+
+    /**
+     * @return the column sums of every candidate (pixel-major); not to be 
+     *         changed
+     */
+    public final double[] getProjectionsX() {
+        return xData;
+    }
+
+    /**
+     * @return the row sums of every candidate (pixel-major); not to be 
+     *         changed
+     */
+    public final double[] getProjectionsY() {
+        return yData;
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return the initial x-position (nm within the window)
+     */
+    public final double getCenterX(final int index) {
+        return centerX[index];
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return the initial y-position (nm within the window)
+     */
+    public final double getCenterY(final int index) {
+        return centerY[index];
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return the initial background per pixel
+     */
+    public final double getBackgroundGuess(final int index) {
+        return backgroundGuess[index];
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return the initial photon coefficient of the x-axis
+     */
+    public final double getPhotonGuessX(final int index) {
+        return photonGuessX[index];
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return the initial photon coefficient of the y-axis
+     */
+    public final double getPhotonGuessY(final int index) {
+        return photonGuessY[index];
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return the sum of the model at the initial y-position
+     */
+    public final double getExpectedSum(final int index) {
+        return expectedSum[index];
+    }
+
+    /**
+     * Stores the result of a successful fit.
+     * @param index the index of the candidate
+     * @param x the x-coordinate in pixels
+     * @param y the y-coordinate in pixels
+     * @param photons the estimated photon count
+     * @param backgroundEstimate the estimated background per pixel
+     */
+    public final void setResult(final int index, final double x,
+            final double y, final double photons,
+            final double backgroundEstimate) {
+        passed[index] = true;
+        resultX[index] = x;
+        resultY[index] = y;
+        photonCount[index] = photons;
+        backgroundLevel[index] = backgroundEstimate;
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return true if the candidate was fitted successfully
+     */
+    public final boolean isPassed(final int index) {
+        return passed[index];
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return the fitted x-coordinate in pixels
+     */
+    public final double getX(final int index) {
+        return resultX[index];
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return the fitted y-coordinate in pixels
+     */
+    public final double getY(final int index) {
+        return resultY[index];
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return the estimated photon count
+     */
+    public final double getPhotonCount(final int index) {
+        return photonCount[index];
+    }
+
+    /**
+     * @param index the index of the candidate
+     * @return the estimated background per pixel
+     */
+    public final double getBackgroundLevel(final int index) {
+        return backgroundLevel[index];
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+
+import java.util.Arrays;
+
+/**
+ * The pixels around a candidate, copied out of the image once and shared by
+ * all of the image processes.  Pixels are stored in photons row by row, and 
+ * the row and column sums are taken along the way.
+ *
+ * <p>The window is square with the candidate at its center, clipped to the 
+ * image.  A window is kept with each {@link FitRecord} and extracted again 
+ * only when a process asks for a different radius.
+ */
+public class CandidateWindow {
+    
+    private int radius = -1;
+    private int left;
+    private int top;
+    private int width;
+    private int height;
+    
+    // photons of each pixel (row by row) and the sums along both axes
+    private double[] pixels = new double[0];
+    private double[] columnSums = new double[0];
+    private double[] rowSums = new double[0];
+    
+    /**
+     * Forgets the pixels so that the next request extracts them again.
+     */
+    public final void invalidate() {
+        radius = -1;
+    }
+    
+    /**
+     * Copies the window out of the image unless it already holds it.
+     * @param context the current image context
+     * @param x the x-coordinate of the candidate pixel
+     * @param y the y-coordinate of the candidate pixel
+     * @param windowRadius the distance from the candidate to the edges
+     */
+    public final void extract(final ImageContext context, 
+                              final int x, 
+                              final int y, 
+                              final int windowRadius) {
+        
+        if (windowRadius == radius) {
+            return;
+        }
+        
+        final float[] photons = context.getPhotons();
+        final int stride = context.getWidth();
+        
+        radius = windowRadius;
+        left = Math.max(x - radius, 0);
+        top = Math.max(y - radius, 0);
+        width = Math.min(x + radius, context.getWidth() - 1) - left + 1;
+        height = Math.min(y + radius, context.getHeight() - 1) - top + 1;
+        
+        // the buffers only change size for windows clipped by the border
+        if (pixels.length != width * height) {
+            pixels = new double[width * height];
+        }
+        
+        if (columnSums.length != width) {
+            columnSums = new double[width];
+        } else {
+            Arrays.fill(columnSums, 0);
+        }
+        
+        if (rowSums.length != height) {
+            rowSums = new double[height];
+        }
+        
+        // copy the pixels and accumulate both projections in one pass
+        for (int j = 0; j < height; j++) {
+            double rowSum = 0;
+            
+            for (int i = 0; i < width; i++) {
+                final double S = photons[(j + top) * stride + i + left];
+                pixels[j * width + i] = S;
+                columnSums[i] += S;
+                rowSum += S;
+            }
+            
+            rowSums[j] = rowSum;
+        }
+    }
+    
+    /**
+     * @return the x-coordinate of the left edge in the image
+     */
+    public final int getLeft() {
+        return left;
+    }
+    
+    /**
+     * @return the y-coordinate of the top edge in the image
+     */
+    public final int getTop() {
+        return top;
+    }
+    
+    /**
+     * @return the number of columns
+     */
+    public final int getWidth() {
+        return width;
+    }
+    
+    /**
+     * @return the number of rows
+     */
+    public final int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Retrieves the photons of the pixels, row by row.
+     * @return the pixels of the window
+     */
+    public final double[] getPixels() {
+        return pixels;
+    }
+    
+    /**
+     * Retrieves the sum of each column (the projection onto the x-axis).
+     * @return the column sums
+     */
+    public final double[] getColumnSums() {
+        return columnSums;
+    }
+    
+    /**
+     * Retrieves the sum of each row (the projection onto the y-axis).
+     * @return the row sums
+     */
+    public final double[] getRowSums() {
+        return rowSums;
+    }
+}
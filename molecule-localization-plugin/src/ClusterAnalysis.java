@@ -0,0 +1,688 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+import java.awt.Font;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
+
+/**
+ * Finds the clusters of the localizations with DBSCAN, and the clustering
+ * at every scale with Ripley's K and L functions.
+ *
+ * <p>A localization with at least the minimum number of localizations 
+ * (itself included) within the cluster distance is a core point, and core 
+ * points within the distance of each other are in the same cluster.  Any 
+ * other localization within the distance of a core point joins the cluster
+ * of the nearest one; the rest are noise and get cluster number zero.
+ *
+ * <p>The neighbors are found with a {@link SpatialIndex} with cells at 
+ * least as wide as the cluster distance.  The image is cut into tiles that are clustered 
+ * on all processors at once, each joining the core points within it in a 
+ * union-find forest.  The pairs of core points that cross a tile border are 
+ * kept aside and joined once all of the tiles are done, which stitches the
+ * clusters of neighboring tiles together.
+ *
+ * <p>Ripley's functions are found from the distances of all pairs within 
+ * the largest radius, counted into bins.  Only localizations at least the
+ * largest radius from the border are taken as centers, so no edge 
+ * correction is needed.
+ */
+public class ClusterAnalysis implements PostProcess, SettingsDialog {
+    
+    private static final double DISTANCE_DEF = 50.0;
+    private static final int POINTS_DEF = 10;
+    private static final double RADIUS_DEF = 500.0;
+    private static final int BINS_DEF = 50;
+    
+    // the widest tile, in cluster distances
+    private static final int TILE_CELLS = 64;
+    
+    // the most tiles along a side of the image
+    private static final int MAX_TILES_ACROSS = 256;
+    
+    private static final String ENABLED = 
+            "Localize_Particles.ClusterAnalysis.enabled";
+    
+    private static final String DISTANCE = 
+            "Localize_Particles.ClusterAnalysis.distance";
+    
+    private static final String POINTS = 
+            "Localize_Particles.ClusterAnalysis.points";
+    
+    private static final String RADIUS = 
+            "Localize_Particles.ClusterAnalysis.radius";
+    
+    private static final String BINS = 
+            "Localize_Particles.ClusterAnalysis.bins";
+    
+    private boolean enabled;
+    private double distance;                // cluster distance (nm)
+    private int minimumPoints;
+    private double radius;                  // largest Ripley radius (nm)
+    private int bins;
+    
+    @Override
+    public final void displaySettings(final GenericDialog dialog, 
+                                      final Font header) {
+        dialog.addMessage("Cluster Analysis", header);
+        dialog.addCheckbox("Find Clusters", Prefs.get(ENABLED, false));
+        dialog.addNumericField("Cluster Distance", 
+                Prefs.get(DISTANCE, DISTANCE_DEF), 1, 6, "nm");
+        dialog.addNumericField("Minimum Cluster Points", 
+                Prefs.get(POINTS, POINTS_DEF), 0, 6, "localizations");
+        dialog.addNumericField("Ripley Radius (0 for none)", 
+                Prefs.get(RADIUS, RADIUS_DEF), 1, 6, "nm");
+        dialog.addNumericField("Ripley Bins", 
+                Prefs.get(BINS, BINS_DEF), 0, 6, "");
+    }
+    
+    @Override
+    public final void saveSettings(final GenericDialog dialog) {
+        enabled = dialog.getNextBoolean();
+        distance = dialog.getNextNumber();
+        minimumPoints = Math.max(1, (int) dialog.getNextNumber());
+        radius = Math.max(0, dialog.getNextNumber());
+        bins = Math.max(1, (int) dialog.getNextNumber());
+        
+        // nothing is within a distance of zero or less
+        if (enabled && !(distance > 0)) {
+            IJ.error("The cluster distance must be positive; "
+                    + "no clusters will be found.");
+            enabled = false;
+        }
+        
+        IJ.log("ClusterAnalysis Settings: ");
+        IJ.log("  Enabled: " + (enabled ? "True" : "False"));
+        IJ.log("  Cluster Distance: " + distance + " nm");
+        IJ.log("  Minimum Points: " + minimumPoints);
+        IJ.log("  Ripley Radius: " + radius + " nm");
+        IJ.log("  Ripley Bins: " + bins);
+        
+        Prefs.set(ENABLED, enabled);
+        Prefs.set(DISTANCE, distance);
+        Prefs.set(POINTS, minimumPoints);
+        Prefs.set(RADIUS, radius);
+        Prefs.set(BINS, bins);
+    }
+    
+    @Override
+    public final LocalizationStore runPostProcess(
+            final AbstractParticleLocator locator,
+            final LocalizationStore store) {
+        
+        if (!enabled) {
+            return store;
+        }
+        
+        final ImageStack stack = locator.getStack();
+        final double pixelSize = locator.getPixelSize();
+        
+        findClusters(store, stack.getWidth(), stack.getHeight(), pixelSize);
+        
+        if (radius > 0) {
+            findRipley(store, stack.getWidth(), stack.getHeight(), pixelSize);
+        }
+        
+        return store;
+    }
+    
+    // Numbers the clusters found by DBSCAN in the store and shows a table 
+    // of them.
+    private void findClusters(final LocalizationStore store,
+                              final int width,
+                              final int height,
+                              final double pixelSize) {
+        
+        final List<LocalizationStore.Chunk> chunks = store.getChunks();
+        final double eps = distance / pixelSize;
+        final SpatialIndex index = 
+                new SpatialIndex(store, width, height, eps);
+        
+        // at least eight tiles across for the processors to share, and at 
+        // most MAX_TILES_ACROSS
+        final double extent = Math.max(width, height);
+        final double tileSize = Math.max(extent / MAX_TILES_ACROSS, 
+                Math.max(eps, Math.min(TILE_CELLS * eps, extent / 8.0)));
+        final int tilesX = Math.max(1, (int) Math.ceil(width / tileSize));
+        final int tilesY = Math.max(1, (int) Math.ceil(height / tileSize));
+        final Tiles tiles = new Tiles(index, tileSize, tilesX, tilesY);
+        
+        // every reference is an index into these
+        final int size = LocalizationStore.getReference(chunks.size(), 0);
+        final boolean[] core = new boolean[size];
+        final int[] parent = new int[size];
+        final int[] label = new int[size];
+        
+        // find the core points and the most neighbors of any of them
+        final AtomicInteger most = new AtomicInteger(0);
+        runOnTiles(tilesX * tilesY, new Task() {
+            @Override
+            public void run(final int tile) {
+                final int[] members = tiles.getMembers(tile);
+                int largest = 0;
+                
+                for (int reference : members) {
+                    final int neighbors = index.findInRadius(
+                            index.getX(reference), index.getY(reference), 
+                            eps, null);
+                    
+                    core[reference] = neighbors >= minimumPoints;
+                    parent[reference] = reference;
+                    largest = Math.max(largest, neighbors);
+                }
+                
+                int current = most.get();
+                while (largest > current 
+                        && !most.compareAndSet(current, largest)) {
+                    current = most.get();
+                }
+            }
+        });
+        
+        // join the core points within each tile, keeping the pairs that 
+        // cross into a later tile for afterwards
+        final int[][] crossing = new int[tilesX * tilesY][];
+        final int[] crossings = new int[tilesX * tilesY];
+        
+        runOnTiles(tilesX * tilesY, new Task() {
+            @Override
+            public void run(final int tile) {
+                final int[] found = new int[most.get()];
+                int[] pairs = new int[0];
+                int count = 0;
+                
+                for (int p : tiles.getMembers(tile)) {
+                    if (!core[p]) {
+                        continue;
+                    }
+                    
+                    final int neighbors = index.findInRadius(
+                            index.getX(p), index.getY(p), eps, found);
+                    
+                    for (int i = 0; i < neighbors; i++) {
+                        final int q = found[i];
+                        if (!core[q]) {
+                            continue;
+                        }
+                        
+                        final int other = tiles.findTile(
+                                index.getX(q), index.getY(q));
+                        
+                        if (other == tile) {
+                            union(parent, p, q);
+                        } else if (other > tile) {
+                            if (count == pairs.length) {
+                                pairs = Arrays.copyOf(pairs, 
+                                        Math.max(2 * count, 256));
+                            }
+                            pairs[count++] = p;
+                            pairs[count++] = q;
+                        }
+                    }
+                }
+                
+                crossing[tile] = pairs;
+                crossings[tile] = count;
+            }
+        });
+        
+        // stitch the tiles together
+        for (int t = 0; t < crossing.length; t++) {
+            for (int i = 0; i < crossings[t]; i += 2) {
+                union(parent, crossing[t][i], crossing[t][i + 1]);
+            }
+            crossing[t] = null;
+        }
+        
+        // number the clusters in the order of their roots, which are the 
+        // first references of their clusters
+        int clusters = 0;
+        for (int c = 0; c < chunks.size(); c++) {
+            for (int k = 0; k < chunks.get(c).size(); k++) {
+                final int p = LocalizationStore.getReference(c, k);
+                
+                if (core[p]) {
+                    final int root = find(parent, p);
+                    label[p] = root == p ? ++clusters : label[root];
+                }
+            }
+        }
+        
+        // the other points join the cluster of their nearest core point
+        runOnTiles(tilesX * tilesY, new Task() {
+            @Override
+            public void run(final int tile) {
+                final int[] found = new int[most.get()];
+                
+                for (int p : tiles.getMembers(tile)) {
+                    if (core[p]) {
+                        continue;
+                    }
+                    
+                    final double x = index.getX(p);
+                    final double y = index.getY(p);
+                    final int neighbors = 
+                            index.findInRadius(x, y, eps, found);
+                    double nearest = Double.POSITIVE_INFINITY;
+                    
+                    for (int i = 0; i < neighbors; i++) {
+                        final int q = found[i];
+                        final double dx = index.getX(q) - x;
+                        final double dy = index.getY(q) - y;
+                        final double d = dx * dx + dy * dy;
+                        
+                        if (core[q] && d < nearest) {
+                            nearest = d;
+                            label[p] = label[q];
+                        }
+                    }
+                }
+            }
+        });
+        
+        store.addClusters();
+        for (int c = 0; c < chunks.size(); c++) {
+            final LocalizationStore.Chunk chunk = chunks.get(c);
+            for (int k = 0; k < chunk.size(); k++) {
+                chunk.getClusters()[k] = 
+                        label[LocalizationStore.getReference(c, k)];
+            }
+        }
+        
+        showClusters(chunks, label, clusters, pixelSize);
+    }
+    
+    // Shows a table of the number of localizations, centroid, radius of 
+    // gyration and convex hull of each cluster.
+    private void showClusters(final List<LocalizationStore.Chunk> chunks,
+                              final int[] label,
+                              final int clusters,
+                              final double pixelSize) {
+        
+        // sort the localizations by cluster, packing both coordinates
+        final int[] first = new int[clusters + 2];
+        final int[] sorted = LocalizationStore.sortByKey(chunks, clusters + 1,
+                new LocalizationStore.Key() {
+                    @Override
+                    public int getKey(final LocalizationStore.Chunk chunk, 
+                                      final int index) {
+                        return chunk.getClusters()[index];
+                    }
+                }, first);
+        
+        final long[] points = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            final LocalizationStore.Chunk chunk = 
+                    chunks.get(LocalizationStore.getChunkNumber(sorted[i]));
+            final int k = LocalizationStore.getIndex(sorted[i]);
+            points[i] = pack(chunk.getX()[k], chunk.getY()[k]);
+        }
+        
+        final ResultsTable table = new ResultsTable();
+        final double[] hullX = new double[2 * (points.length - first[1]) + 1];
+        final double[] hullY = new double[hullX.length];
+        final double area = pixelSize * pixelSize * 1e-6;       // um^2
+        
+        for (int n = 1; n <= clusters; n++) {
+            final int from = first[n];
+            final int to = first[n + 1];
+            
+            double sumX = 0;
+            double sumY = 0;
+            double sumSquares = 0;
+            
+            for (int i = from; i < to; i++) {
+                final double x = unpackX(points[i]);
+                final double y = unpackY(points[i]);
+                sumX += x;
+                sumY += y;
+                sumSquares += x * x + y * y;
+            }
+            
+            final int count = to - from;
+            final double meanX = sumX / count;
+            final double meanY = sumY / count;
+            final double gyration = Math.sqrt(Math.max(0, sumSquares / count 
+                    - meanX * meanX - meanY * meanY));
+            
+            // the packed points sort by x and then by y
+            Arrays.sort(points, from, to);
+            final double hull = findHullArea(points, from, to, hullX, hullY) 
+                    * area;
+            
+            table.incrementCounter();
+            table.addValue("Cluster", n);
+            table.addValue("Localizations", count);
+            table.addValue("X (nm)", meanX * pixelSize);
+            table.addValue("Y (nm)", meanY * pixelSize);
+            table.addValue("Radius of Gyration (nm)", gyration * pixelSize);
+            table.addValue("Area (um^2)", hull);
+            table.addValue("Density (per um^2)", 
+                    hull > 0 ? count / hull : Double.NaN);
+        }
+        
+        table.show("Clusters");
+        
+        IJ.log("Cluster Analysis: " + clusters + " clusters found; " 
+                + first[1] + " of " + points.length 
+                + " localizations are noise");
+    }
+    
+    // Shows Ripley's K and L functions, from the pairs within the largest 
+    // radius of the localizations far enough from the border.
+    private void findRipley(final LocalizationStore store,
+                            final int width,
+                            final int height,
+                            final double pixelSize) {
+        
+        final double largest = radius / pixelSize;
+        if (2 * largest >= Math.min(width, height)) {
+            IJ.log("Cluster Analysis: the Ripley radius is too large for "
+                    + "the image");
+            return;
+        }
+        
+        final List<LocalizationStore.Chunk> chunks = store.getChunks();
+        final SpatialIndex index = 
+                new SpatialIndex(store, width, height, largest);
+        final long[][] counts = 
+                new long[ParallelRunner.getThreadCount()][bins];
+        final int[] centers = new int[counts.length];
+        final AtomicInteger next = new AtomicInteger(0);
+        
+        ParallelRunner.run("Ripley", counts.length, new ParallelRunner.Task() {
+            @Override
+            public void run(final int thread) {
+                int[] found = new int[0];
+                
+                for (int c = next.getAndIncrement(); c < chunks.size(); 
+                        c = next.getAndIncrement()) {
+                    final LocalizationStore.Chunk chunk = chunks.get(c);
+                    
+                    for (int k = 0; k < chunk.size(); k++) {
+                        final double x = chunk.getX()[k];
+                        final double y = chunk.getY()[k];
+                        
+                        if (!(x >= largest && x <= width - largest 
+                                && y >= largest 
+                                && y <= height - largest)) {
+                            continue;
+                        }
+                        
+                        final int neighbors = 
+                                index.findInRadius(x, y, largest, null);
+                        if (neighbors > found.length) {
+                            found = new int[2 * neighbors];
+                        }
+                        index.findInRadius(x, y, largest, found);
+                        
+                        // bin b holds the distances up to (b+1)/bins of 
+                        // the largest radius
+                        final int self = 
+                                LocalizationStore.getReference(c, k);
+                        for (int j = 0; j < neighbors; j++) {
+                            if (found[j] == self) {
+                                continue;
+                            }
+                            
+                            final double dx = index.getX(found[j]) - x;
+                            final double dy = index.getY(found[j]) - y;
+                            final int b = (int) Math.ceil(Math.sqrt(
+                                    dx * dx + dy * dy) / largest * bins);
+                            counts[thread][Math.max(0, 
+                                    Math.min(b - 1, bins - 1))]++;
+                        }
+                        
+                        centers[thread]++;
+                    }
+                }
+            }
+        });
+        
+        int centerCount = 0;
+        for (int t = 0; t < counts.length; t++) {
+            centerCount += centers[t];
+        }
+        
+        if (centerCount == 0) {
+            return;
+        }
+        
+        // K(r) is the mean number of others within r over their density
+        final double area = width * height * pixelSize * pixelSize;
+        final double density = store.size() / area;
+        final ResultsTable table = new ResultsTable();
+        long pairs = 0;
+        
+        for (int b = 0; b < bins; b++) {
+            for (int t = 0; t < counts.length; t++) {
+                pairs += counts[t][b];
+            }
+            
+            final double r = radius * (b + 1) / bins;
+            final double k = pairs / (density * centerCount);
+            final double l = Math.sqrt(k / Math.PI);
+            
+            table.incrementCounter();
+            table.addValue("Radius (nm)", r);
+            table.addValue("K (nm^2)", k);
+            table.addValue("L (nm)", l);
+            table.addValue("L - r (nm)", l - r);
+        }
+        
+        table.show("Ripley");
+    }
+    
+    // finds the root of a point, halving the path on the way
+    private static int find(final int[] parent, final int p) {
+        int q = p;
+        while (parent[q] != q) {
+            parent[q] = parent[parent[q]];
+            q = parent[q];
+        }
+        return q;
+    }
+    
+    // joins the trees of two points under the smaller of their roots
+    private static void union(final int[] parent, final int p, final int q) {
+        final int a = find(parent, p);
+        final int b = find(parent, q);
+        
+        if (a < b) {
+            parent[b] = a;
+        } else if (b < a) {
+            parent[a] = b;
+        }
+    }
+    
+    // The area of the convex hull of points sorted by x and then y, from 
+    // Andrew's monotone chain.
+    private static double findHullArea(final long[] points,
+                                       final int from,
+                                       final int to,
+                                       final double[] hullX,
+                                       final double[] hullY) {
+        if (to - from < 3) {
+            return 0;
+        }
+        
+        int count = 0;
+        
+        // the lower hull left to right, then the upper hull right to left
+        for (int pass = 0; pass < 2; pass++) {
+            final int lower = count;
+            
+            for (int j = 0; j < to - from; j++) {
+                final long point = points[pass == 0 ? from + j : to - 1 - j];
+                final double x = unpackX(point);
+                final double y = unpackY(point);
+                
+                while (count >= lower + 2 
+                        && cross(hullX[count - 2], hullY[count - 2], 
+                                hullX[count - 1], hullY[count - 1], x, y) 
+                        <= 0) {
+                    count--;
+                }
+                
+                hullX[count] = x;
+                hullY[count] = y;
+                count++;
+            }
+            
+            // the last point starts the other half
+            count--;
+        }
+        
+        double twice = 0;
+        for (int j = 0; j < count; j++) {
+            final int h = (j + 1) % count;
+            twice += hullX[j] * hullY[h] - hullX[h] * hullY[j];
+        }
+        
+        return Math.abs(twice) / 2.0;
+    }
+    
+    // the z-component of the cross product of (b - a) and (c - a)
+    private static double cross(final double ax, final double ay,
+                                final double bx, final double by,
+                                final double cx, final double cy) {
+        return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    }
+    
+    // Packs a point so that packed points sort by x and then y.  The bits 
+    // of a float are flipped so that they sort as signed integers, and y is
+    // offset so that it sorts as an unsigned one.
+    private static long pack(final float x, final float y) {
+        return ((long) toSortable(x) << 32) 
+                | ((toSortable(y) ^ Integer.MIN_VALUE) & 0xffffffffL);
+    }
+    
+    private static double unpackX(final long point) {
+        return fromSortable((int) (point >> 32));
+    }
+    
+    private static double unpackY(final long point) {
+        return fromSortable((int) point ^ Integer.MIN_VALUE);
+    }
+    
+    private static int toSortable(final float value) {
+        final int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & Integer.MAX_VALUE);
+    }
+    
+    private static float fromSortable(final int sortable) {
+        return Float.intBitsToFloat(
+                sortable ^ ((sortable >> 31) & Integer.MAX_VALUE));
+    }
+    
+    /**
+     * The tiles the image is cut into for clustering.  A localization 
+     * belongs to the tile its position falls in, clamped to the image as in
+     * the index, so the tiles along the border reach out to infinity.
+     */
+    private static final class Tiles {
+        private final SpatialIndex index;
+        private final double tileSize;
+        private final int tilesX;
+        private final int tilesY;
+        
+        private Tiles(final SpatialIndex index,
+                      final double tileSize,
+                      final int tilesX,
+                      final int tilesY) {
+            this.index = index;
+            this.tileSize = tileSize;
+            this.tilesX = tilesX;
+            this.tilesY = tilesY;
+        }
+        
+        // the tile of a position
+        private int findTile(final double x, final double y) {
+            final int tx = Math.max(0, 
+                    Math.min((int) Math.floor(x / tileSize), tilesX - 1));
+            final int ty = Math.max(0, 
+                    Math.min((int) Math.floor(y / tileSize), tilesY - 1));
+            return ty * tilesX + tx;
+        }
+        
+        // The references of the localizations in a tile.  The rectangle 
+        // searched has a margin, and the localizations in it are kept by 
+        // findTile, so that every localization is in exactly one tile.
+        private int[] getMembers(final int tile) {
+            final int tx = tile % tilesX;
+            final int ty = tile / tilesX;
+            final double margin = tileSize / 2;
+            final double left = tx == 0 
+                    ? Double.NEGATIVE_INFINITY : tx * tileSize - margin;
+            final double top = ty == 0 
+                    ? Double.NEGATIVE_INFINITY : ty * tileSize - margin;
+            final double right = tx == tilesX - 1 
+                    ? Double.POSITIVE_INFINITY 
+                    : (tx + 1) * tileSize + margin;
+            final double bottom = ty == tilesY - 1 
+                    ? Double.POSITIVE_INFINITY 
+                    : (ty + 1) * tileSize + margin;
+            
+            final int[] found = 
+                    new int[index.countInRect(left, top, right, bottom)];
+            index.findInRect(left, top, right, bottom, found);
+            
+            int count = 0;
+            for (int reference : found) {
+                if (findTile(index.getX(reference), 
+                        index.getY(reference)) == tile) {
+                    found[count++] = reference;
+                }
+            }
+            
+            return Arrays.copyOf(found, count);
+        }
+    }
+    
+    /**
+     * The work done on one tile.
+     */
+    private interface Task {
+        void run(int tile);
+    }
+    
+    // runs a task on every tile, on all processors, and waits for them
+    private static void runOnTiles(final int tiles, final Task task) {
+        final AtomicInteger next = new AtomicInteger(0);
+        
+        ParallelRunner.run("Cluster", new ParallelRunner.Task() {
+            @Override
+            public void run(final int thread) {
+                for (int t = next.getAndIncrement(); t < tiles; 
+                        t = next.getAndIncrement()) {
+                    task.run(t);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,373 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+import java.awt.Font;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
+
+/**
+ * Corrects the drift of the stage over the acquisition.  The localizations
+ * are split into segments of consecutive frames, and each segment is 
+ * rendered to a coarse image.  The shift of every segment against the first
+ * is the peak of their cross-correlation, found with the Fourier transform 
+ * and refined to a fraction of a pixel.  The shifts are taken to belong to 
+ * the middle frame of each segment, interpolated linearly in between, and 
+ * subtracted from the localizations in place.
+ */
+public class DriftCorrection implements PostProcess, SettingsDialog {
+    
+    private static final int SEGMENT_DEF = 500;
+    private static final double MAGNIFICATION_DEF = 4.0;
+    private static final double MAX_DRIFT_DEF = 1000.0;
+    
+    // the largest width or height of the rendered segments
+    private static final int MAX_CANVAS = 1024;
+    
+    // the standard deviation of the blur of each rendered segment (pixels)
+    private static final double BLUR = 1.0;
+    
+    private static final String ENABLED = 
+            "Localize_Particles.DriftCorrection.enabled";
+    
+    private static final String SEGMENT = 
+            "Localize_Particles.DriftCorrection.segment";
+    
+    private static final String MAGNIFICATION = 
+            "Localize_Particles.DriftCorrection.magnification";
+    
+    private static final String MAX_DRIFT = 
+            "Localize_Particles.DriftCorrection.max_drift";
+    
+    private boolean enabled;
+    private int segmentFrames;
+    private double magnification;
+    private double maxDrift;                // largest shift searched (nm)
+    
+    @Override
+    public final void displaySettings(final GenericDialog dialog, 
+                                      final Font header) {
+        dialog.addMessage("Drift Correction", header);
+        dialog.addCheckbox("Correct Drift", Prefs.get(ENABLED, false));
+        dialog.addNumericField("Drift Segment Length", 
+                Prefs.get(SEGMENT, SEGMENT_DEF), 0, 6, "frames");
+        dialog.addNumericField("Drift Magnification", 
+                Prefs.get(MAGNIFICATION, MAGNIFICATION_DEF), 1, 6, "times");
+        dialog.addNumericField("Maximum Drift", 
+                Prefs.get(MAX_DRIFT, MAX_DRIFT_DEF), 1, 6, "nm");
+    }
+    
+    @Override
+    public final void saveSettings(final GenericDialog dialog) {
+        enabled = dialog.getNextBoolean();
+        segmentFrames = Math.max(1, (int) dialog.getNextNumber());
+        magnification = dialog.getNextNumber();
+        maxDrift = dialog.getNextNumber();
+        
+        IJ.log("DriftCorrection Settings: ");
+        IJ.log("  Enabled: " + (enabled ? "True" : "False"));
+        IJ.log("  Segment Length: " + segmentFrames + " frames");
+        IJ.log("  Magnification: " + magnification);
+        IJ.log("  Maximum Drift: " + maxDrift + " nm");
+        
+        Prefs.set(ENABLED, enabled);
+        Prefs.set(SEGMENT, segmentFrames);
+        Prefs.set(MAGNIFICATION, magnification);
+        Prefs.set(MAX_DRIFT, maxDrift);
+    }
+    
+    @Override
+    public final LocalizationStore runPostProcess(
+            final AbstractParticleLocator locator,
+            final LocalizationStore store) {
+        
+        if (!enabled) {
+            return store;
+        }
+        
+        final ImageStack stack = locator.getStack();
+        final int frames = stack.getSize();
+        
+        // the last segment takes the frames left over
+        final int segments = frames / segmentFrames;
+        if (segments < 2) {
+            IJ.log("Drift Correction: the stack is shorter than two " 
+                    + "segments; nothing corrected");
+            return store;
+        }
+        
+        final double[] driftX = new double[segments];
+        final double[] driftY = new double[segments];
+        findDrift(store, stack.getWidth(), stack.getHeight(), frames, 
+                segments, maxDrift / locator.getPixelSize(), driftX, driftY);
+        
+        // interpolate the drift of every frame between segment middles,
+        // keeping it constant before the first and after the last
+        final float[] frameX = new float[frames + 1];
+        final float[] frameY = new float[frames + 1];
+        int s = 0;
+        
+        for (int n = 1; n <= frames; n++) {
+            while (s + 1 < segments 
+                    && findMiddle(s + 1, segments, frames) <= n - 1) {
+                s++;
+            }
+            
+            double t = 0;
+            if (s + 1 < segments) {
+                final double first = findMiddle(s, segments, frames);
+                t = Math.max(0, (n - 1 - first) 
+                        / (findMiddle(s + 1, segments, frames) - first));
+            }
+            
+            final int next = Math.min(s + 1, segments - 1);
+            frameX[n] = (float) (driftX[s] + t * (driftX[next] - driftX[s]));
+            frameY[n] = (float) (driftY[s] + t * (driftY[next] - driftY[s]));
+        }
+        
+        final ResultsTable table = new ResultsTable();
+        for (s = 0; s < segments; s++) {
+            table.incrementCounter();
+            table.addValue("Frame Number", 
+                    findMiddle(s, segments, frames) + 1);
+            table.addValue("X Drift (nm)", 
+                    driftX[s] * locator.getPixelSize());
+            table.addValue("Y Drift (nm)", 
+                    driftY[s] * locator.getPixelSize());
+        }
+        table.show("Drift");
+        
+        correct(store, frameX, frameY);
+        
+        return store;
+    }
+    
+    // the middle of a segment, counting frames from zero
+    private double findMiddle(final int segment, 
+                              final int segments, 
+                              final int frames) {
+        final int first = segment * segmentFrames;
+        final int end = segment + 1 == segments 
+                ? frames : first + segmentFrames;
+        return (first + end - 1) / 2.0;
+    }
+    
+    // finds the shift of every segment against the first (pixels)
+    private void findDrift(final LocalizationStore store,
+                           final int imageWidth,
+                           final int imageHeight,
+                           final int frames,
+                           final int segments,
+                           final double maxShift,
+                           final double[] driftX,
+                           final double[] driftY) {
+        
+        // the scale of the rendered segments, and their padded size
+        final double scale = Math.min(magnification, 
+                (double) MAX_CANVAS / Math.max(imageWidth, imageHeight));
+        final int width = FourierTransform.findSize(
+                (int) Math.ceil(imageWidth * scale));
+        final int height = FourierTransform.findSize(
+                (int) Math.ceil(imageHeight * scale));
+        final FourierTransform fft = new FourierTransform(width, height);
+        
+        // the largest shift searched, in rendered pixels
+        final int reachX = (int) Math.min(width / 2 - 1, 
+                Math.ceil(maxShift * scale));
+        final int reachY = (int) Math.min(height / 2 - 1, 
+                Math.ceil(maxShift * scale));
+        
+        // sort references to the localizations by segment
+        final List<LocalizationStore.Chunk> chunks = store.getChunks();
+        final int[] start = new int[segments + 1];
+        final int[] sorted = LocalizationStore.sortByKey(chunks, segments,
+                new LocalizationStore.Key() {
+                    @Override
+                    public int getKey(final LocalizationStore.Chunk chunk, 
+                                      final int index) {
+                        return findSegment(chunk.getFrames()[index], 
+                                segments);
+                    }
+                }, start);
+        
+        // the blur of both segments, applied to their cross-power spectrum
+        final double[] filterX = findFilter(width);
+        final double[] filterY = findFilter(height);
+        
+        // the spectrum of the first segment is the reference
+        final double[] referenceRe = new double[width * height];
+        final double[] referenceIm = new double[width * height];
+        render(chunks, sorted, start[0], start[1], scale, width, height, 
+                referenceRe);
+        fft.transform(referenceRe, referenceIm, false);
+        
+        final double[] re = new double[width * height];
+        final double[] im = new double[width * height];
+        
+        for (int s = 1; s < segments; s++) {
+            IJ.showStatus("Correcting drift: " + s + "/" + (segments - 1));
+            
+            Arrays.fill(re, 0);
+            Arrays.fill(im, 0);
+            render(chunks, sorted, start[s], start[s + 1], scale, width, 
+                    height, re);
+            fft.transform(re, im, false);
+            
+            // multiply by the conjugate of the reference
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    final int i = y * width + x;
+                    final double filter = filterX[x] * filterY[y];
+                    final double r = re[i] * referenceRe[i] 
+                            + im[i] * referenceIm[i];
+                    final double j = im[i] * referenceRe[i] 
+                            - re[i] * referenceIm[i];
+                    re[i] = r * filter;
+                    im[i] = j * filter;
+                }
+            }
+            
+            fft.transform(re, im, true);
+            
+            // the peak of the correlation within the largest shift, 
+            // refined by a parabola along either axis; shifts wrap around
+            int px = 0;
+            int py = 0;
+            
+            for (int j = -reachY; j <= reachY; j++) {
+                final int row = ((j + height) % height) * width;
+                
+                for (int i = -reachX; i <= reachX; i++) {
+                    final int x = (i + width) % width;
+                    if (re[row + x] > re[py * width + px]) {
+                        px = x;
+                        py = (j + height) % height;
+                    }
+                }
+            }
+            
+            final int peak = py * width + px;
+            
+            final double dx = px + refine(
+                    re[py * width + (px + width - 1) % width], re[peak], 
+                    re[py * width + (px + 1) % width]);
+            final double dy = py + refine(
+                    re[((py + height - 1) % height) * width + px], re[peak], 
+                    re[((py + 1) % height) * width + px]);
+            
+            driftX[s] = (dx > width / 2 ? dx - width : dx) / scale;
+            driftY[s] = (dy > height / 2 ? dy - height : dy) / scale;
+        }
+    }
+    
+    // the segment of a frame
+    private int findSegment(final int frame, final int segments) {
+        return Math.max(0, Math.min((frame - 1) / segmentFrames, 
+                segments - 1));
+    }
+    
+    // the transfer function of the blur of both segments along one axis
+    private static double[] findFilter(final int size) {
+        final double[] filter = new double[size];
+        
+        for (int k = 0; k < size; k++) {
+            final double frequency = (double) (k <= size / 2 ? k : k - size) 
+                    / size;
+            filter[k] = Math.exp(-4.0 * Math.PI * Math.PI * BLUR * BLUR 
+                    * frequency * frequency);
+        }
+        
+        return filter;
+    }
+    
+    // counts the localizations of a segment into a rendered image
+    private static void render(final List<LocalizationStore.Chunk> chunks,
+                               final int[] sorted,
+                               final int from,
+                               final int to,
+                               final double scale,
+                               final int width,
+                               final int height,
+                               final double[] pixels) {
+        
+        for (int i = from; i < to; i++) {
+            final LocalizationStore.Chunk chunk = 
+                    chunks.get(LocalizationStore.getChunkNumber(sorted[i]));
+            final int k = LocalizationStore.getIndex(sorted[i]);
+            
+            final double x = chunk.getX()[k] * scale;
+            final double y = chunk.getY()[k] * scale;
+            
+            if (x >= 0 && y >= 0 && x < width && y < height) {
+                pixels[(int) y * width + (int) x]++;
+            }
+        }
+    }
+    
+    // the offset of the vertex of a parabola through three points
+    private static double refine(final double before, 
+                                 final double peak, 
+                                 final double after) {
+        final double curvature = before - 2.0 * peak + after;
+        if (!(curvature < 0)) {
+            return 0;
+        }
+        
+        return Math.max(-0.5, Math.min(0.5, 
+                (before - after) / (2.0 * curvature)));
+    }
+    
+    // subtracts the drift of every frame from its localizations, sharing
+    // the chunks out between all processors
+    private static void correct(final LocalizationStore store,
+                                final float[] frameX,
+                                final float[] frameY) {
+        
+        final List<LocalizationStore.Chunk> chunks = store.getChunks();
+        final AtomicInteger next = new AtomicInteger(0);
+        
+        ParallelRunner.run("Drift", new ParallelRunner.Task() {
+            @Override
+            public void run(final int thread) {
+                for (int c = next.getAndIncrement(); c < chunks.size(); 
+                        c = next.getAndIncrement()) {
+                    final LocalizationStore.Chunk chunk = chunks.get(c);
+                    final int[] frame = chunk.getFrames();
+                    final float[] x = chunk.getX();
+                    final float[] y = chunk.getY();
+                    
+                    for (int k = 0; k < chunk.size(); k++) {
+                        final int n = Math.max(0, Math.min(frame[k], 
+                                frameX.length - 1));
+                        x[k] -= frameX[n];
+                        y[k] -= frameY[n];
+                    }
+                }
+            }
+        });
+    }
+}
@@ -21,12 +21,11 @@
  */
 
 import java.awt.Font;
-import java.awt.Point;
+import java.util.BitSet;
 
 import ij.IJ;
 import ij.Prefs;
 import ij.gui.GenericDialog;
-import ij.process.ImageProcessor;
 
 import static java.lang.Math.abs;
 import static java.lang.Math.sqrt;
@@ -35,7 +34,7 @@ import static java.lang.Math.sqrt;
  * This class rejects a location based on it's ellipticity.
  */
 public class EllipticityRejector 
-implements ImageProcess, SettingsDialog, DebugStats {
+implements FrameProcess, SettingsDialog, DebugStats {
     
     private static final double ELLIPTICITY_DEF = 0.5;
     private static final int DEFAULT_RADIUS = 3;
@@ -59,138 +58,153 @@ implements ImageProcess, SettingsDialog, DebugStats {
 
     @Override
     public final boolean runProcess(final ImageContext context, 
-                              final Point location) {
+                              final FitRecord record) {
         
         // check if enabled
         if (!enabled) {
             return true;
         }
         
-        final Window window = 
-                new Window(
-                        location.y - testingRadius,
-                        location.y + testingRadius - 1,
-                        location.x - testingRadius,
-                        location.x + testingRadius - 1);
-        
-        window.left = (window.left >= 0) 
-                        ? window.left : 0;
-        window.right = (window.right < context.getWidth()) 
-                        ? window.right : context.getWidth() - 1;
-        window.top = (window.top >= 0) 
-                        ? window.top : 0;
-        window.bottom = (window.bottom < context.getHeight()) 
-                        ? window.bottom : context.getHeight() - 1;
-        
-        final double[] centroid = findCentroid(context, window);
-        final double[] moment = findSecondMoments(context, window, centroid);
-        final double[] eigenValues = findEigenValues(moment);            
-        
-        if (eigenValues.length != 2) {
-            synchronized (this) {
-                totalFailed++;
-            }
-            return false;
+        final double difference = testCandidate(context, record);
+        final boolean passed = difference < ellipThresh;
+        
+        // update debugging counters
+        addCounts(passed ? 1 : 0, passed ? 0 : 1, difference);
+
+        return passed;
+    }
+    
+    @Override
+    public final int getReach() {
+        return enabled ? testingRadius : 0;
+    }
+    
+    @Override
+    public final void runFrame(final ImageContext context, 
+                               final FrameCandidates candidates, 
+                               final BitSet passed) {
+        
+        // check if enabled
+        if (!enabled) {
+            return;
         }
         
-        final double difference = 
-            abs(2.0 * (eigenValues[0] - eigenValues[1]) 
-                    / (eigenValues[0] + eigenValues[1]));
+        int passes = 0;
+        int failures = 0;
+        double differences = 0;
         
-        // update debugging counters
-        synchronized (this) {
+        for (int i = passed.nextSetBit(0); i >= 0; 
+                i = passed.nextSetBit(i + 1)) {
+            
+            final double difference = 
+                    testCandidate(context, candidates.getRecord(i));
+            
             if (difference < ellipThresh) {
-                totalPassed++;
+                passes++;
             } else {
-                totalFailed++;
+                failures++;
+                passed.clear(i);
             }
             
-            totalAttempts++;
-            sumOfDifference += difference;
+            differences += difference;
         }
         
-        if (difference >= ellipThresh) {
-            context.setProcessed(window);
-        }
-
-        return difference < ellipThresh;
+        // update debugging counters once for the whole round
+        addCounts(passes, failures, differences);
     }
-
-    private static double[] findEigenValues(final double[] moment) {
-        
-        final double[] eigenValues = {0.0, 0.0};
-        final double first = moment[0] + moment[1];
-        final double diff = moment[0] - moment[1];
-        final double last = sqrt(4.0 * moment[2] * moment[2] + diff * diff);
-        
-        eigenValues[0] = (first + last) / 2.0;
-        eigenValues[1] = (first - last) / 2.0;
+    
+    // finds the difference of a candidate and marks its testing window as
+    // processed if it is rejected
+    private double testCandidate(final ImageContext context, 
+                                 final FitRecord record) {
         
-        return eigenValues;
-    }
-
-    private static double[] findSecondMoments(final ImageContext context,
-                                              final Window window, 
-                                              final double[] centroid) {
+        final int x = record.getCandidateX();
+        final int y = record.getCandidateY();
         
-        final ImageProcessor image = context.getImage();
+        // the testing window, clipped to the image
+        record.setWindow(
+                Math.max(y - testingRadius, 0),
+                Math.min(y + testingRadius - 1, context.getHeight() - 1),
+                Math.max(x - testingRadius, 0),
+                Math.min(x + testingRadius - 1, context.getWidth() - 1));
         
-        final double[] moment = {0.0, 0.0, 0.0};
-        double sum = 0;
+        final Window window = record.getWindow();
+        final double difference = findDifference(
+                record.extract(context, testingRadius), window, 
+                context.getEstimatedNoise());
         
-        // find second moments
-        for (int x = window.left; x <= window.right; x++) {
-            for (int y = window.top; y <= window.bottom; y++) {
-                
-                final double intensity = image.get(x, y) - context.getEstimatedNoise();
-                
-                moment[0] += intensity * x * x;
-                moment[1] += intensity * y * y;
-                moment[2] += intensity * x * y;
-                
-                sum += intensity;
-            }
+        if (difference >= ellipThresh) {
+            context.setProcessed(window);
         }
         
-        // divide by sum
-        for (int i = 0; i < moment.length; i++) {
-            moment[i] /= sum;
+        return difference;
+    }
+    
+    // adds to the debugging counters
+    private void addCounts(final int passes, 
+                           final int failures, 
+                           final double differences) {
+        synchronized (this) {
+            totalPassed += passes;
+            totalFailed += failures;
+            totalAttempts += passes + failures;
+            sumOfDifference += differences;
         }
-        
-        moment[0] -= centroid[0]*centroid[0];
-        moment[1] -= centroid[1]*centroid[1];
-        moment[2] -= centroid[0]*centroid[1];
-        
-        return moment;
     }
 
-    private static double[] findCentroid(final ImageContext context,
-                                         final Window window) {
+    // finds the relative difference between the eigenvalues of the second 
+    // central moments, accumulating all moments in a single pass
+    private static double findDifference(final CandidateWindow pixels,
+                                         final Window window,
+                                         final double noise) {
         
-        final ImageProcessor image = context.getImage();
+        final double[] data = pixels.getPixels();
+        final int stride = pixels.getWidth();
         
-        final double[] centroid = {0.0, 0.0};
         double sum = 0;
+        double sumX = 0;
+        double sumY = 0;
+        double sumXX = 0;
+        double sumYY = 0;
+        double sumXY = 0;
         
-        // find second moments
-        for (int x = window.left; x <= window.right; x++) {
-            for (int y = window.top; y <= window.bottom; y++) {
+        // accumulate the first and second moments together, row by row
+        for (int y = window.top; y <= window.bottom; y++) {
+            final int row = (y - pixels.getTop()) * stride - pixels.getLeft();
+            
+            for (int x = window.left; x <= window.right; x++) {
                 
-                final double intensity = image.get(x, y) - context.getEstimatedNoise();
+                final double intensity = data[row + x] - noise;
                 
-                centroid[0] += intensity * x;
-                centroid[1] += intensity * y;
+                sumX += intensity * x;
+                sumY += intensity * y;
+                sumXX += intensity * x * x;
+                sumYY += intensity * y * y;
+                sumXY += intensity * x * y;
                 
                 sum += intensity;
             }
         }
         
-        // divide by sum
-        for (int i = 0; i < centroid.length; i++) {
-            centroid[i] /= sum;
-        }
+        // find the centroid
+        final double centroidX = sumX / sum;
+        final double centroidY = sumY / sum;
+        
+        // find the second central moments
+        final double momentXX = sumXX / sum - centroidX * centroidX;
+        final double momentYY = sumYY / sum - centroidY * centroidY;
+        final double momentXY = sumXY / sum - centroidX * centroidY;
+        
+        // find the eigenvalues
+        final double first = momentXX + momentYY;
+        final double diff = momentXX - momentYY;
+        final double last = sqrt(4.0 * momentXY * momentXY + diff * diff);
+        
+        final double eigenValue0 = (first + last) / 2.0;
+        final double eigenValue1 = (first - last) / 2.0;
         
-        return centroid;
+        return abs(2.0 * (eigenValue0 - eigenValue1) 
+                / (eigenValue0 + eigenValue1));
     }
 
     @Override
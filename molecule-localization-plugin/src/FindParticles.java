@@ -20,30 +20,50 @@
  * Program for Education and Research in Biotechnology (CSUPERB).
  */
 
-import java.awt.Point;
-import java.util.Comparator;
-import java.util.PriorityQueue;
-
-import ij.process.ImageProcessor;
+import java.util.Arrays;
 
 /**
  * Searches for all potential pixels and stores them for later retrieval.
+ * 
+ * <p>Each candidate is packed into a long (the bits of its photon count in
+ * the upper and the pixel index in the lower 32 bits; positive floats sort 
+ * like their bits) and the candidates are sorted, so 
+ * the search does not allocate per candidate.  An instance can be reused
+ * for every image slice searched by a thread.
  */
 public class FindParticles {
     
-    private final ImageContext context; // the current image context
-    private Point next = null;          // the location of the next spot
+    private ImageContext context;       // the current image context
+    private int next = -1;              // the pixel index of the next spot
     private boolean ready = false;      // is the next spot is ready
     private boolean found = true;       // indicates if there is another spot
-    private final int threshold;        // the threshold at which spots occur
-    private final PriorityQueue<WeightedPoint> queue;
+    private double threshold;           // the threshold at which spots occur
+    private long[] candidates = new long[0];
+    private int remaining;              // candidates left (taken from the end)
+    
+    /**
+     * Creates a search without an image; call {@link #search(ImageContext)}
+     * before retrieving any spots.
+     */
+    public FindParticles() {
+        found = false;
+        ready = true;
+    }
     
     /**
-     * Default constructor.
+     * Creates a search of the given image.
      * @param context the image context to work from
      */
     public FindParticles(final ImageContext context) {
-        this.context = context;
+        search(context);
+    }
+    
+    /**
+     * Starts a new search of the given image.
+     * @param imageContext the image context to work from
+     */
+    public final void search(final ImageContext imageContext) {
+        context = imageContext;
 
         // get signal-to-noise ratio
         final double snr = context.getLocatorContext().getSignalToNoiseRatio();
@@ -51,46 +71,77 @@ public class FindParticles {
         // estimate background noise
         final double noise = context.getEstimatedNoise();
         
-        // calculate noise threshold
-        threshold = (int) Math.round(snr * noise);
-        
-        final Comparator<WeightedPoint> comparator = 
-            new WeightedPoint.WeightedPointComparator();
-        
-        queue = new PriorityQueue<WeightedPoint>(10, comparator);
+        // calculate noise threshold; only positive counts are candidates, 
+        // so that their bits sort like the counts
+        threshold = Math.max(snr * noise, 0);
         
-        // fill a queue of spots to look at
+        // fill a queue of spots to look at (brightest last)
         fillQueue();
+        Arrays.sort(candidates, 0, remaining);
+        
+        ready = false;
+        found = true;
     }
     
     // enqueue all of the potential particle locations.
     private void fillQueue() {
-        final ImageProcessor image = context.getImage();
+        final float[] photons = context.getPhotons();
+        final BlockSummary blocks = context.getBlocks();
+        final int width = context.getWidth();
+        final int height = context.getHeight();
+        final int size = BlockSummary.BLOCK_SIZE;
+        
+        remaining = 0;
         
-        // find the next, unprocessed max
-        for (int i = 0; i < image.getWidth(); i++) {
-            for (int j = 0; j < image.getHeight(); j++) {
-                final int intensity = image.get(i, j);
-                if (intensity > threshold) {
-                    queue.add(new WeightedPoint(i, j, intensity));
+        // look only inside the blocks that reach above the threshold
+        for (int by = 0; by < blocks.getBlocksY(); by++) {
+            for (int bx = 0; bx < blocks.getBlocksX(); bx++) {
+                if (!(blocks.getMax(bx, by) > threshold)) {
+                    continue;
+                }
+                
+                final int right = Math.min((bx + 1) * size, width);
+                final int bottom = Math.min((by + 1) * size, height);
+                
+                for (int j = by * size; j < bottom; j++) {
+                    for (int i = bx * size; i < right; i++) {
+                        final float intensity = photons[j * width + i];
+                        if (intensity > threshold) {
+                            add(((long) Float.floatToIntBits(intensity) << 32)
+                                    | (j * width + i));
+                        }
+                    }
                 }
             }
         }
     }
     
+    // appends a packed candidate, growing the buffer if needed
+    private void add(final long candidate) {
+        if (remaining == candidates.length) {
+            candidates = Arrays.copyOf(candidates, 
+                    Math.max(2 * remaining, 1024));
+        }
+        
+        candidates[remaining++] = candidate;
+    }
+    
     // readies the next location in the queue
     private void findLocation() {
-        do {
-            next = queue.poll();
+        next = -1;
+        
+        while (remaining > 0) {
+            final int index = (int) candidates[--remaining];
             
-            if (next == null) {
+            if (!context.isProcessed(index % context.getWidth(), 
+                    index / context.getWidth())) {
+                next = index;
                 break;
             }
-            
-        } while (context.isProcessed(next.x, next.y));
+        }
         
         // has a max been found?
-        if (next == null) {
+        if (next < 0) {
             found = false;
         } else {
             found = true;
@@ -113,9 +164,10 @@ public class FindParticles {
     
     /**
      * Retrieves the next point in the image.
-     * @return the next point
+     * @return the pixel index of the next point (y * width + x); 
+     * -1 if there is none
      */
-    public final Point getNext() {
+    public final int getNext() {
         if (!ready) {
             findLocation();
         }
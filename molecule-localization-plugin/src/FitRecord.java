@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+
+import java.util.Arrays;
+
+/**
+ * The candidate pixel passed through the image processes along with the
+ * results they produce.  Records are pooled per thread and reset for every
+ * candidate, so the processes do not allocate.
+ */
+public class FitRecord {
+
+    // values stored per additional particle: x, y, photons, precision
+    private static final int EMITTER_FIELDS = 4;
+
+    private int candidateX;
+    private int candidateY;
+
+    // the region to mark as processed
+    private final Window window = new Window(0, 0, 0, 0);
+
+    // the pixels around the candidate, shared by the processes
+    private final CandidateWindow pixels = new CandidateWindow();
+
+    private double x;
+    private double y;
+    private double photonCount;
+    private double background;
+    private double precision;
+
+    // additional particles fitted along with the primary one
+    private int emitters;
+    private double[] emitterData = new double[0];
+
+    /**
+     * Starts a new candidate and clears the previous results.
+     * @param pixelX the x-coordinate of the candidate pixel
+     * @param pixelY the y-coordinate of the candidate pixel
+     */
+    public final void reset(final int pixelX, final int pixelY) {
+        candidateX = pixelX;
+        candidateY = pixelY;
+        x = Double.NaN;
+        y = Double.NaN;
+        photonCount = Double.NaN;
+        background = Double.NaN;
+        precision = Double.NaN;
+        emitters = 0;
+        pixels.invalidate();
+    }
+
+    /**
+     * @return the x-coordinate of the candidate pixel
+     */
+    public final int getCandidateX() {
+        return candidateX;
+    }
+
+    /**
+     * @return the y-coordinate of the candidate pixel
+     */
+    public final int getCandidateY() {
+        return candidateY;
+    }
+
+    /**
+     * Retrieves the pixels around the candidate in photons, extracting them
+     * from the image only if no process has asked for the same radius.
+     * @param context the current image context
+     * @param radius the distance from the candidate to the edges of the
+     * window (before clipping to the image)
+     * @return the pixels around the candidate
+     */
+    public final CandidateWindow extract(final ImageContext context,
+                                         final int radius) {
+        pixels.extract(context, candidateX, candidateY, radius);
+        return pixels;
+    }
+
+    /**
+     * Retrieves the region to mark as processed if the candidate passes.
+     * Processes update the window in place.
+     * @return the window of this record
+     */
+    public final Window getWindow() {
+        return window;
+    }
+
+    /**
+     * Sets the region to mark as processed.
+     * @param top the top of the window
+     * @param bottom the bottom of the window
+     * @param left the left side of the window
+     * @param right the right side of the window
+     */
+    public final void setWindow(final int top, final int bottom,
+                                final int left, final int right) {
+        window.top = top;
+        window.bottom = bottom;
+        window.left = left;
+        window.right = right;
+    }
+
+    /**
+     * Sets the position of the particle.
+     * @param positionX the x-coordinate in pixels
+     * @param positionY the y-coordinate in pixels
+     */
+    public final void setPosition(final double positionX,
+                                  final double positionY) {
+        x = positionX;
+        y = positionY;
+    }
+
+    /**
+     * @return the x-coordinate of the particle in pixels
+     */
+    public final double getX() {
+        return x;
+    }
+
+    /**
+     * @return the y-coordinate of the particle in pixels
+     */
+    public final double getY() {
+        return y;
+    }
+
+    /**
+     * @param estimate the estimated photon count of the particle
+     */
+    public final void setPhotonCount(final double estimate) {
+        photonCount = estimate;
+    }
+
+    /**
+     * @return the estimated photon count of the particle
+     */
+    public final double getPhotonCount() {
+        return photonCount;
+    }
+
+    /**
+     * @param estimate the estimated background level per pixel
+     */
+    public final void setBackgroundLevel(final double estimate) {
+        background = estimate;
+    }
+
+    /**
+     * @return the estimated background level per pixel
+     */
+    public final double getBackgroundLevel() {
+        return background;
+    }
+
+    /**
+     * Sets the localization precision (the Cramer-Rao bound on the position).
+     * @param estimate the localization precision in nm; NaN if not available
+     */
+    public final void setPrecision(final double estimate) {
+        precision = estimate;
+    }
+
+    /**
+     * @return the localization precision in nm; NaN if not available
+     */
+    public final double getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Adds a particle that was fitted together with the primary particle
+     * (e.g. a close neighbor in the same window).
+     * @param emitterX the x-coordinate in pixels
+     * @param emitterY the y-coordinate in pixels
+     * @param photons the estimated photon count
+     * @param precisionEstimate the localization precision in nm (or NaN)
+     */
+    public final void addEmitter(final double emitterX, final double emitterY,
+            final double photons, final double precisionEstimate) {
+        if (emitterData.length < (emitters + 1) * EMITTER_FIELDS) {
+            emitterData = Arrays.copyOf(emitterData,
+                    2 * (emitters + 1) * EMITTER_FIELDS);
+        }
+
+        final int i = emitters * EMITTER_FIELDS;
+        emitterData[i] = emitterX;
+        emitterData[i + 1] = emitterY;
+        emitterData[i + 2] = photons;
+        emitterData[i + 3] = precisionEstimate;
+        emitters++;
+    }
+
+    /**
+     * @return the number of additional particles
+     */
+    public final int getEmitterCount() {
+        return emitters;
+    }
+
+    /**
+     * @param index the index of the additional particle
+     * @return the x-coordinate in pixels
+     */
+    public final double getEmitterX(final int index) {
+        return emitterData[index * EMITTER_FIELDS];
+    }
+
+    /**
+     * @param index the index of the additional particle
+     * @return the y-coordinate in pixels
+     */
+    public final double getEmitterY(final int index) {
+        return emitterData[index * EMITTER_FIELDS + 1];
+    }
+
+    /**
+     * @param index the index of the additional particle
+     * @return the estimated photon count
+     */
+    public final double getEmitterPhotonCount(final int index) {
+        return emitterData[index * EMITTER_FIELDS + 2];
+    }
+
+    /**
+     * @param index the index of the additional particle
+     * @return the localization precision in nm; NaN if not available
+     */
+    public final double getEmitterPrecision(final int index) {
+        return emitterData[index * EMITTER_FIELDS + 3];
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+
+import java.awt.Font;
+import java.util.BitSet;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+
+/**
+ * Runs the fitter chosen in the settings dialog as the final image process.
+ * Every fitter shows its own settings, and only the chosen one is run and
+ * logs its counters.  Rounds of candidates are passed through when the 
+ * chosen fitter supports them.
+ */
+public class FitterSelector
+implements FrameProcess, SettingsDialog, DebugStats {
+
+    private static final String FITTER =
+            "Localize_Particles.FitterSelector.fitter";
+
+    // the names of the fitters, in the same order as the fitters
+    private static final String[] NAMES = {
+        "Maximum Likelihood",
+        "Radial Symmetry",
+        "Phasor"
+    };
+
+    private final MaximumLikelihoodEstimator mle;
+    private final RadialSymmetryLocalizer radial;
+    private final PhasorLocalizer phasor;
+
+    // the chosen fitter, and the same run on rounds of candidates
+    private ImageProcess fitter;
+    private FrameProcess frameFitter;
+
+    /**
+     * Creates the selector along with all of the fitters it chooses from.
+     */
+    public FitterSelector() {
+        mle = new MaximumLikelihoodEstimator();
+        radial = new RadialSymmetryLocalizer();
+        phasor = new PhasorLocalizer();
+        fitter = mle;
+        frameFitter = mle;
+    }
+
+    @Override
+    public final boolean runProcess(final ImageContext context,
+                                    final FitRecord record) {
+        return fitter.runProcess(context, record);
+    }
+
+    @Override
+    public final int getReach() {
+        return frameFitter.getReach();
+    }
+
+    @Override
+    public final void runFrame(final ImageContext context,
+                               final FrameCandidates candidates,
+                               final BitSet passed) {
+        frameFitter.runFrame(context, candidates, passed);
+    }
+
+    @Override
+    public final void displaySettings(final GenericDialog dialog,
+                                      final Font header) {
+        dialog.addMessage("Fitter", header);
+        dialog.addChoice("Fitter", NAMES, Prefs.get(FITTER, NAMES[0]));
+
+        mle.displaySettings(dialog, header);
+        radial.displaySettings(dialog, header);
+        phasor.displaySettings(dialog, header);
+    }
+
+    @Override
+    public final void saveSettings(final GenericDialog dialog) {
+        final String fitterName = dialog.getNextChoice();
+
+        if (fitterName.equals(NAMES[1])) {
+            fitter = radial;
+        } else if (fitterName.equals(NAMES[2])) {
+            fitter = phasor;
+        } else {
+            fitter = mle;
+        }
+
+        IJ.log("Fitter: " + fitterName);
+
+        Prefs.set(FITTER, fitterName);
+
+        mle.saveSettings(dialog);
+        radial.saveSettings(dialog);
+        phasor.saveSettings(dialog);
+        
+        // the windows of the other fitters reach as far as their radius
+        if (fitter == radial) {
+            frameFitter = new FrameProcessAdapter(radial, radial.getRadius());
+        } else if (fitter == phasor) {
+            frameFitter = new FrameProcessAdapter(phasor, phasor.getRadius());
+        } else {
+            frameFitter = mle;
+        }
+    }
+
+    @Override
+    public final void resetCounters() {
+        mle.resetCounters();
+        radial.resetCounters();
+        phasor.resetCounters();
+    }
+
+    @Override
+    public final void logCounters() {
+        ((DebugStats) fitter).logCounters();
+    }
+}
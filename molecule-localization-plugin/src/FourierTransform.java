@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A two-dimensional fast Fourier transform of complex images whose width 
+ * and height are powers of two.  The rows, and then the columns, are 
+ * transformed in place by the radix-2 algorithm, shared out between all 
+ * processors.  The transform is not normalized; the inverse divides by the
+ * number of pixels.  A transform may be used by one caller at a time.
+ */
+public class FourierTransform {
+    
+    private final int width;
+    private final int height;
+    
+    // the roots of unity for the longer of the two sides
+    private final double[] cosine;
+    private final double[] sine;
+    
+    /**
+     * Prepares the transform of images of a given size.
+     * @param width the width of the images; a power of two
+     * @param height the height of the images; a power of two
+     */
+    public FourierTransform(final int width, final int height) {
+        if (Integer.bitCount(width) != 1 || Integer.bitCount(height) != 1) {
+            throw new IllegalArgumentException(
+                    "The size must be a power of two.");
+        }
+        
+        this.width = width;
+        this.height = height;
+        
+        final int size = Math.max(width, height);
+        cosine = new double[size / 2];
+        sine = new double[size / 2];
+        
+        for (int i = 0; i < size / 2; i++) {
+            cosine[i] = Math.cos(2.0 * Math.PI * i / size);
+            sine[i] = Math.sin(2.0 * Math.PI * i / size);
+        }
+    }
+    
+    /**
+     * Finds the size to pad to.
+     * @param size a positive size
+     * @return the smallest power of two that is at least the size
+     */
+    public static int findSize(final int size) {
+        return Integer.highestOneBit(Math.max(size, 1) * 2 - 1);
+    }
+    
+    /**
+     * Transforms an image in place.
+     * @param real the real parts, row by row
+     * @param imaginary the imaginary parts, row by row
+     * @param inverse true for the inverse transform
+     */
+    public final void transform(final double[] real, 
+                                final double[] imaginary,
+                                final boolean inverse) {
+        
+        final AtomicInteger nextRow = new AtomicInteger(0);
+        final AtomicInteger nextColumn = new AtomicInteger(0);
+        
+        // the rows, and then the columns, which are copied out in turn
+        ParallelRunner.run("FFT", new ParallelRunner.Task() {
+            @Override
+            public void run(final int thread) {
+                final double[] re = new double[width];
+                final double[] im = new double[width];
+                
+                for (int y = nextRow.getAndIncrement(); y < height; 
+                        y = nextRow.getAndIncrement()) {
+                    System.arraycopy(real, y * width, re, 0, width);
+                    System.arraycopy(imaginary, y * width, im, 0, width);
+                    transform(re, im, width, inverse);
+                    System.arraycopy(re, 0, real, y * width, width);
+                    System.arraycopy(im, 0, imaginary, y * width, width);
+                }
+            }
+        });
+        
+        ParallelRunner.run("FFT", new ParallelRunner.Task() {
+            @Override
+            public void run(final int thread) {
+                final double[] re = new double[height];
+                final double[] im = new double[height];
+                
+                for (int x = nextColumn.getAndIncrement(); x < width; 
+                        x = nextColumn.getAndIncrement()) {
+                    for (int y = 0; y < height; y++) {
+                        re[y] = real[y * width + x];
+                        im[y] = imaginary[y * width + x];
+                    }
+                    
+                    transform(re, im, height, inverse);
+                    
+                    for (int y = 0; y < height; y++) {
+                        real[y * width + x] = re[y];
+                        imaginary[y * width + x] = im[y];
+                    }
+                }
+            }
+        });
+        
+        if (inverse) {
+            final double scale = 1.0 / (width * height);
+            for (int i = 0; i < real.length; i++) {
+                real[i] *= scale;
+                imaginary[i] *= scale;
+            }
+        }
+    }
+    
+    // transforms a sequence in place (iterative radix-2, decimation in time)
+    private void transform(final double[] re, 
+                           final double[] im, 
+                           final int n,
+                           final boolean inverse) {
+        
+        // reorder by bit-reversed index
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            
+            if (i < j) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        
+        // combine the transforms of twice the length at every pass
+        final int step = cosine.length * 2;
+        final double sign = inverse ? 1.0 : -1.0;
+        
+        for (int length = 2; length <= n; length <<= 1) {
+            final int half = length >> 1;
+            final int stride = step / length;
+            
+            for (int i = 0; i < n; i += length) {
+                for (int k = 0; k < half; k++) {
+                    final double wr = cosine[k * stride];
+                    final double wi = sign * sine[k * stride];
+                    
+                    final int a = i + k;
+                    final int b = a + half;
+                    final double tr = re[b] * wr - im[b] * wi;
+                    final double ti = re[b] * wi + im[b] * wr;
+                    
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+
+import java.util.Arrays;
+
+/**
+ * The candidates of an image slice, handed out in rounds.  The candidates of
+ * a round cannot mark one another as processed: no two lie within the reach
+ * of the processes, and none lies within the reach of an earlier candidate 
+ * that was put off until a later round.  Processing the rounds in order thus
+ * gives the same result as visiting the candidates one at a time, brightest 
+ * first.
+ *
+ * <p>The records are reused between rounds and slices.  A set of candidates 
+ * is not thread-safe; keep one per thread.
+ */
+public class FrameCandidates {
+    
+    // candidates not yet handed out (pixel indices, brightest first)
+    private int[] pending = new int[0];
+    private int pendingCount;
+    
+    // the round each pixel was last claimed in
+    private int[] claimed = new int[0];
+    private int round;
+    
+    private int width;
+    private int height;
+    
+    // records of the current round
+    private FitRecord[] records = new FitRecord[0];
+    private int count;
+    
+    /**
+     * Takes all of the candidates of a new slice.
+     * @param found the candidates in the order they should be visited
+     * @param imageWidth the width of the image
+     * @param imageHeight the height of the image
+     */
+    public final void start(final FindParticles found,
+                            final int imageWidth,
+                            final int imageHeight) {
+        
+        if (imageWidth * imageHeight != claimed.length) {
+            claimed = new int[imageWidth * imageHeight];
+            round = 0;
+        }
+        
+        width = imageWidth;
+        height = imageHeight;
+        pendingCount = 0;
+        count = 0;
+        
+        while (found.hasNext()) {
+            if (pendingCount == pending.length) {
+                pending = Arrays.copyOf(pending, 
+                        Math.max(2 * pendingCount, 256));
+            }
+            
+            pending[pendingCount++] = found.getNext();
+        }
+    }
+    
+    /**
+     * Selects the next round from the candidates that have not been marked
+     * as processed.
+     * @param context the current image context
+     * @param reach the largest reach of the processes (pixels)
+     * @return false if no candidates are left
+     */
+    public final boolean nextRound(final ImageContext context, 
+                                   final int reach) {
+        
+        // start over before the round number overflows
+        if (round == Integer.MAX_VALUE) {
+            Arrays.fill(claimed, 0);
+            round = 0;
+        }
+        
+        round++;
+        count = 0;
+        
+        // an unknown reach allows one candidate per round
+        final boolean single = reach >= Math.max(width, height);
+        int kept = 0;
+        
+        for (int k = 0; k < pendingCount; k++) {
+            final int index = pending[k];
+            final int x = index % width;
+            final int y = index / width;
+            
+            // dropped once an earlier round marked it
+            if (context.isProcessed(x, y)) {
+                continue;
+            }
+            
+            if (claimed[index] == round || (single && count > 0)) {
+                pending[kept++] = index;
+            } else {
+                addRecord(x, y);
+            }
+            
+            // put off later candidates this one could mark
+            if (!single) {
+                claim(x, y, reach);
+            }
+        }
+        
+        pendingCount = kept;
+        
+        return count > 0;
+    }
+    
+    // claims the pixels within reach of a candidate for this round
+    private void claim(final int x, final int y, final int reach) {
+        final int top = Math.max(y - reach, 0);
+        final int bottom = Math.min(y + reach, height - 1);
+        final int left = Math.max(x - reach, 0);
+        final int right = Math.min(x + reach, width - 1);
+        
+        for (int j = top; j <= bottom; j++) {
+            Arrays.fill(claimed, j * width + left, j * width + right + 1, 
+                    round);
+        }
+    }
+    
+    // resets the next record of the round, growing the pool if needed
+    private void addRecord(final int x, final int y) {
+        if (count == records.length) {
+            records = Arrays.copyOf(records, Math.max(2 * count, 16));
+            
+            for (int i = count; i < records.length; i++) {
+                records[i] = new FitRecord();
+            }
+        }
+        
+        records[count++].reset(x, y);
+    }
+    
+    /**
+     * @return the number of candidates in the current round
+     */
+    public final int getCount() {
+        return count;
+    }
+    
+    /**
+     * @param index the index of the candidate within the round
+     * @return the record of the candidate
+     */
+    public final FitRecord getRecord(final int index) {
+        return records[index];
+    }
+}
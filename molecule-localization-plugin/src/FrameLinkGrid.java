@@ -0,0 +1,319 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The open items of a frame-by-frame linking pass, such as the groups of a
+ * blink or the ends of tracks, kept on a uniform grid.  Each item has a 
+ * position and the last frame it was seen in, and is listed in the cell of
+ * its position, in a list linked both ways so that it can be moved or 
+ * removed at once.  Items are kept in slots that are reused once closed; 
+ * the owner keeps any data of its own in arrays indexed by slot, at least
+ * {@link #getCapacity()} long.
+ *
+ * <p>With cells at least as wide as the link distance, every item within 
+ * it lies in the nine cells around a point, so the work grows linearly 
+ * with the number of localizations.
+ */
+public class FrameLinkGrid {
+    
+    // the most cells along a side; the owner tests the exact distances, so
+    // larger cells only hold more items to test
+    private static final int MAX_CELLS_ACROSS = 2048;
+    
+    private final double cellSize;
+    private final int cellsX;
+    private final int cellsY;
+    private final int[] head;
+    
+    private int capacity;
+    private int[] next = new int[0];
+    private int[] previous = new int[0];
+    private int[] cell = new int[0];
+    private int[] last = new int[0];
+    private double[] x = new double[0];
+    private double[] y = new double[0];
+    
+    // the slots that are open, and the ones free for reuse
+    private int[] open = new int[0];
+    private int openCount;
+    private int[] free = new int[0];
+    private int freeCount;
+    
+    // the slots found by the last search
+    private int[] near = new int[256];
+    
+    /**
+     * @param linkDistance the link distance, which is the cell size unless
+     *        a side would have more than 2048 cells
+     * @param width the width of the image in pixels
+     * @param height the height of the image in pixels
+     */
+    public FrameLinkGrid(final double linkDistance, 
+                         final int width, 
+                         final int height) {
+        if (!(linkDistance > 0)) {
+            throw new IllegalArgumentException("The link distance must be "
+                    + "positive.");
+        }
+        
+        cellSize = Math.max(linkDistance, 
+                (double) Math.max(width, height) / MAX_CELLS_ACROSS);
+        cellsX = Math.max(1, Math.min(MAX_CELLS_ACROSS, 
+                (int) Math.ceil(width / cellSize)));
+        cellsY = Math.max(1, Math.min(MAX_CELLS_ACROSS, 
+                (int) Math.ceil(height / cellSize)));
+        head = new int[cellsX * cellsY];
+        Arrays.fill(head, -1);
+    }
+    
+    /**
+     * Sorts references to the localizations by frame, for visiting them 
+     * frame by frame.  Frames outside the stack are kept within it.
+     * @param chunks the chunks to sort
+     * @param frames the number of frames in the stack
+     * @param start filled with where each frame starts in the sorted 
+     *        references, followed by their number; frames + 2 long
+     * @return the sorted references
+     */
+    public static int[] sortByFrame(final List<LocalizationStore.Chunk> chunks,
+                                    final int frames,
+                                    final int[] start) {
+        return LocalizationStore.sortByKey(chunks, frames + 1,
+                new LocalizationStore.Key() {
+                    @Override
+                    public int getKey(final LocalizationStore.Chunk chunk, 
+                                      final int index) {
+                        return Math.max(0, 
+                                Math.min(chunk.getFrames()[index], frames));
+                    }
+                }, start);
+    }
+    
+    /**
+     * @return the number of slots; the slots in use are all below it
+     */
+    public final int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Opens an item that is not yet listed in any cell.
+     * @param frame the frame the item is last seen in
+     * @return the slot of the item
+     */
+    public final int open(final int frame) {
+        if (freeCount == 0) {
+            grow();
+        }
+        
+        final int s = free[--freeCount];
+        cell[s] = -1;
+        last[s] = frame;
+        open[openCount++] = s;
+        
+        return s;
+    }
+    
+    /**
+     * @param s the slot of an item
+     * @return the last frame the item was seen in
+     */
+    public final int getLast(final int s) {
+        return last[s];
+    }
+    
+    /**
+     * @param s the slot of an item
+     * @param frame the last frame the item was seen in
+     */
+    public final void setLast(final int s, final int frame) {
+        last[s] = frame;
+    }
+    
+    /**
+     * @param s the slot of an item
+     * @return the x-position of the item
+     */
+    public final double getX(final int s) {
+        return x[s];
+    }
+    
+    /**
+     * @param s the slot of an item
+     * @return the y-position of the item
+     */
+    public final double getY(final int s) {
+        return y[s];
+    }
+    
+    /**
+     * Moves an item and lists it in the cell of its new position.
+     * @param s the slot of the item
+     * @param px the x-position
+     * @param py the y-position
+     */
+    public final void place(final int s, final double px, final double py) {
+        x[s] = px;
+        y[s] = py;
+        
+        final int target = findCellY(py) * cellsX + findCellX(px);
+        if (cell[s] == target) {
+            return;
+        }
+        
+        unlink(s);
+        
+        cell[s] = target;
+        previous[s] = -1;
+        next[s] = head[target];
+        if (next[s] >= 0) {
+            previous[next[s]] = s;
+        }
+        head[target] = s;
+    }
+    
+    /**
+     * Finds the items listed in the nine cells around a point, which hold
+     * every item within the link distance of it.
+     * @param px the x-position
+     * @param py the y-position
+     * @return the number of items found, which are read with 
+     *         {@link #getNear(int)} until the next search
+     */
+    public final int findNear(final double px, final double py) {
+        final int cx = findCellX(px);
+        final int cy = findCellY(py);
+        int count = 0;
+        
+        for (int j = Math.max(cy - 1, 0); 
+                j <= Math.min(cy + 1, cellsY - 1); j++) {
+            for (int h = Math.max(cx - 1, 0); 
+                    h <= Math.min(cx + 1, cellsX - 1); h++) {
+                for (int s = head[j * cellsX + h]; s >= 0; s = next[s]) {
+                    if (count == near.length) {
+                        near = Arrays.copyOf(near, 2 * count);
+                    }
+                    near[count++] = s;
+                }
+            }
+        }
+        
+        return count;
+    }
+    
+    /**
+     * @param i the number of an item found by the last search
+     * @return the slot of the item
+     */
+    public final int getNear(final int i) {
+        return near[i];
+    }
+    
+    /**
+     * Closes the items last seen before a frame and frees their slots.
+     * @param frame the first frame items are kept open for
+     * @param closer told of each item before its slot is freed; may be 
+     *        null
+     */
+    public final void closeBefore(final int frame, final Closer closer) {
+        int kept = 0;
+        
+        for (int i = 0; i < openCount; i++) {
+            final int s = open[i];
+            
+            if (last[s] >= frame) {
+                open[kept++] = s;
+                continue;
+            }
+            
+            if (closer != null) {
+                closer.close(s);
+            }
+            
+            unlink(s);
+            free[freeCount++] = s;
+        }
+        
+        openCount = kept;
+    }
+    
+    /**
+     * Told of the items as they are closed.
+     */
+    public interface Closer {
+        /**
+         * @param s the slot of the item, still holding its data
+         */
+        void close(int s);
+    }
+    
+    private int findCellX(final double px) {
+        return Math.max(0, Math.min((int) Math.floor(px / cellSize), 
+                cellsX - 1));
+    }
+    
+    private int findCellY(final double py) {
+        return Math.max(0, Math.min((int) Math.floor(py / cellSize), 
+                cellsY - 1));
+    }
+    
+    // removes an item from the list of its cell
+    private void unlink(final int s) {
+        if (cell[s] < 0) {
+            return;
+        }
+        
+        if (previous[s] >= 0) {
+            next[previous[s]] = next[s];
+        } else {
+            head[cell[s]] = next[s];
+        }
+        
+        if (next[s] >= 0) {
+            previous[next[s]] = previous[s];
+        }
+        
+        cell[s] = -1;
+    }
+    
+    // doubles the number of slots
+    private void grow() {
+        final int size = Math.max(2 * capacity, 256);
+        
+        next = Arrays.copyOf(next, size);
+        previous = Arrays.copyOf(previous, size);
+        cell = Arrays.copyOf(cell, size);
+        last = Arrays.copyOf(last, size);
+        x = Arrays.copyOf(x, size);
+        y = Arrays.copyOf(y, size);
+        open = Arrays.copyOf(open, size);
+        free = Arrays.copyOf(free, size);
+        
+        for (int s = size - 1; s >= capacity; s--) {
+            free[freeCount++] = s;
+        }
+        
+        capacity = size;
+    }
+}
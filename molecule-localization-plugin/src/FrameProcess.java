@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+
+import java.util.BitSet;
+
+/**
+ * An image process that tests all of the candidates of a round at once, so
+ * that it can share its setup and work across them.  A round never holds two
+ * candidates that could mark one another as processed, which gives the same
+ * result as visiting them one at a time.
+ *
+ * <p>Processes that only implement {@link ImageProcess} are run through a
+ * {@link FrameProcessAdapter}.
+ */
+public interface FrameProcess extends ImageProcess {
+    
+    /**
+     * Retrieves how far the regions marked as processed may reach.  This is
+     * the largest distance from a candidate to the edge of the window it 
+     * stores in its record or marks itself.  Only valid once the settings
+     * have been saved.
+     * @return the reach in pixels
+     */
+    int getReach();
+    
+    /**
+     * Runs the process on the candidates of a round.  Results are stored in
+     * the records for the processes that follow.
+     * @param context the current image context
+     * @param candidates the candidates of the round
+     * @param passed the candidates still being tested; the bits of the ones 
+     * rejected are cleared
+     */
+    void runFrame(ImageContext context, FrameCandidates candidates, 
+            BitSet passed);
+}
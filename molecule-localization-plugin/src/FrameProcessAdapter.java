@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+
+import java.util.BitSet;
+
+/**
+ * Runs an image process that tests one candidate at a time as a frame 
+ * process.  Unless its reach is given, every round holds a single candidate.
+ */
+public class FrameProcessAdapter implements FrameProcess {
+    
+    private final ImageProcess process;
+    private final int reach;
+    
+    /**
+     * Adapts a process whose reach is unknown.
+     * @param imageProcess the process to run on each candidate
+     */
+    public FrameProcessAdapter(final ImageProcess imageProcess) {
+        this(imageProcess, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Adapts a process that marks nothing farther than the given reach.
+     * @param imageProcess the process to run on each candidate
+     * @param processReach the reach of the process in pixels
+     */
+    public FrameProcessAdapter(final ImageProcess imageProcess, 
+                               final int processReach) {
+        process = imageProcess;
+        reach = processReach;
+    }
+    
+    @Override
+    public final boolean runProcess(final ImageContext context, 
+                                    final FitRecord record) {
+        return process.runProcess(context, record);
+    }
+    
+    @Override
+    public final int getReach() {
+        return reach;
+    }
+    
+    @Override
+    public final void runFrame(final ImageContext context, 
+                               final FrameCandidates candidates, 
+                               final BitSet passed) {
+        for (int i = passed.nextSetBit(0); i >= 0; 
+                i = passed.nextSetBit(i + 1)) {
+            if (!process.runProcess(context, candidates.getRecord(i))) {
+                passed.clear(i);
+            }
+        }
+    }
+}
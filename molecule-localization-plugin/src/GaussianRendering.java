@@ -0,0 +1,385 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+import java.awt.Font;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+
+/**
+ * Renders the localizations as Gaussians whose width is their precision: 
+ * the one found by the fit if there is one, or else the one found from the
+ * photon count and the background (Mortensen et al., Nature Methods 7, 
+ * 2010).  Each Gaussian holds a total of one, so the image is a density of
+ * localizations.
+ *
+ * <p>The image is written into a {@link ReconstructionPyramid} one row of
+ * square tiles at a time, so the heap never holds more than a row of tiles 
+ * however large the magnified image is.  The localizations are first 
+ * sorted into the tiles their Gaussians overlap, so the tiles of a row are
+ * rendered in parallel from their own lists, without locks.  The Gaussians 
+ * are separable and read from a table, so a pixel costs one multiply-add.
+ */
+public class GaussianRendering implements SettingsDialog {
+    
+    // the width and height of a tile in pixels of the rendered image
+    private static final int TILE_SIZE = ReconstructionPyramid.TILE_SIZE;
+    
+    // the value of a pixel holding the density of one localization
+    private static final int DENSITY_SCALE = 100;
+    
+    // Gaussians are cut off beyond this many standard deviations
+    private static final double CUTOFF = 3.0;
+    
+    // the narrowest Gaussian drawn, in rendered pixels, so that a Gaussian
+    // never falls between the pixel centers
+    private static final double MIN_SIGMA = 0.5;
+    
+    // samples per standard deviation of the tabulated Gaussian
+    private static final int TABLE_STEPS = 64;
+    
+    // the Gaussian exp(-u^2/2) tabulated for u from 0 to the cutoff
+    private static final float[] TABLE = new float[
+            (int) (CUTOFF * TABLE_STEPS) + 2];
+    
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            final double u = (double) i / TABLE_STEPS;
+            TABLE[i] = (float) Math.exp(-u * u / 2.0);
+        }
+    }
+    
+    private static final double PSF_WIDTH_DEF = 130.0;
+    private static final double MAGNIFICATION_DEF = 10.0;
+    private static final double MAX_PRECISION_DEF = 50.0;
+    
+    private static final String ENABLED = 
+            "Localize_Particles.GaussianRendering.enabled";
+    
+    private static final String PSF_WIDTH = 
+            "Localize_Particles.GaussianRendering.psf_width";
+    
+    private static final String MAGNIFICATION = 
+            "Localize_Particles.GaussianRendering.magnification";
+    
+    private static final String MAX_PRECISION = 
+            "Localize_Particles.GaussianRendering.max_precision";
+    
+    private boolean enabled;
+    private double psfWidth;                // standard deviation (nm)
+    private double magnification;
+    private double maxPrecision;            // widest Gaussian drawn (nm)
+    
+    @Override
+    public final void displaySettings(final GenericDialog dialog, 
+                                      final Font header) {
+        dialog.addMessage("Gaussian Rendering", header);
+        dialog.addCheckbox("Render Gaussians", Prefs.get(ENABLED, false));
+        dialog.addNumericField("PSF Standard Deviation", 
+                Prefs.get(PSF_WIDTH, PSF_WIDTH_DEF), 1, 6, "nm");
+        dialog.addNumericField("Gaussian Magnification", 
+                Prefs.get(MAGNIFICATION, MAGNIFICATION_DEF), 1, 6, "times");
+        dialog.addNumericField("Widest Gaussian", 
+                Prefs.get(MAX_PRECISION, MAX_PRECISION_DEF), 1, 6, "nm");
+    }
+    
+    @Override
+    public final void saveSettings(final GenericDialog dialog) {
+        enabled = dialog.getNextBoolean();
+        psfWidth = dialog.getNextNumber();
+        magnification = dialog.getNextNumber();
+        maxPrecision = dialog.getNextNumber();
+        
+        IJ.log("GaussianRendering Settings: ");
+        IJ.log("  Enabled: " + (enabled ? "True" : "False"));
+        IJ.log("  PSF Standard Deviation: " + psfWidth + " nm");
+        IJ.log("  Magnification: " + magnification);
+        IJ.log("  Widest Gaussian: " + maxPrecision + " nm");
+        
+        Prefs.set(ENABLED, enabled);
+        Prefs.set(PSF_WIDTH, psfWidth);
+        Prefs.set(MAGNIFICATION, magnification);
+        Prefs.set(MAX_PRECISION, maxPrecision);
+    }
+    
+    /**
+     * @return true if the Gaussian rendering was asked for
+     */
+    public final boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * @return the rendered pixels per image pixel
+     */
+    public final double getMagnification() {
+        return magnification;
+    }
+    
+    /**
+     * Finds the localization precision from the photon count and the 
+     * background, for a Gaussian PSF on square pixels.
+     * @param photons the photon count
+     * @param background the background level (photons per pixel)
+     * @param psfWidth the standard deviation of the PSF (nm)
+     * @param pixelSize the width of a pixel (nm)
+     * @return the standard deviation of the position (nm)
+     */
+    public static double findPrecision(final double photons,
+                                       final double background,
+                                       final double psfWidth,
+                                       final double pixelSize) {
+        
+        final double variance = psfWidth * psfWidth 
+                + pixelSize * pixelSize / 12.0;
+        
+        return Math.sqrt(variance / photons * (16.0 / 9.0 
+                + 8.0 * Math.PI * variance * Math.max(background, 0) 
+                        / (photons * pixelSize * pixelSize)));
+    }
+    
+    /**
+     * Renders the localizations into an empty pyramid and completes it, one
+     * row of tiles at a time, with the tiles of a row rendered on all 
+     * processors.  Every pixel holds the density in hundredths of a 
+     * localization, rounded.
+     * @param store the localizations to render
+     * @param pixelSize the width of an image pixel (nm)
+     * @param pyramid the pyramid to fill; level 0 covers the image at the 
+     * magnification of the rendering
+     * @throws IOException if the pyramid cannot be written
+     */
+    public final void render(final LocalizationStore store,
+                             final double pixelSize,
+                             final ReconstructionPyramid pyramid) 
+                             throws IOException {
+        
+        final List<LocalizationStore.Chunk> chunks = store.getChunks();
+        final int width = pyramid.getWidth(0);
+        final int height = pyramid.getHeight(0);
+        final int tilesX = pyramid.getTilesX(0);
+        final int tilesY = pyramid.getTilesY(0);
+        
+        // the standard deviation of every Gaussian in rendered pixels; 
+        // zero for the ones that are not drawn.  The precision found by the
+        // fit is used where there is one.
+        final float[][] sigmas = new float[chunks.size()][];
+        final double scale = magnification / pixelSize;
+        
+        for (int c = 0; c < chunks.size(); c++) {
+            final LocalizationStore.Chunk chunk = chunks.get(c);
+            final float[] photons = chunk.getPhotonCounts();
+            final float[] background = chunk.getBackgroundLevels();
+            final float[] fitted = chunk.getPrecisions();
+            
+            sigmas[c] = new float[chunk.size()];
+            
+            for (int k = 0; k < chunk.size(); k++) {
+                final double precision = fitted[k] > 0 
+                        && !Float.isInfinite(fitted[k]) 
+                        ? fitted[k] 
+                        : findPrecision(photons[k], background[k], 
+                                psfWidth, pixelSize);
+                
+                if (precision > 0 && precision <= maxPrecision) {
+                    sigmas[c][k] = (float) Math.max(precision * scale, 
+                            MIN_SIGMA);
+                }
+            }
+        }
+        
+        // count the Gaussians overlapping every tile, then sort references
+        // to them by tile
+        final int[] start = new int[tilesX * tilesY + 1];
+        forEachOverlap(chunks, sigmas, width, height, tilesX, start, null);
+        
+        for (int t = 0; t < tilesX * tilesY; t++) {
+            start[t + 1] += start[t];
+        }
+        
+        final int[] sorted = new int[start[tilesX * tilesY]];
+        forEachOverlap(chunks, sigmas, width, height, tilesX, 
+                start.clone(), sorted);
+        
+        // render the rows of tiles in turn; only the tiles that are hit 
+        // are made
+        for (int row = 0; row < tilesY; row++) {
+            final int top = row * TILE_SIZE;
+            final int first = row * tilesX;
+            final int[][] tiles = new int[tilesX][];
+            final AtomicInteger next = new AtomicInteger(0);
+            
+            ParallelRunner.run("Render", new ParallelRunner.Task() {
+                @Override
+                public void run(final int thread) {
+                    final float[] tile = new float[TILE_SIZE * TILE_SIZE];
+                    final float[] rowWeights = new float[TILE_SIZE];
+                    
+                    for (int column = next.getAndIncrement(); 
+                            column < tilesX; 
+                            column = next.getAndIncrement()) {
+                        final int t = first + column;
+                        
+                        if (start[t] < start[t + 1]) {
+                            tiles[column] = renderTile(chunks, sigmas, 
+                                    sorted, start[t], start[t + 1], 
+                                    column * TILE_SIZE, top, 
+                                    tile, rowWeights, width, height);
+                        }
+                    }
+                }
+            });
+            
+            pyramid.writeRow(row, tiles);
+        }
+        
+        pyramid.finish();
+    }
+    
+    // counts the tiles each Gaussian overlaps, or adds its reference to 
+    // them if a list to sort into is given
+    private void forEachOverlap(final List<LocalizationStore.Chunk> chunks,
+                                final float[][] sigmas,
+                                final int width,
+                                final int height,
+                                final int tilesX,
+                                final int[] fill,
+                                final int[] sorted) {
+        
+        for (int c = 0; c < chunks.size(); c++) {
+            final float[] pointX = chunks.get(c).getX();
+            final float[] pointY = chunks.get(c).getY();
+            final float[] sigma = sigmas[c];
+            
+            for (int k = 0; k < sigma.length; k++) {
+                if (sigma[k] == 0) {
+                    continue;
+                }
+                
+                // the pixels reached by the Gaussian, clipped to the image
+                final double x = pointX[k] * magnification;
+                final double y = pointY[k] * magnification;
+                final double reach = CUTOFF * sigma[k];
+                
+                final int x0 = Math.max((int) Math.floor(x - reach), 0);
+                final int x1 = Math.min((int) Math.ceil(x + reach), width - 1);
+                final int y0 = Math.max((int) Math.floor(y - reach), 0);
+                final int y1 = Math.min((int) Math.ceil(y + reach), 
+                        height - 1);
+                
+                for (int ty = y0 / TILE_SIZE; ty <= y1 / TILE_SIZE 
+                        && y0 <= y1; ty++) {
+                    for (int tx = x0 / TILE_SIZE; tx <= x1 / TILE_SIZE 
+                            && x0 <= x1; tx++) {
+                        final int t = ty * tilesX + tx;
+                        
+                        if (sorted == null) {
+                            fill[t + 1]++;
+                        } else {
+                            sorted[fill[t]++] = 
+                                    LocalizationStore.getReference(c, k);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    // renders the Gaussians overlapping a tile and returns its pixels in
+    // hundredths of a localization
+    private int[] renderTile(final List<LocalizationStore.Chunk> chunks,
+                             final float[][] sigmas,
+                             final int[] sorted,
+                             final int from,
+                             final int to,
+                             final int tileLeft,
+                             final int tileTop,
+                             final float[] tile,
+                             final float[] rowWeights,
+                             final int width,
+                             final int height) {
+        
+        final int tileWidth = Math.min(TILE_SIZE, width - tileLeft);
+        final int tileHeight = Math.min(TILE_SIZE, height - tileTop);
+        
+        Arrays.fill(tile, 0);
+        
+        for (int i = from; i < to; i++) {
+            final int c = LocalizationStore.getChunkNumber(sorted[i]);
+            final int k = LocalizationStore.getIndex(sorted[i]);
+            final LocalizationStore.Chunk chunk = chunks.get(c);
+            final double sigma = sigmas[c][k];
+            
+            // the position relative to the tile, in rendered pixels
+            final double x = chunk.getX()[k] * magnification - tileLeft;
+            final double y = chunk.getY()[k] * magnification - tileTop;
+            final double reach = CUTOFF * sigma;
+            
+            final int x0 = Math.max((int) Math.floor(x - reach), 0);
+            final int x1 = Math.min((int) Math.ceil(x + reach), 
+                    tileWidth - 1);
+            final int y0 = Math.max((int) Math.floor(y - reach), 0);
+            final int y1 = Math.min((int) Math.ceil(y + reach), 
+                    tileHeight - 1);
+            
+            // the Gaussian holds a total of one
+            final double steps = TABLE_STEPS / sigma;
+            final float amplitude = 
+                    (float) (1.0 / (2.0 * Math.PI * sigma * sigma));
+            
+            // the weights along x, with pixel centers at half pixels
+            for (int px = x0; px <= x1; px++) {
+                rowWeights[px] = 
+                        amplitude * lookup(Math.abs(px + 0.5 - x) * steps);
+            }
+            
+            for (int py = y0; py <= y1; py++) {
+                final float weight = lookup(Math.abs(py + 0.5 - y) * steps);
+                if (weight == 0) {
+                    continue;
+                }
+                
+                final int row = py * TILE_SIZE;
+                for (int px = x0; px <= x1; px++) {
+                    tile[row + px] += weight * rowWeights[px];
+                }
+            }
+        }
+        
+        final int[] counts = new int[TILE_SIZE * TILE_SIZE];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = Math.round(tile[i] * DENSITY_SCALE);
+        }
+        
+        return counts;
+    }
+    
+    // the tabulated Gaussian at a distance given in table steps
+    private static float lookup(final double steps) {
+        final int i = (int) (steps + 0.5);
+        return i < TABLE.length ? TABLE[i] : 0;
+    }
+}
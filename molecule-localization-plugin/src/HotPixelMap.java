@@ -0,0 +1,320 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+
+import java.awt.Font;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+
+/**
+ * Finds the hot pixels of the camera before the search starts, so that they
+ * can be marked as processed in every image.  A hot pixel stays above the 
+ * detection threshold in nearly every frame: its temporal mean, less two 
+ * standard deviations, lies above the signal-to-noise ratio times the 
+ * typical background.
+ *
+ * <p>The means and variances are accumulated over a sample of evenly spaced
+ * frames in one pass (Welford's method).  If a camera serial is given, the
+ * means and standard deviations are saved in the ImageJ preferences folder 
+ * and loaded by later runs instead of sampling the stack again.  The 
+ * threshold is applied after every load, so a change of the signal-to-noise
+ * ratio or photon scale takes effect at once; a change of the photon 
+ * calibration samples the stack again.
+ */
+public class HotPixelMap implements SettingsDialog {
+    
+    private static final int SAMPLE_DEF = 200;
+    
+    // standard deviations the mean must stay above the threshold by
+    private static final double CONSISTENCY = 2.0;
+    
+    // identifies the files holding the statistics of a camera
+    private static final int MAGIC = 0x484f5453;
+    
+    private static final String ENABLED = 
+            "Localize_Particles.HotPixelMap.enabled";
+    
+    private static final String SAMPLE_FRAMES = 
+            "Localize_Particles.HotPixelMap.sample_frames";
+    
+    private static final String CAMERA_SERIAL = 
+            "Localize_Particles.HotPixelMap.camera_serial";
+    
+    private boolean enabled;
+    private int sampleFrames;
+    private String cameraSerial;
+    private boolean rebuild;
+    
+    // pixel indices (y * width + x) of the hot pixels
+    private int[] hotPixels = new int[0];
+    
+    // the temporal mean and standard deviation of every pixel (photons)
+    private float[] mean;
+    private float[] deviation;
+    
+    @Override
+    public final void displaySettings(final GenericDialog dialog, 
+                                      final Font header) {
+        dialog.addMessage("Hot Pixels", header);
+        dialog.addCheckbox("Exclude Hot Pixels", Prefs.get(ENABLED, false));
+        dialog.addNumericField("Hot Pixel Sample Frames", 
+                Prefs.get(SAMPLE_FRAMES, SAMPLE_DEF), 0, 6, "frames");
+        dialog.addStringField("Camera Serial", 
+                Prefs.get(CAMERA_SERIAL, ""), 16);
+        dialog.addCheckbox("Rebuild Hot Pixel Map", false);
+    }
+    
+    @Override
+    public final void saveSettings(final GenericDialog dialog) {
+        enabled = dialog.getNextBoolean();
+        sampleFrames = (int) dialog.getNextNumber();
+        cameraSerial = dialog.getNextString().trim();
+        rebuild = dialog.getNextBoolean();
+        
+        IJ.log("HotPixelMap Settings: ");
+        IJ.log("  Enabled: " + (enabled ? "True" : "False"));
+        IJ.log("  Sample Frames: " + sampleFrames);
+        IJ.log("  Camera Serial: " + cameraSerial);
+        IJ.log("  Rebuild: " + (rebuild ? "True" : "False"));
+        
+        Prefs.set(ENABLED, enabled);
+        Prefs.set(SAMPLE_FRAMES, sampleFrames);
+        Prefs.set(CAMERA_SERIAL, cameraSerial);
+    }
+    
+    /**
+     * Loads the statistics of the camera or samples them from the stack, 
+     * and selects the hot pixels.
+     * @param stack the stack about to be searched
+     * @param calibration the calibration converting images to photons
+     * @param photonScale the photon scale of the locator
+     * @param snr the signal-to-noise ratio of the detection threshold
+     */
+    public final void prepare(final ImageStack stack,
+                              final PhotonCalibration calibration,
+                              final double photonScale,
+                              final double snr) {
+        
+        hotPixels = new int[0];
+        mean = null;
+        deviation = null;
+        
+        if (!enabled) {
+            return;
+        }
+        
+        final int width = stack.getWidth();
+        final int height = stack.getHeight();
+        final File file = getFile(width, height);
+        final double scale = calibration.isScaled() ? photonScale : 1.0;
+        String source = "";
+        
+        if (file != null && file.exists() && !rebuild) {
+            try {
+                read(file, width, height, calibration.getDescription(), 
+                        scale);
+                source = " (loaded from " + file.getName() + ")";
+            } catch (IOException e) {
+                IJ.log("Hot Pixels: could not use " + file + " (" 
+                        + e.getMessage() + "); sampling the stack");
+            }
+        }
+        
+        if (mean == null) {
+            build(stack, calibration, photonScale);
+            
+            if (file != null) {
+                try {
+                    write(file, width, height, calibration.getDescription(), 
+                            scale);
+                } catch (IOException e) {
+                    IJ.log("Hot Pixels: could not save " + file + " (" 
+                            + e.getMessage() + ")");
+                }
+            }
+        }
+        
+        hotPixels = select(snr);
+        IJ.log("Hot Pixels: " + hotPixels.length + source);
+    }
+    
+    /**
+     * Marks the hot pixels as processed.
+     * @param context the image context to mark
+     */
+    public final void mark(final ImageContext context) {
+        final int width = context.getWidth();
+        
+        for (int i = 0; i < hotPixels.length; i++) {
+            context.setProcessed(hotPixels[i] % width, hotPixels[i] / width);
+        }
+    }
+    
+    // samples the stack for the mean and standard deviation of every pixel
+    private void build(final ImageStack stack,
+                       final PhotonCalibration calibration,
+                       final double photonScale) {
+        
+        final int size = stack.getWidth() * stack.getHeight();
+        final int frames = Math.max(1, Math.min(sampleFrames, stack.getSize()));
+        
+        final float[] photons = new float[size];
+        final double[] average = new double[size];
+        final double[] sumSquares = new double[size];
+        
+        // accumulate the mean and variance of every pixel in one pass
+        for (int n = 0; n < frames; n++) {
+            final int slice = 1 + (int) ((long) n * stack.getSize() / frames);
+            
+            IJ.showStatus("Finding hot pixels: " + (n + 1) + "/" + frames);
+            calibration.calibrate(stack.getProcessor(slice), photonScale, 
+                    photons);
+            
+            for (int i = 0; i < size; i++) {
+                final double delta = photons[i] - average[i];
+                average[i] += delta / (n + 1);
+                sumSquares[i] += delta * (photons[i] - average[i]);
+            }
+        }
+        
+        mean = new float[size];
+        deviation = new float[size];
+        
+        for (int i = 0; i < size; i++) {
+            mean[i] = (float) average[i];
+            deviation[i] = (float) Math.sqrt(sumSquares[i] / frames);
+        }
+    }
+    
+    // selects the pixels that are consistently bright
+    private int[] select(final double snr) {
+        final int size = mean.length;
+        
+        // the median of the means is the typical background
+        final float[] sorted = Arrays.copyOf(mean, size);
+        Arrays.sort(sorted);
+        final double threshold = snr * sorted[size / 2];
+        
+        int count = 0;
+        final int[] found = new int[size];
+        
+        for (int i = 0; i < size; i++) {
+            if (mean[i] - CONSISTENCY * deviation[i] > threshold) {
+                found[count++] = i;
+            }
+        }
+        
+        return Arrays.copyOf(found, count);
+    }
+    
+    // the file of the camera's statistics; null if no serial is given
+    private File getFile(final int width, final int height) {
+        final String folder = Prefs.getPrefsDir();
+        if (cameraSerial.length() == 0 || folder == null) {
+            return null;
+        }
+        
+        // keep the serial safe to use as a file name
+        final String name = cameraSerial.replaceAll("[^A-Za-z0-9_.-]", "_");
+        
+        return new File(folder, "hot_pixel_stats_" + name + "_" + width + "x" 
+                + height + ".dat");
+    }
+    
+    // Reads the statistics, checking that they were made for images of 
+    // this size with the same calibration.  Without calibration images the 
+    // photon counts are proportional to the photon scale, so they are 
+    // rescaled to the current one; with them the scale is always one.
+    private void read(final File file, 
+                      final int width, 
+                      final int height,
+                      final String description,
+                      final double photonScale) throws IOException {
+        
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        
+        try {
+            if (in.readInt() != MAGIC 
+                    || in.readInt() != width 
+                    || in.readInt() != height) {
+                throw new IOException("not a map for " + width + "x" 
+                        + height + " images");
+            }
+            
+            if (!in.readUTF().equals(description)) {
+                throw new IOException("made with another calibration");
+            }
+            
+            final double scale = photonScale / in.readDouble();
+            final float[] means = new float[width * height];
+            final float[] deviations = new float[width * height];
+            
+            for (int i = 0; i < means.length; i++) {
+                means[i] = (float) (in.readFloat() * scale);
+                deviations[i] = (float) (in.readFloat() * scale);
+            }
+            
+            mean = means;
+            deviation = deviations;
+        } finally {
+            in.close();
+        }
+    }
+    
+    // writes the statistics along with how they were made
+    private void write(final File file, 
+                       final int width, 
+                       final int height,
+                       final String description,
+                       final double photonScale) throws IOException {
+        
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeUTF(description);
+            out.writeDouble(photonScale);
+            
+            for (int i = 0; i < mean.length; i++) {
+                out.writeFloat(mean[i]);
+                out.writeFloat(deviation[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
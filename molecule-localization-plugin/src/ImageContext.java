@@ -31,12 +31,9 @@ public class ImageContext {
     private final int width;
     private final int height;
     private boolean[][] maskDone;
+    private final float[] photons;     // the image in photons
+    private final BlockSummary blocks; // extremes of the photon blocks
     private final double noise;        // estimated background noise
-    private Coordinates centroid;
-    private double photoncount;
-    private double background;
-    private Window window;
-    
     private final AbstractParticleLocator mLocator;
     
     /**
@@ -46,6 +43,20 @@ public class ImageContext {
      */
     public ImageContext(final ImageProcessor image, 
             final AbstractParticleLocator pluginContext) {
+        this(image, pluginContext, null);
+    }
+    
+    /**
+     * Creates an ImageContext that converts the image into a buffer of the
+     * caller, so that a thread can reuse one buffer for every slice.
+     * @param image the ImageProcessor to be analyzed.
+     * @param pluginContext the particle locator context
+     * @param buffer holds the image in photons while the context is in 
+     * use; a new one is made if it is null or too small
+     */
+    public ImageContext(final ImageProcessor image, 
+            final AbstractParticleLocator pluginContext,
+            final float[] buffer) {
         
         // set image and properties
         this.image = image;
@@ -63,6 +74,13 @@ public class ImageContext {
         // save the locator context
         mLocator = pluginContext;
         
+        // convert the image to photons once for all of the processes
+        photons = (buffer != null && buffer.length >= width * height)
+                ? buffer : new float[width * height];
+        pluginContext.getCalibration().calibrate(image, 
+                pluginContext.getPhotonScale(), photons);
+        blocks = new BlockSummary(photons, width, height);
+        
         // estimate and store the background noise (this should be last)
         noise = pluginContext.getNoiseEstimator().calculateBackground(this);
     }
@@ -161,76 +179,33 @@ public class ImageContext {
 
     /**
      * Retrieves the estimated noise of the image.
-     * @return the estimated noise of the image (not necessarily photon counts)
+     * @return the estimated noise of the image in photons
      */
     public final double getEstimatedNoise() {
         return noise;
     }
-    
-    
-    /**
-     * Sets the current centroid to the specified coordinates. Set to null
-     * to clear.
-     * @param coordinates the specified coordinates
-     */
-    public void setCentroid(final Coordinates coordinates) {
-        centroid = coordinates;
-    }
-    
-    /**
-     * Sets the current photon count estimate to the specified value.
-     * @param estimate the estimated photon count per molecule
-     */
-    public void setPhotonCount(final double estimate) {
-        photoncount = estimate;
-    }
-    
-    /**
-     * Sets the current background level (per pixel) estimate to the specified 
-     * value.
-     * @param estimate the estimated  background level per pixel
-     */
-    public void setBackgroundLevel(final double estimate) {
-        background = estimate;
-    }
-    
-    /**
-     * Sets the current window to the specified window.  Set to null to clear.
-     * @param window the specified window
-     */
-    public void setWindow(final Window window) {
-        this.window = window;
-    }
-    
-    /**
-     * Returns the current centroid if it exists.
-     * @return the current centroid; null otherwise
-     */
-    public Coordinates getCentroid() {
-        return centroid;
-    }
-    
+
     /**
-     * Get the current photon count estimate to the specified value.
-     * @return the estimated photon count
+     * Retrieves the photon count of every pixel.
+     * @return the image in photons, row by row
      */
-    public double getLastPhotonCount() {
-        return photoncount;
+    public final float[] getPhotons() {
+        return photons;
     }
-    
+
     /**
-     * Get the current background level estimate to the specified value.
-     * @return the estimated background level per pixel
+     * Retrieves the largest and smallest photon counts of blocks of pixels.
+     * @return the block summary of the image
      */
-    public double getLastBackgroundLevel() {
-        return background;
+    public final BlockSummary getBlocks() {
+        return blocks;
     }
-    
+
     /**
-     * Returns the current window if it exists.
-     * @return the current window; null otherwise
+     * Retrieves the read noise variance of every pixel.
+     * @return the variance in photons squared, row by row; null if unknown
      */
-    public Window getWindow() {
-        return window;
+    public final float[] getVariance() {
+        return mLocator.getCalibration().getVariance();
     }
 }
@@ -21,18 +21,17 @@
  */
 
 
-import java.awt.Point;
-
 /**
  * An interface for objects that provide a method testing for particles.
  */
 public interface ImageProcess {
     
     /**
-     * Runs a process on the image at the specified location.
+     * Runs a process on the image at the candidate of the record.  Results 
+     * are stored in the record for the processes that follow.
      * @param context the current image context
-     * @param location the location of the point
+     * @param record the candidate and the results so far
      * @return true if passes; false if rejected
      */
-    boolean runProcess(ImageContext context, Point location);
+    boolean runProcess(ImageContext context, FitRecord record);
 }
@@ -0,0 +1,678 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * The MLE algorithm was conceived by Alex Small and developed by Rebecca Starr,
+ * with support from California State University Program for Education and
+ * Research in Biotechnology (CSUPERB).
+ */
+
+import static java.lang.Math.PI;
+import static java.lang.Math.abs;
+import static java.lang.Math.log;
+import static java.lang.Math.sqrt;
+
+/**
+ * Fits the positions and photon counts of one or more particles, and the
+ * shared background, jointly on the full two-dimensional window using the
+ * Poisson likelihood.
+ *
+ * <p>The expected count of a pixel is {@code sum(N * fx * fy) + b}, where
+ * {@code fx} and {@code fy} are the fractions of each particle's PSF falling
+ * on the pixel's column and row.  Each iteration solves the Fisher scoring 
+ * system with Levenberg-Marquardt damping, and the inverse of the Fisher 
+ * matrix at the solution gives the Cramer-Rao bound on the positions.
+ *
+ * <p>The parameters are laid out as {@code x, y, N} for every particle 
+ * followed by the background per pixel.
+ *
+ * <p>An instance keeps its own scratch buffers and is not thread-safe; keep
+ * one per thread.
+ */
+public class JointLikelihoodFitter {
+
+    /** The number of parameters fitted per particle: x, y, photon count. */
+    public static final int EMITTER_PARAMETERS = 3;
+
+    /** The number of parameters of a single particle fit. */
+    public static final int PARAMETERS = EMITTER_PARAMETERS + 1;
+
+    private static final double INITIAL_DAMPING = 1e-3;
+    private static final double MAX_DAMPING = 1e10;
+
+    // column and row PSF fractions and their derivatives (per particle)
+    private double[] fx = new double[0];
+    private double[] fx1 = new double[0];
+    private double[] fx2 = new double[0];
+    private double[] fy = new double[0];
+    private double[] fy1 = new double[0];
+    private double[] fy2 = new double[0];
+
+    // gradient and Fisher matrix of the current and the trial parameters
+    private double[] gradient = new double[0];
+    private double[] fisher = new double[0];
+    private double[] trialGradient = new double[0];
+    private double[] trialFisher = new double[0];
+
+    // scratch space for the linear solver
+    private double[] matrix = new double[0];
+    private double[] delta = new double[0];
+    private double[] trial = new double[0];
+    private double[] inverse = new double[0];
+    private double[] column = new double[0];
+    private double[] derivative = new double[0];
+
+    // fraction of each particle's photons within the window
+    private double[] windowFraction = new double[0];
+    private double[] lastFraction = new double[0];
+
+    private int parameters;
+    private int iterations;
+    private double likelihood;
+    private double residualSum;
+
+    /**
+     * Fits a single particle in the window.
+     * @param psf the PSF model
+     * @param data the photon counts of the window in row-major order
+     * @param size the width and height of the window
+     * @param pixelSize the pixel size (in nm)
+     * @param params the initial x, y (in nm from the window's corner),
+     * photon count and background per pixel; replaced by the estimates
+     * @param maxIterations the maximum number of iterations
+     * @param posEpsilon the position change (in nm) at which to stop
+     * @param intEpsilon the relative photon count change at which to stop
+     * @return true if the fit succeeded; false otherwise
+     */
+    public final boolean fit(final PSFModel psf,
+                             final double[] data,
+                             final int size,
+                             final double pixelSize,
+                             final double[] params,
+                             final int maxIterations,
+                             final double posEpsilon,
+                             final double intEpsilon) {
+        return fit(psf, data, size, pixelSize, params, 1,
+                maxIterations, posEpsilon, intEpsilon);
+    }
+
+    /**
+     * Fits several particles in the window at once.
+     * @param psf the PSF model
+     * @param data the photon counts of the window in row-major order
+     * @param size the width and height of the window
+     * @param pixelSize the pixel size (in nm)
+     * @param params the initial x, y (in nm from the window's corner) and
+     * photon count of each particle followed by the background per pixel;
+     * replaced by the estimates
+     * @param emitters the number of particles
+     * @param maxIterations the maximum number of iterations
+     * @param posEpsilon the position change (in nm) at which to stop
+     * @param intEpsilon the relative photon count change at which to stop
+     * @return true if the fit succeeded; false otherwise
+     */
+    public final boolean fit(final PSFModel psf,
+                             final double[] data,
+                             final int size,
+                             final double pixelSize,
+                             final double[] params,
+                             final int emitters,
+                             final int maxIterations,
+                             final double posEpsilon,
+                             final double intEpsilon) {
+        final int n = getParameterCount(emitters);
+        resize(size, emitters);
+        parameters = n;
+        iterations = 0;
+
+        likelihood = evaluate(psf, data, size, pixelSize, params, emitters,
+                gradient, fisher);
+        if (Double.isNaN(likelihood)) {
+            return false;
+        }
+        acceptFractions(emitters);
+
+        double damping = INITIAL_DAMPING;
+
+        while (iterations < maxIterations && damping < MAX_DAMPING) {
+            iterations++;
+
+            // solve the damped scoring system for the parameter step
+            for (int i = 0; i < n * n; i++) {
+                matrix[i] = fisher[i];
+            }
+            for (int i = 0; i < n; i++) {
+                matrix[i * n + i] *= 1.0 + damping;
+                delta[i] = gradient[i];
+            }
+            if (!solve(matrix, delta, n)) {
+                return false;
+            }
+
+            for (int i = 0; i < n; i++) {
+                trial[i] = params[i] + delta[i];
+            }
+
+            // keep the photon counts and background positive
+            for (int k = 0; k < emitters; k++) {
+                final int photon = k * EMITTER_PARAMETERS + 2;
+                if (trial[photon] <= 0) {
+                    trial[photon] = params[photon] / 2.0;
+                }
+            }
+            if (trial[n - 1] <= 0) {
+                trial[n - 1] = params[n - 1] / 2.0;
+            }
+
+            final double trialLikelihood = evaluate(psf, data, size,
+                    pixelSize, trial, emitters, trialGradient, trialFisher);
+
+            // reject the step and increase damping if it did not improve
+            if (Double.isNaN(trialLikelihood)
+                    || trialLikelihood < likelihood) {
+                damping *= 10.0;
+                continue;
+            }
+
+            boolean done = true;
+            for (int k = 0; k < emitters && done; k++) {
+                final int x = k * EMITTER_PARAMETERS;
+                final double intPDiff = 2.0 * abs(trial[x + 2] - params[x + 2])
+                        / (trial[x + 2] + params[x + 2]);
+                done = abs(trial[x] - params[x]) < posEpsilon
+                        && abs(trial[x + 1] - params[x + 1]) < posEpsilon
+                        && intPDiff < intEpsilon;
+            }
+
+            // accept the step
+            for (int i = 0; i < n; i++) {
+                params[i] = trial[i];
+            }
+            likelihood = trialLikelihood;
+            acceptFractions(emitters);
+            swapBuffers();
+            damping /= 10.0;
+
+            if (done) {
+                break;
+            }
+        }
+
+        // the Cramer-Rao bound is the inverse of the Fisher matrix
+        if (!invert(fisher, inverse, matrix, column, n)) {
+            for (int i = 0; i < n * n; i++) {
+                inverse[i] = Double.NaN;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (Double.isNaN(params[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Retrieves the number of parameters fitted for the number of particles.
+     * @param emitters the number of particles
+     * @return the number of parameters
+     */
+    public static int getParameterCount(final int emitters) {
+        return emitters * EMITTER_PARAMETERS + 1;
+    }
+
+    /**
+     * Retrieves the number of iterations used by the last fit.
+     * @return the number of iterations
+     */
+    public final int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Retrieves the log-likelihood (without constant terms) of the last fit.
+     * @return the log-likelihood
+     */
+    public final double getLikelihood() {
+        return likelihood;
+    }
+
+    /**
+     * Retrieves the Cramer-Rao bound on the x-position of the last fit.
+     * @return the standard deviation in nm; NaN if unavailable
+     */
+    public final double getPrecisionX() {
+        return getPrecision(0);
+    }
+
+    /**
+     * Retrieves the Cramer-Rao bound on the y-position of the last fit.
+     * @return the standard deviation in nm; NaN if unavailable
+     */
+    public final double getPrecisionY() {
+        return getPrecision(1);
+    }
+
+    /**
+     * Retrieves the Cramer-Rao bound on a parameter of the last fit.
+     * @param index the index of the parameter
+     * @return the standard deviation; NaN if unavailable
+     */
+    public final double getPrecision(final int index) {
+        final double variance = inverse[index * parameters + index];
+        return variance > 0 ? sqrt(variance) : Double.NaN;
+    }
+
+    /**
+     * Retrieves the fraction of the particle's photons that fall within the
+     * window at the fitted parameters.
+     * @return the fraction of photons
+     */
+    public final double getWindowFraction() {
+        return windowFraction[0];
+    }
+
+    /**
+     * Retrieves the fraction of a particle's photons that fall within the
+     * window at the fitted parameters.
+     * @param emitter the index of the particle
+     * @return the fraction of photons
+     */
+    public final double getWindowFraction(final int emitter) {
+        return windowFraction[emitter];
+    }
+
+    /**
+     * Retrieves the sum of the positive residuals found by the last call to
+     * {@link #findResidualPeak}, i.e. the photons the model does not explain.
+     * @return the sum of the positive residuals
+     */
+    public final double getResidualSum() {
+        return residualSum;
+    }
+
+    /**
+     * Finds the pixel where the data exceeds the fitted model the most.  This
+     * is where another particle is most likely hidden.
+     * @param psf the PSF model
+     * @param data the photon counts of the window in row-major order
+     * @param size the width and height of the window
+     * @param pixelSize the pixel size (in nm)
+     * @param params the fitted parameters
+     * @param emitters the number of particles fitted
+     * @return the row-major index of the pixel
+     */
+    public final int findResidualPeak(final PSFModel psf,
+                                      final double[] data,
+                                      final int size,
+                                      final double pixelSize,
+                                      final double[] params,
+                                      final int emitters) {
+        resize(size, emitters);
+        evaluatePSF(psf, size, pixelSize, params, emitters);
+
+        final double background = params[getParameterCount(emitters) - 1];
+        double best = -Double.MAX_VALUE;
+        int peak = 0;
+        residualSum = 0;
+
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                double expected = background;
+                for (int k = 0; k < emitters; k++) {
+                    expected += params[k * EMITTER_PARAMETERS + 2]
+                            * fx[k * size + x] * fy[k * size + y];
+                }
+
+                final double residual = data[y * size + x] - expected;
+                if (residual > 0) {
+                    residualSum += residual;
+                }
+                if (residual > best) {
+                    best = residual;
+                    peak = y * size + x;
+                }
+            }
+        }
+
+        return peak;
+    }
+
+    // evaluates the column and row PSF fractions of every particle
+    private void evaluatePSF(final PSFModel psf,
+                             final int size,
+                             final double pixelSize,
+                             final double[] theta,
+                             final int emitters) {
+
+        final double scale = psf.getSigma() / PI;
+
+        for (int k = 0; k < emitters; k++) {
+            final double posX = theta[k * EMITTER_PARAMETERS];
+            final double posY = theta[k * EMITTER_PARAMETERS + 1];
+            double sumX = 0;
+            double sumY = 0;
+
+            for (int i = 0; i < size; i++) {
+                final double center = (i + 0.5) * pixelSize;
+                final int index = k * size + i;
+                psf.evaluate(center - posX, fx, fx1, fx2, index);
+                psf.evaluate(center - posY, fy, fy1, fy2, index);
+                fx[index] *= scale;
+                fx1[index] *= scale;
+                fy[index] *= scale;
+                fy1[index] *= scale;
+                sumX += fx[index];
+                sumY += fy[index];
+            }
+
+            lastFraction[k] = sumX * sumY;
+        }
+    }
+
+    // computes the log-likelihood, its gradient and the Fisher matrix
+    private double evaluate(final PSFModel psf,
+                            final double[] data,
+                            final int size,
+                            final double pixelSize,
+                            final double[] theta,
+                            final int emitters,
+                            final double[] grad,
+                            final double[] info) {
+
+        final int n = getParameterCount(emitters);
+        final double background = theta[n - 1];
+
+        // the model is separable, so evaluate the PSF per column and row
+        evaluatePSF(psf, size, pixelSize, theta, emitters);
+
+        if (emitters == 1) {
+            return evaluateSingle(data, size, theta, grad, info);
+        }
+
+        for (int i = 0; i < n; i++) {
+            grad[i] = 0;
+        }
+        for (int i = 0; i < n * n; i++) {
+            info[i] = 0;
+        }
+
+        // the derivative with respect to the background is always one
+        derivative[n - 1] = 1.0;
+
+        double sum = 0;
+
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+
+                double expected = background;
+
+                for (int k = 0; k < emitters; k++) {
+                    final int p = k * EMITTER_PARAMETERS;
+                    final double photons = theta[p + 2];
+                    final double gx = fx[k * size + x];
+                    final double gy = fy[k * size + y];
+
+                    derivative[p] = photons * fx1[k * size + x] * gy;
+                    derivative[p + 1] = photons * gx * fy1[k * size + y];
+                    derivative[p + 2] = gx * gy;
+
+                    expected += photons * gx * gy;
+                }
+
+                if (!(expected > 0)) {
+                    return Double.NaN;
+                }
+
+                final double count = data[y * size + x];
+                final double shared = count / expected - 1.0;
+                final double weight = 1.0 / expected;
+
+                sum += count * log(expected) - expected;
+
+                // gradient and upper triangle of the Fisher matrix
+                for (int i = 0; i < n; i++) {
+                    final double di = derivative[i];
+                    final double wdi = weight * di;
+                    grad[i] += shared * di;
+                    for (int j = i; j < n; j++) {
+                        info[i * n + j] += wdi * derivative[j];
+                    }
+                }
+            }
+        }
+
+        // mirror the lower triangle
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < i; j++) {
+                info[i * n + j] = info[j * n + i];
+            }
+        }
+
+        return sum;
+    }
+
+    // the single particle case of evaluate() with the loops unrolled
+    private double evaluateSingle(final double[] data,
+                                  final int size,
+                                  final double[] theta,
+                                  final double[] grad,
+                                  final double[] info) {
+
+        final double photons = theta[2];
+        final double background = theta[3];
+
+        for (int i = 0; i < PARAMETERS; i++) {
+            grad[i] = 0;
+        }
+        for (int i = 0; i < PARAMETERS * PARAMETERS; i++) {
+            info[i] = 0;
+        }
+
+        double sum = 0;
+
+        for (int y = 0; y < size; y++) {
+            final double gy = fy[y];
+            final double gy1 = fy1[y];
+
+            for (int x = 0; x < size; x++) {
+                final double gx = fx[x];
+
+                final double dPosX = photons * fx1[x] * gy;
+                final double dPosY = photons * gx * gy1;
+                final double dPhoton = gx * gy;
+
+                final double expected = photons * dPhoton + background;
+                if (!(expected > 0)) {
+                    return Double.NaN;
+                }
+
+                final double count = data[y * size + x];
+                final double shared = count / expected - 1.0;
+                final double weight = 1.0 / expected;
+
+                sum += count * log(expected) - expected;
+
+                grad[0] += shared * dPosX;
+                grad[1] += shared * dPosY;
+                grad[2] += shared * dPhoton;
+                grad[3] += shared;
+
+                // upper triangle of the Fisher matrix (d/db is one)
+                info[0] += weight * dPosX * dPosX;
+                info[1] += weight * dPosX * dPosY;
+                info[2] += weight * dPosX * dPhoton;
+                info[3] += weight * dPosX;
+                info[5] += weight * dPosY * dPosY;
+                info[6] += weight * dPosY * dPhoton;
+                info[7] += weight * dPosY;
+                info[10] += weight * dPhoton * dPhoton;
+                info[11] += weight * dPhoton;
+                info[15] += weight;
+            }
+        }
+
+        // mirror the lower triangle
+        for (int i = 0; i < PARAMETERS; i++) {
+            for (int j = 0; j < i; j++) {
+                info[i * PARAMETERS + j] = info[j * PARAMETERS + i];
+            }
+        }
+
+        return sum;
+    }
+
+    // keeps the window fractions of the accepted parameters
+    private void acceptFractions(final int emitters) {
+        for (int k = 0; k < emitters; k++) {
+            windowFraction[k] = lastFraction[k];
+        }
+    }
+
+    // swaps the current and trial gradient and Fisher matrix
+    private void swapBuffers() {
+        final double[] tempGradient = gradient;
+        gradient = trialGradient;
+        trialGradient = tempGradient;
+
+        final double[] tempFisher = fisher;
+        fisher = trialFisher;
+        trialFisher = tempFisher;
+    }
+
+    // grows the buffers to the window size and number of particles
+    private void resize(final int size, final int emitters) {
+        if (fx.length < size * emitters) {
+            fx = new double[size * emitters];
+            fx1 = new double[size * emitters];
+            fx2 = new double[size * emitters];
+            fy = new double[size * emitters];
+            fy1 = new double[size * emitters];
+            fy2 = new double[size * emitters];
+        }
+
+        final int n = getParameterCount(emitters);
+        if (gradient.length < n) {
+            gradient = new double[n];
+            trialGradient = new double[n];
+            delta = new double[n];
+            trial = new double[n];
+            column = new double[n];
+            derivative = new double[n];
+            fisher = new double[n * n];
+            trialFisher = new double[n * n];
+            matrix = new double[n * n];
+            inverse = new double[n * n];
+        }
+
+        if (windowFraction.length < emitters) {
+            windowFraction = new double[emitters];
+            lastFraction = new double[emitters];
+        }
+    }
+
+    /**
+     * Solves the linear system in place using Gaussian elimination with
+     * partial pivoting.
+     * @param a the row-major n-by-n matrix (destroyed)
+     * @param b the right-hand side; replaced by the solution
+     * @param n the size of the system
+     * @return true if solved; false if the matrix is singular
+     */
+    static boolean solve(final double[] a, final double[] b, final int n) {
+        for (int col = 0; col < n; col++) {
+
+            // find the pivot
+            int pivot = col;
+            for (int row = col + 1; row < n; row++) {
+                if (abs(a[row * n + col]) > abs(a[pivot * n + col])) {
+                    pivot = row;
+                }
+            }
+
+            if (!(abs(a[pivot * n + col]) > 0)) {
+                return false;
+            }
+
+            // swap the pivot row into place
+            if (pivot != col) {
+                for (int k = 0; k < n; k++) {
+                    final double temp = a[col * n + k];
+                    a[col * n + k] = a[pivot * n + k];
+                    a[pivot * n + k] = temp;
+                }
+                final double temp = b[col];
+                b[col] = b[pivot];
+                b[pivot] = temp;
+            }
+
+            // eliminate below the pivot
+            for (int row = col + 1; row < n; row++) {
+                final double factor = a[row * n + col] / a[col * n + col];
+                for (int k = col; k < n; k++) {
+                    a[row * n + k] -= factor * a[col * n + k];
+                }
+                b[row] -= factor * b[col];
+            }
+        }
+
+        // back substitution
+        for (int row = n - 1; row >= 0; row--) {
+            double sum = b[row];
+            for (int k = row + 1; k < n; k++) {
+                sum -= a[row * n + k] * b[k];
+            }
+            b[row] = sum / a[row * n + row];
+        }
+
+        return true;
+    }
+
+    /**
+     * Inverts the matrix column by column.
+     * @param a the row-major n-by-n matrix (preserved)
+     * @param inverse receives the inverse
+     * @param scratch n-by-n scratch space
+     * @param column n elements of scratch space
+     * @param n the size of the matrix
+     * @return true if inverted; false if the matrix is singular
+     */
+    static boolean invert(final double[] a,
+                          final double[] inverse,
+                          final double[] scratch,
+                          final double[] column,
+                          final int n) {
+        for (int col = 0; col < n; col++) {
+            for (int i = 0; i < n * n; i++) {
+                scratch[i] = a[i];
+            }
+            for (int i = 0; i < n; i++) {
+                column[i] = (i == col) ? 1.0 : 0.0;
+            }
+            if (!solve(scratch, column, n)) {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                inverse[i * n + col] = column[i];
+            }
+        }
+
+        return true;
+    }
+}
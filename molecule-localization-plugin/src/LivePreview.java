@@ -0,0 +1,239 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+import java.awt.Font;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.process.FloatProcessor;
+
+/**
+ * Shows the reconstruction while the stack is being searched.  Every thread
+ * counts its localizations in a histogram of its own, so adding one takes 
+ * no lock, and a background thread sums the histograms into the shown image
+ * at a bounded rate.  The shown counts may lag behind by a refresh or miss 
+ * a few that are being added, which is fine for a preview; the final 
+ * reconstruction is rendered from the store.
+ */
+public class LivePreview implements SettingsDialog {
+    
+    // the largest width or height of the preview, and its largest scale
+    private static final int PREVIEW_SIZE = 1024;
+    private static final double MAX_SCALE = 8.0;
+    
+    private static final double INTERVAL_DEF = 2.0;
+    private static final double MIN_INTERVAL = 0.25;
+    
+    private static final String ENABLED = 
+            "Localize_Particles.LivePreview.enabled";
+    
+    private static final String INTERVAL = 
+            "Localize_Particles.LivePreview.interval";
+    
+    private boolean enabled;
+    private long interval;                  // between refreshes (ms)
+    
+    private int width;
+    private int height;
+    private double scale;                   // preview pixels per image pixel
+    
+    // the histograms of every thread that has added to the preview
+    private final List<Histogram> histograms = new ArrayList<Histogram>();
+    private ThreadLocal<Histogram> local;
+    
+    private ImagePlus image;
+    private float[] pixels;
+    private float[] sums;                   // summed before being shown
+    private Thread refresher;
+    private volatile boolean running;
+    
+    // the number of localizations in the shown image
+    private long shown;
+    
+    @Override
+    public final void displaySettings(final GenericDialog dialog, 
+                                      final Font header) {
+        dialog.addMessage("Live Preview", header);
+        dialog.addCheckbox("Show Live Preview", Prefs.get(ENABLED, false));
+        dialog.addNumericField("Preview Refresh Interval", 
+                Prefs.get(INTERVAL, INTERVAL_DEF), 2, 6, "seconds");
+    }
+    
+    @Override
+    public final void saveSettings(final GenericDialog dialog) {
+        enabled = dialog.getNextBoolean();
+        final double seconds = 
+                Math.max(dialog.getNextNumber(), MIN_INTERVAL);
+        interval = (long) (seconds * 1000.0);
+        
+        IJ.log("LivePreview Settings: ");
+        IJ.log("  Enabled: " + (enabled ? "True" : "False"));
+        IJ.log("  Refresh Interval: " + seconds + " s");
+        
+        Prefs.set(ENABLED, enabled);
+        Prefs.set(INTERVAL, seconds);
+    }
+    
+    /**
+     * Opens the preview and starts refreshing it.  Does nothing if the 
+     * preview is disabled.
+     * @param imageWidth the width of the images searched
+     * @param imageHeight the height of the images searched
+     */
+    public final void start(final int imageWidth, final int imageHeight) {
+        if (!enabled) {
+            return;
+        }
+        
+        scale = Math.min(MAX_SCALE, 
+                (double) PREVIEW_SIZE / Math.max(imageWidth, imageHeight));
+        width = Math.max(1, (int) (imageWidth * scale));
+        height = Math.max(1, (int) (imageHeight * scale));
+        
+        synchronized (histograms) {
+            histograms.clear();
+        }
+        shown = 0;
+        
+        local = new ThreadLocal<Histogram>() {
+            @Override
+            protected Histogram initialValue() {
+                final Histogram histogram = new Histogram(width * height);
+                synchronized (histograms) {
+                    histograms.add(histogram);
+                }
+                return histogram;
+            }
+        };
+        
+        pixels = new float[width * height];
+        sums = new float[width * height];
+        image = new ImagePlus("Live Reconstruction", 
+                new FloatProcessor(width, height, pixels));
+        image.show();
+        
+        running = true;
+        refresher = new Thread("Live Preview") {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    refresh();
+                }
+            }
+        };
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+    
+    /**
+     * Counts a localization in the histogram of the calling thread.
+     * @param x the x-coordinate (pixels)
+     * @param y the y-coordinate (pixels)
+     */
+    public final void add(final double x, final double y) {
+        if (!running) {
+            return;
+        }
+        
+        final int px = (int) (x * scale);
+        final int py = (int) (y * scale);
+        
+        if (px >= 0 && py >= 0 && px < width && py < height) {
+            final Histogram histogram = local.get();
+            histogram.counts[py * width + px]++;
+            histogram.added++;
+        }
+    }
+    
+    /**
+     * Stops refreshing the preview and shows the final counts.
+     */
+    public final void stop() {
+        if (!running) {
+            return;
+        }
+        
+        running = false;
+        refresher.interrupt();
+        
+        try {
+            refresher.join();
+        } catch (InterruptedException e) {
+            IJ.handleException(e);
+        }
+        
+        refresh();
+    }
+    
+    // sums the histograms into the shown image if anything was added
+    private void refresh() {
+        final Histogram[] all;
+        synchronized (histograms) {
+            all = histograms.toArray(new Histogram[histograms.size()]);
+        }
+        
+        long added = 0;
+        for (Histogram histogram : all) {
+            added += histogram.added;
+        }
+        
+        if (added == shown) {
+            return;
+        }
+        shown = added;
+        
+        // sum off screen, so that a repaint never shows a partial sum
+        Arrays.fill(sums, 0);
+        for (Histogram histogram : all) {
+            final int[] counts = histogram.counts;
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += counts[i];
+            }
+        }
+        System.arraycopy(sums, 0, pixels, 0, pixels.length);
+        
+        image.getProcessor().resetMinAndMax();
+        image.updateAndDraw();
+    }
+    
+    /**
+     * The localizations counted by one thread.  Only that thread writes 
+     * to it.
+     */
+    private static final class Histogram {
+        private final int[] counts;
+        private int added;
+        
+        private Histogram(final int size) {
+            counts = new int[size];
+        }
+    }
+}
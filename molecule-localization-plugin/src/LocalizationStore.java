@@ -0,0 +1,343 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores the localizations of a run in columns of primitive arrays, split
+ * into chunks of a fixed size.  Each thread appends to a segment of its own,
+ * so adding a localization takes no lock and allocates only when a chunk 
+ * fills up.  A localization costs 24 bytes: its position, photon count,
+ * background level and precision as floats, and its frame number.
+ *
+ * <p>Localizations may be added from any number of threads.  The chunks 
+ * should only be read once all of the threads have finished adding; within
+ * a chunk the localizations keep the order they were added in by a thread.
+ */
+public class LocalizationStore {
+    
+    /** The number of localizations held by a full chunk. */
+    public static final int CHUNK_SIZE = 1 << 14;
+    
+    // the number of bits of a reference taken up by the index in a chunk
+    private static final int CHUNK_BITS = 
+            Integer.numberOfTrailingZeros(CHUNK_SIZE);
+    
+    // the segments of every thread that has added to the store
+    private final List<Segment> segments = new ArrayList<Segment>();
+    
+    // the segment of the calling thread
+    private final ThreadLocal<Segment> local = new ThreadLocal<Segment>() {
+        @Override
+        protected Segment initialValue() {
+            final Segment segment = new Segment();
+            synchronized (segments) {
+                segments.add(segment);
+            }
+            return segment;
+        }
+    };
+    
+    /**
+     * Adds a localization to the segment of the calling thread.
+     * @param frame the frame (slice) number
+     * @param x the x-coordinate (pixels)
+     * @param y the y-coordinate (pixels)
+     * @param photons the photon count
+     * @param background the background level (photons per pixel)
+     * @param precision the precision (nm); NaN if unknown
+     */
+    public final void add(final int frame, 
+                          final double x, 
+                          final double y,
+                          final double photons, 
+                          final double background,
+                          final double precision) {
+        local.get().add(frame, x, y, photons, background, precision);
+    }
+    
+    /**
+     * @return the number of localizations in the store
+     */
+    public final int size() {
+        int size = 0;
+        for (Chunk chunk : getChunks()) {
+            size += chunk.size;
+        }
+        return size;
+    }
+    
+    /**
+     * Gives every localization a track number, zero until it is assigned.
+     * Should only be called once the localizations have all been added.
+     */
+    public final void addTracks() {
+        for (Chunk chunk : getChunks()) {
+            if (chunk.tracks == null) {
+                chunk.tracks = new int[CHUNK_SIZE];
+            }
+        }
+    }
+    
+    /**
+     * Gives every localization a cluster number, zero until it is assigned.
+     * Should only be called once the localizations have all been added.
+     */
+    public final void addClusters() {
+        for (Chunk chunk : getChunks()) {
+            if (chunk.clusters == null) {
+                chunk.clusters = new int[CHUNK_SIZE];
+            }
+        }
+    }
+    
+    /**
+     * Packs the number of a chunk and the index of a localization within 
+     * it into a single reference.  References sort by chunk and then by 
+     * index, and those of the chunks in a list of n chunks are all below 
+     * the reference of chunk n, index 0.
+     * @param chunk the number of the chunk in the list of chunks
+     * @param index the index of the localization in the chunk
+     * @return the reference
+     */
+    public static int getReference(final int chunk, final int index) {
+        return (chunk << CHUNK_BITS) | index;
+    }
+    
+    /**
+     * @param reference a reference made by {@link #getReference(int, int)}
+     * @return the number of the chunk in the list of chunks
+     */
+    public static int getChunkNumber(final int reference) {
+        return reference >>> CHUNK_BITS;
+    }
+    
+    /**
+     * @param reference a reference made by {@link #getReference(int, int)}
+     * @return the index of the localization within its chunk
+     */
+    public static int getIndex(final int reference) {
+        return reference & (CHUNK_SIZE - 1);
+    }
+    
+    /**
+     * Sorts references to the localizations of a list of chunks by an 
+     * integer key with a counting sort.  Localizations with the same key
+     * keep the order of the chunks and of the localizations within them.
+     * @param chunks the chunks to sort
+     * @param keys the number of keys; localizations whose key is not in 
+     *        [0, keys) are left out
+     * @param key the key of every localization
+     * @param start filled with where each key starts in the sorted 
+     *        references, followed by their number; keys + 1 long
+     * @return the sorted references
+     */
+    public static int[] sortByKey(final List<Chunk> chunks,
+                                  final int keys,
+                                  final Key key,
+                                  final int[] start) {
+        
+        // count the localizations of every key
+        Arrays.fill(start, 0);
+        for (Chunk chunk : chunks) {
+            for (int k = 0; k < chunk.size; k++) {
+                final int n = key.getKey(chunk, k);
+                if (n >= 0 && n < keys) {
+                    start[n + 1]++;
+                }
+            }
+        }
+        
+        for (int n = 0; n < keys; n++) {
+            start[n + 1] += start[n];
+        }
+        
+        // place the references
+        final int[] fill = start.clone();
+        final int[] sorted = new int[start[keys]];
+        
+        for (int c = 0; c < chunks.size(); c++) {
+            final Chunk chunk = chunks.get(c);
+            for (int k = 0; k < chunk.size; k++) {
+                final int n = key.getKey(chunk, k);
+                if (n >= 0 && n < keys) {
+                    sorted[fill[n]++] = getReference(c, k);
+                }
+            }
+        }
+        
+        return sorted;
+    }
+    
+    /**
+     * The key a list of chunks is sorted by.
+     */
+    public interface Key {
+        /**
+         * @param chunk the chunk of the localization
+         * @param index the index of the localization in the chunk
+         * @return the key of the localization
+         */
+        int getKey(Chunk chunk, int index);
+    }
+    
+    /**
+     * Collects the chunks of all segments.  The chunks are shared with the
+     * store, not copied; a chunk that is not full may still grow.
+     * @return the chunks holding at least one localization
+     */
+    public final List<Chunk> getChunks() {
+        final List<Chunk> chunks = new ArrayList<Chunk>();
+        
+        synchronized (segments) {
+            for (Segment segment : segments) {
+                synchronized (segment.chunks) {
+                    for (Chunk chunk : segment.chunks) {
+                        if (chunk.size > 0) {
+                            chunks.add(chunk);
+                        }
+                    }
+                }
+            }
+        }
+        
+        return chunks;
+    }
+    
+    /**
+     * A run of localizations held in parallel arrays.  The arrays are 
+     * {@link LocalizationStore#CHUNK_SIZE} long, of which the first 
+     * {@link #size()} entries are in use.  The arrays are returned as they 
+     * are, so that they can be scanned without copying and adjusted in 
+     * place.
+     */
+    public static final class Chunk {
+        private final int[] frame = new int[CHUNK_SIZE];
+        private final float[] x = new float[CHUNK_SIZE];
+        private final float[] y = new float[CHUNK_SIZE];
+        private final float[] photons = new float[CHUNK_SIZE];
+        private final float[] background = new float[CHUNK_SIZE];
+        private final float[] precision = new float[CHUNK_SIZE];
+        private int[] tracks;
+        private int[] clusters;
+        private int size;
+        
+        /**
+         * @return the number of localizations in the chunk
+         */
+        public int size() {
+            return size;
+        }
+        
+        /**
+         * @return the frame numbers
+         */
+        public int[] getFrames() {
+            return frame;
+        }
+        
+        /**
+         * @return the x-coordinates (pixels)
+         */
+        public float[] getX() {
+            return x;
+        }
+        
+        /**
+         * @return the y-coordinates (pixels)
+         */
+        public float[] getY() {
+            return y;
+        }
+        
+        /**
+         * @return the photon counts
+         */
+        public float[] getPhotonCounts() {
+            return photons;
+        }
+        
+        /**
+         * @return the background levels (photons per pixel)
+         */
+        public float[] getBackgroundLevels() {
+            return background;
+        }
+        
+        /**
+         * @return the precisions (nm); NaN where unknown
+         */
+        public float[] getPrecisions() {
+            return precision;
+        }
+        
+        /**
+         * @return the track numbers; null unless the store has tracks
+         */
+        public int[] getTracks() {
+            return tracks;
+        }
+        
+        /**
+         * @return the cluster numbers; null unless the store has clusters
+         */
+        public int[] getClusters() {
+            return clusters;
+        }
+    }
+    
+    /**
+     * The chunks filled by a single thread.  Only the last chunk has room.
+     */
+    private static final class Segment {
+        private final List<Chunk> chunks = new ArrayList<Chunk>();
+        private Chunk current;
+        
+        // appends a localization, starting a new chunk when the last is full
+        private void add(final int frame, 
+                         final double x, 
+                         final double y,
+                         final double photons, 
+                         final double background,
+                         final double precision) {
+            
+            if (current == null || current.size == CHUNK_SIZE) {
+                current = new Chunk();
+                
+                // the list is read while other threads add their own chunks
+                synchronized (chunks) {
+                    chunks.add(current);
+                }
+            }
+            
+            final int k = current.size;
+            current.frame[k] = frame;
+            current.x[k] = (float) x;
+            current.y[k] = (float) y;
+            current.photons[k] = (float) photons;
+            current.background[k] = (float) background;
+            current.precision[k] = (float) precision;
+            current.size = k + 1;
+        }
+    }
+}
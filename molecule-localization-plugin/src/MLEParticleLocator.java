@@ -24,7 +24,8 @@
 import ij.ImageStack;
 
 /**
- * The Maximum Likelihood flavor of the particle locator.
+ * The Maximum Likelihood flavor of the particle locator.  The fitter can be 
+ * swapped in the settings for one of the faster, non-iterative localizers.
  */
 public class MLEParticleLocator extends AbstractParticleLocator {
 
@@ -36,17 +37,16 @@ public class MLEParticleLocator extends AbstractParticleLocator {
 
         final EllipticityRejector ellipRejector = new EllipticityRejector();
 
-        // create new instances of used classes
-        final MaximumLikelihoodEstimator mle = 
-                new MaximumLikelihoodEstimator();
+        // create new instances of used classes (the MLE by default)
+        final FitterSelector fitter = new FitterSelector();
         
         processes.add(ellipRejector);
-        processes.add(mle); // add to list of processes
+        processes.add(fitter); // add to list of processes
         
         settings.add(ellipRejector);
-        settings.add(mle);  // to retrieve settings
+        settings.add(fitter);  // to retrieve settings
         
         debugging.add(ellipRejector);
-        debugging.add(mle); // for logging purposes
+        debugging.add(fitter); // for logging purposes
     }
 }
\ No newline at end of file
@@ -24,21 +24,16 @@
 import ij.IJ;
 import ij.Prefs;
 import ij.gui.GenericDialog;
-import ij.process.ImageProcessor;
 
 import java.awt.Font;
-import java.awt.Point;
-
-import static java.lang.Math.PI;
-import static java.lang.Math.pow;
-import static java.lang.Math.sqrt;
-import static java.lang.Math.exp;
+import java.util.Arrays;
+import java.util.BitSet;
 
 /**
  * The maximum likelihood estimator.
  */
 public class MaximumLikelihoodEstimator
-implements ImageProcess, SettingsDialog, DebugStats {
+implements FrameProcess, SettingsDialog, DebugStats {
     
     // default values
     private static final int MAX_ITER_DEF = 10;
@@ -48,6 +43,12 @@ implements ImageProcess, SettingsDialog, DebugStats {
     private static final double POS_EPSILON_DEF = 0.01;
     private static final double INT_EPSILON_DEF = 0.1;
     private static final int DEFAULT_RADIUS = 3;
+    private static final double TABLE_ERROR_DEF = 0.01;
+    private static final double MAX_PRECISION_DEF = 0.0;
+    private static final int MAX_EMITTERS_DEF = 1;
+    private static final int BATCH_SIZE_DEF = 1;
+    private static final double MIN_BACKGROUND = 1e-6;
+    private static final int PROCESSED_RADIUS = 3;
     
     // keys for storing ImageJ preferences
     private static final String INT_MAX_ITER = 
@@ -68,6 +69,24 @@ implements ImageProcess, SettingsDialog, DebugStats {
     private static final String INIT_RADIUS = 
             "Localize_Particles.MaximumLikelyhoodEstimator.init_radius";
     
+    private static final String TABLE_ERROR = 
+            "Localize_Particles.MaximumLikelyhoodEstimator.table_error";
+    
+    private static final String SINGLE_PRECISION = 
+            "Localize_Particles.MaximumLikelyhoodEstimator.single_precision";
+    
+    private static final String JOINT_FIT = 
+            "Localize_Particles.MaximumLikelyhoodEstimator.joint_fit";
+    
+    private static final String MAX_PRECISION = 
+            "Localize_Particles.MaximumLikelyhoodEstimator.max_precision";
+    
+    private static final String MAX_EMITTERS = 
+            "Localize_Particles.MaximumLikelyhoodEstimator.max_emitters";
+    
+    private static final String BATCH_SIZE = 
+            "Localize_Particles.MaximumLikelyhoodEstimator.batch_size";
+    
     // common variables; these should not differ with each image slice
     private double pixelSize;
     private int maxIterations;
@@ -76,91 +95,98 @@ implements ImageProcess, SettingsDialog, DebugStats {
     private double posEpsilon;
     private double intEpsilon;
     private int initialRadius;
+    private double tableError;
+    private boolean singlePrecision;
+    private boolean jointFit;
+    private double maxPrecision;
+    private int maxEmitters;
+    private int batchSize;
+    
+    // the PSF model; rebuilt whenever the configuration changes
+    private volatile PSFModel model;
     
     // fields for logging purposes
     private int iterations;
     private int totalAttempts;
     private double intensityCoeff;
+    private int multipleEmitters;
+
+    // scratch space for each thread so that fitting does not allocate
+    private final ThreadLocal<Workspace> workspaces = 
+            new ThreadLocal<Workspace>() {
+                @Override
+                protected Workspace initialValue() {
+                    return new Workspace();
+                }
+            };
 
     @Override
     public final boolean runProcess(final ImageContext context, 
-                                    final Point location) {
-        
-        final ImageProcessor image = context.getImage();
+                                    final FitRecord record) {
         
-        final double photonScale = context.getImage().getMax() / 
-                context.getLocatorContext().getPhotonScale();
-        
-        // get estimated background photon count
-        //final double bgNoise = context.getEstimatedNoise() / photonScale;
+        final Workspace ws = workspaces.get();
         
         // get a square chunk of the image
-        final int size = 2 * initialRadius + 1;
-        final int left = location.x - initialRadius;
-        final int top = location.y - initialRadius;
-        
-        // ensure that the window does not overlap the border of the image
-        if (left < 0 
-                || left + size >= image.getWidth() 
-                || top < 0 
-                || top + size >= image.getHeight()) {
-                return false;
+        if (!extractWindow(context, record, ws)) {
+            return false;
         }
         
+        final int size = 2 * initialRadius + 1;
+        final int left = record.getCandidateX() - initialRadius;
+        final int top = record.getCandidateY() - initialRadius;
         final int width = size;
         final int height = size;
         
-        // check that the size is above a certain number of pixels
-        if (width < 4 || height < 4) {
-            return false;
-        }
-        
-        double[] xData = zeros(width);
-        double[] yData = zeros(height);
-        
-        // accumulate pixel intensities down to single row and column
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                final double S = image.get(x + left, y + top) / photonScale;
-                xData[x] += S;
-                yData[y] += S;
-            }
-        }
+        final double[] xData = ws.window.getColumnSums();
+        final double[] yData = ws.window.getRowSums();
+        final double[] params = ws.params;
         
         // estimate the background noise window
         final double bgNoise = Math.min(min(xData)/width, min(yData)/height);
         
         // estimate the initial center of mass
-        pixelSize = context.getLocatorContext().getPixelSize();
+        final PSFModel psf = getModel();
         final double cmX = 
                 (findCenterOfMass(xData, bgNoise * height)) * pixelSize;
         final double cmY = 
                 (findCenterOfMass(yData, bgNoise * width)) * pixelSize;
         
+        if (jointFit || maxEmitters > 1) {
+            return runJointFit(context, record, ws, psf, 
+                    cmX, cmY, bgNoise, size);
+        }
+        
         // run MLE for x position
+        evaluateModel(psf, cmX, width, height, ws);
         final double photonCoeffX = (max(xData) - min(xData))
-                / max(findExpectedCount(cmX, width, height));
+                / max(ws.expected);
         
-        double[] params = {cmX, photonCoeffX, bgNoise};
+        params[0] = cmX;
+        params[1] = photonCoeffX;
+        params[2] = bgNoise;
         
         // get x estimates
-        runMaximumLikelyhoodEstimator(params, xData, height);
+        int iter = runMaximumLikelyhoodEstimator(psf, params, xData, height, ws);
         final double xResult = params[0];
         
         if (Double.isNaN(params[0]) || Double.isNaN(params[1]) 
                 || Double.isNaN(params[2]) || params[1] < 0 || params[2] < 0) {
+            synchronized (this) {
+                iterations += iter;
+            }
             return false;
         }
 
-        synchronized (this) {
-            intensityCoeff += params[1]/2.0;
-        }
+        final double intensityX = params[1]/2.0;
         
+        // the expected counts at cmY also give the final photon sum
+        evaluateModel(psf, cmY, height, width, ws);
         final double photonCoeffY = (max(yData) - min(yData))
-                / max(findExpectedCount(cmY, height, width));
+                / max(ws.expected);
+        final double expectedSum = sum(ws.expected);
         
         // save the photon coefficient for later use (estimating photon count)
-        double photonCoeff = params[1];
+        final double fittedCoeffX = params[1];
         
         // update just the y-position
         params[0] = cmY;
@@ -168,9 +194,14 @@ implements ImageProcess, SettingsDialog, DebugStats {
         params[2] = bgNoise;
         
         // get y estimates
-        runMaximumLikelyhoodEstimator(params, yData, width); 
+        iter += runMaximumLikelyhoodEstimator(psf, params, yData, width, ws); 
         final double yResult = params[0];
         
+        synchronized (this) {
+            iterations += iter;
+            intensityCoeff += intensityX;
+        }
+        
         if (Double.isNaN(params[0]) || Double.isNaN(params[1]) 
                 || Double.isNaN(params[2]) || params[1] < 0 || params[2] < 0) {
             return false;
@@ -187,47 +218,575 @@ implements ImageProcess, SettingsDialog, DebugStats {
             return false;
         }
         
-        // TODO: modify "processed" size; this is a temporary solution
-        context.setWindow(
-                new Window(
-                        location.y - 3,
-                        location.y + 3,
-                        location.x - 3,
-                        location.x + 3));
+        markProcessed(record);
         
         // set the current centroid and photon count estimate
-        context.setCentroid(
-                new Coordinates(
-                        xResult / pixelSize + left,
-                        yResult / pixelSize + top));
+        record.setPosition(xResult / pixelSize + left, 
+                yResult / pixelSize + top);
         
         // take the average of the two photon coefficients
-        photonCoeff = (photonCoeff + params[1]) / 2.0;
+        final double photonCoeff = (fittedCoeffX + params[1]) / 2.0;
         
         // set a good estimate for the photon count
-        double expSum = 0;
-        final double[] expC = findExpectedCount(cmY, height, width);
-        for (int i = 0; i < height; i++) {
-            expSum += expC[i] * photonCoeff;
+        record.setPhotonCount(expectedSum * photonCoeff);
+        record.setBackgroundLevel(params[2]);
+        record.setPrecision(Double.NaN);
+        
+        return true;
+    }
+    
+    /**
+     * Retrieves the window around the candidate (in photons) along with its 
+     * row and column projections, and keeps it in the workspace.
+     * @return false if the window does not fit inside the image
+     */
+    private boolean extractWindow(final ImageContext context,
+                                  final FitRecord record,
+                                  final Workspace ws) {
+        
+        // get estimated background photon count
+        //final double bgNoise = context.getEstimatedNoise() / photonScale;
+        
+        // get a square chunk of the image
+        final int size = 2 * initialRadius + 1;
+        final int left = record.getCandidateX() - initialRadius;
+        final int top = record.getCandidateY() - initialRadius;
+        
+        // ensure that the window does not overlap the border of the image
+        if (left < 0 
+                || left + size >= context.getWidth() 
+                || top < 0 
+                || top + size >= context.getHeight()) {
+                return false;
         }
         
-        context.setPhotonCount(expSum);
-        context.setBackgroundLevel(params[2]);
+        // check that the size is above a certain number of pixels
+        if (size < 4) {
+            return false;
+        }
         
+        ws.resize(size);
+        ws.window = record.extract(context, initialRadius);
+        
+        pixelSize = context.getLocatorContext().getPixelSize();
         
         return true;
     }
     
-    private static double[] zeros(final int length) {
-        final double[] temp = new double[length];
+    @Override
+    public final int getReach() {
+        // neighbors anywhere in the window mark the pixels around them too
+        return (maxEmitters > 1) 
+                ? initialRadius + PROCESSED_RADIUS : PROCESSED_RADIUS;
+    }
+    
+    @Override
+    public final void runFrame(final ImageContext context, 
+                               final FrameCandidates candidates, 
+                               final BitSet passed) {
         
-        for (int i = 0; i < length; i++) {
-            temp[i] = 0;
+        // only the separable fit runs in batches
+        if (jointFit || maxEmitters > 1 || batchSize <= 1) {
+            for (int i = passed.nextSetBit(0); i >= 0; 
+                    i = passed.nextSetBit(i + 1)) {
+                if (!runProcess(context, candidates.getRecord(i))) {
+                    passed.clear(i);
+                }
+            }
+            return;
         }
         
-        return temp;
+        final CandidateBatch batch = workspaces.get().getBatch(batchSize);
+        
+        for (int i = passed.nextSetBit(0); i >= 0; 
+                i = passed.nextSetBit(i + 1)) {
+            if (!addCandidate(context, candidates.getRecord(i), i, batch)) {
+                passed.clear(i);
+            } else if (batch.isFull()) {
+                fitBatch(candidates, passed, batch);
+            }
+        }
+        
+        // fit whatever is left over
+        fitBatch(candidates, passed, batch);
     }
-
+    
+    // fits the candidates of the batch and stores the results in their
+    // records; the ones that failed are cleared
+    private void fitBatch(final FrameCandidates candidates,
+                          final BitSet passed,
+                          final CandidateBatch batch) {
+        
+        runBatch(batch);
+        
+        for (int j = 0; j < batch.getCount(); j++) {
+            final int i = batch.getCandidate(j);
+            
+            if (batch.isPassed(j)) {
+                final FitRecord record = candidates.getRecord(i);
+                record.setPosition(batch.getX(j), batch.getY(j));
+                record.setPhotonCount(batch.getPhotonCount(j));
+                record.setBackgroundLevel(batch.getBackgroundLevel(j));
+                record.setPrecision(Double.NaN);
+            } else {
+                passed.clear(i);
+            }
+        }
+        
+        batch.clear();
+    }
+    
+    // queues a candidate of the round for a batch fit
+    private boolean addCandidate(final ImageContext context,
+                                 final FitRecord record,
+                                 final int candidate,
+                                 final CandidateBatch batch) {
+        
+        final Workspace ws = workspaces.get();
+        
+        if (!extractWindow(context, record, ws)) {
+            return false;
+        }
+        
+        final int size = 2 * initialRadius + 1;
+        final double[] xData = ws.window.getColumnSums();
+        final double[] yData = ws.window.getRowSums();
+        final PSFModel psf = getModel();
+        
+        final int index = batch.add(candidate, 
+                record.getCandidateX(), record.getCandidateY(), size);
+        
+        for (int n = 0; n < size; n++) {
+            batch.setProjection(index, n, xData[n], yData[n]);
+        }
+        
+        // the same initial estimates as the single candidate fit
+        final double bgNoise = Math.min(min(xData)/size, min(yData)/size);
+        final double cmX = (findCenterOfMass(xData, bgNoise * size)) * pixelSize;
+        final double cmY = (findCenterOfMass(yData, bgNoise * size)) * pixelSize;
+        
+        evaluateModel(psf, cmX, size, size, ws);
+        final double photonsX = (max(xData) - min(xData)) / max(ws.expected);
+        
+        evaluateModel(psf, cmY, size, size, ws);
+        final double photonsY = (max(yData) - min(yData)) / max(ws.expected);
+        
+        batch.setEstimates(index, cmX, cmY, bgNoise, photonsX, photonsY, 
+                sum(ws.expected));
+        
+        markProcessed(record);
+        
+        return true;
+    }
+    
+    // fits all of the candidates in the batch in lock-step
+    private void runBatch(final CandidateBatch batch) {
+        
+        final int count = batch.getCount();
+        if (count == 0) {
+            return;
+        }
+        
+        final int size = batch.getWindowSize();
+        final PSFModel psf = getModel();
+        final BatchFit fit = workspaces.get().getBatchFit(batch.getCapacity());
+        
+        // get x estimates
+        for (int j = 0; j < count; j++) {
+            fit.position[j] = batch.getCenterX(j);
+            fit.photon[j] = batch.getPhotonGuessX(j);
+            fit.background[j] = batch.getBackgroundGuess(j);
+            fit.active[j] = true;
+        }
+        
+        int iter = runBatchEstimator(psf, batch, fit, 
+                batch.getProjectionsX(), size, size);
+        
+        int attempts = count;
+        double intensity = 0;
+        
+        // keep the x results
+        for (int j = 0; j < count; j++) {
+            if (isValid(fit, j)) {
+                fit.resultX[j] = fit.position[j];
+                fit.photonX[j] = fit.photon[j];
+                intensity += fit.photon[j]/2.0;
+                fit.active[j] = true;
+                attempts++;
+            } else {
+                // the y-axis is not fitted if the x-axis failed
+                fit.resultX[j] = Double.NaN;
+                fit.active[j] = false;
+            }
+            
+            fit.position[j] = batch.getCenterY(j);
+            fit.photon[j] = batch.getPhotonGuessY(j);
+            fit.background[j] = batch.getBackgroundGuess(j);
+        }
+        
+        // get y estimates
+        iter += runBatchEstimator(psf, batch, fit, 
+                batch.getProjectionsY(), size, size);
+        
+        for (int j = 0; j < count; j++) {
+            final double xResult = fit.resultX[j];
+            final double yResult = fit.position[j];
+            
+            if (Double.isNaN(xResult) || !isValid(fit, j)) {
+                continue;
+            }
+            
+            intensity += fit.photon[j]/2.0;
+            
+            if (xResult < 0.0 || xResult > size * pixelSize
+                    || yResult < 0.0 || yResult > size * pixelSize) {
+                continue;
+            }
+            
+            // take the average of the two photon coefficients
+            final double photonCoeff = 
+                    (fit.photonX[j] + fit.photon[j]) / 2.0;
+            
+            batch.setResult(j, 
+                    xResult / pixelSize + batch.getLocationX(j) - initialRadius,
+                    yResult / pixelSize + batch.getLocationY(j) - initialRadius,
+                    batch.getExpectedSum(j) * photonCoeff,
+                    fit.background[j]);
+        }
+        
+        synchronized (this) {
+            totalAttempts += attempts;
+            iterations += iter;
+            intensityCoeff += intensity;
+        }
+    }
+    
+    // checks the current axis parameters of a candidate in the batch
+    private static boolean isValid(final BatchFit fit, final int j) {
+        return !Double.isNaN(fit.position[j]) 
+                && !Double.isNaN(fit.photon[j]) 
+                && !Double.isNaN(fit.background[j]) 
+                && fit.photon[j] >= 0 && fit.background[j] >= 0;
+    }
+    
+    /**
+     * Runs the one-dimensional estimator on every candidate of the batch in 
+     * lock-step.  Each iteration first evaluates the model for one pixel of 
+     * every candidate and then accumulates the Newton sums across the batch,
+     * so the inner loops are long and free of dependencies.  Converged fits 
+     * are masked out of the parameter updates.
+     * @param psf the PSF model to evaluate
+     * @param batch the candidates
+     * @param fit the parameters of every candidate, with the active ones 
+     * marked and their initial parameters set
+     * @param data the projections of the axis being fitted (pixel-major)
+     * @param pixelCount the number of elements in each projection
+     * @param length the number of elements summed up to obtain the data
+     * @return the total number of iterations of all candidates
+     */
+    private int runBatchEstimator(final PSFModel psf,
+                                  final CandidateBatch batch,
+                                  final BatchFit fit,
+                                  final double[] data,
+                                  final int pixelCount,
+                                  final double length) {
+        
+        final int count = batch.getCount();
+        final int stride = batch.getCapacity();
+        final double[] position = fit.position;
+        final double[] photon = fit.photon;
+        final double[] background = fit.background;
+        final double[] expected = fit.expected;
+        final double[] firstDeriv = fit.firstDeriv;
+        final double[] secondDeriv = fit.secondDeriv;
+        final double[] numerPos = fit.sums[0];
+        final double[] denomPos = fit.sums[1];
+        final double[] numerPhoton = fit.sums[2];
+        final double[] denomPhoton = fit.sums[3];
+        final double[] numerBg = fit.sums[4];
+        final double[] denomBg = fit.sums[5];
+        final boolean[] active = fit.active;
+        
+        // the caller marks which candidates take part
+        int end = count;
+        while (end > 0 && !active[end - 1]) {
+            end--;
+        }
+        
+        int total = 0;
+        
+        for (int iteration = 0; iteration < maxIterations && end > 0; 
+                iteration++) {
+            
+            for (int s = 0; s < fit.sums.length; s++) {
+                Arrays.fill(fit.sums[s], 0, end, 0);
+            }
+            
+            for (int n = 0; n < pixelCount; n++) {
+                final double center = (n + 0.5) * pixelSize;
+                final int row = n * stride;
+                
+                // evaluate the model of this pixel for every candidate
+                psf.evaluate(center, position, end, 
+                        expected, firstDeriv, secondDeriv);
+                
+                // accumulate the Newton sums for every candidate
+                for (int j = 0; j < end; j++) {
+                    final double value = data[row + j];
+                    final double incomplExpected = length * expected[j];
+                    final double complExpected = 
+                            photon[j] * incomplExpected + length * background[j];
+                    
+                    final double shared1 = value / complExpected - 1.0;
+                    final double shared2 = 
+                            value / (complExpected * complExpected);
+                    
+                    final double d1Pos = photon[j] * length * firstDeriv[j];
+                    final double d2Pos = photon[j] * length * secondDeriv[j];
+                    
+                    numerPos[j] += shared1 * d1Pos;
+                    denomPos[j] += shared1 * d2Pos - shared2 * (d1Pos*d1Pos);
+                    numerPhoton[j] += shared1 * incomplExpected;
+                    denomPhoton[j] += 
+                            -shared2 * (incomplExpected*incomplExpected);
+                    numerBg[j] += shared1 * length;
+                    denomBg[j] += -shared2 * (length*length);
+                }
+            }
+            
+            // update the parameters of the fits that are still running
+            int last = 0;
+            for (int j = 0; j < end; j++) {
+                if (!active[j]) {
+                    continue;
+                }
+                
+                final double paramPhoton = photon[j];
+                final double posDelta = numerPos[j] / denomPos[j];
+                
+                position[j] -= posDelta;
+                photon[j] -= numerPhoton[j] / denomPhoton[j];
+                background[j] -= numerBg[j] / denomBg[j];
+                total++;
+                
+                final double intPDiff = 2.0 * Math.abs(paramPhoton - photon[j])
+                                                / (paramPhoton + photon[j]);
+                
+                if (Math.abs(posDelta) < posEpsilon && intPDiff < intEpsilon) {
+                    active[j] = false;
+                } else {
+                    last = j + 1;
+                }
+            }
+            
+            // candidates past the last running one no longer need evaluating
+            end = last;
+        }
+        
+        return total;
+    }
+    
+    // fits the position, photon count and background on the full window
+    private boolean runJointFit(final ImageContext context,
+                                final FitRecord record,
+                                final Workspace ws,
+                                final PSFModel psf,
+                                final double cmX,
+                                final double cmY,
+                                final double bgNoise,
+                                final int size) {
+        
+        final double[] params = ws.jointParams;
+        final int left = record.getCandidateX() - initialRadius;
+        final int top = record.getCandidateY() - initialRadius;
+        
+        // start from the center of mass and the photons above background
+        params[0] = cmX;
+        params[1] = cmY;
+        params[2] = Math.max(sum(ws.window.getColumnSums()) 
+                - bgNoise * size * size, 1.0);
+        params[3] = Math.max(bgNoise, MIN_BACKGROUND);
+        
+        final boolean success = ws.joint.fit(psf, ws.window.getPixels(), 
+                size, pixelSize, params, maxIterations, posEpsilon, intEpsilon);
+        
+        synchronized (this) {
+            totalAttempts++;
+            iterations += ws.joint.getIterations();
+            if (success) {
+                intensityCoeff += params[2];
+            }
+        }
+        
+        if (!success || !isInside(params, 1, size)) {
+            return false;
+        }
+        
+        // keep the single particle results
+        ws.ensureEmitters(Math.max(maxEmitters, 1));
+        System.arraycopy(params, 0, ws.bestParams, 0, params.length);
+        ws.bestPrecision[0] = findPrecision(ws.joint, 0);
+        ws.bestFraction[0] = ws.joint.getWindowFraction();
+        
+        // look for hidden neighbors if allowed
+        final int emitters = (maxEmitters > 1) 
+                ? selectEmitters(ws, psf, size) : 1;
+        
+        // reject fits that are not precise enough
+        final double precision = ws.bestPrecision[0];
+        
+        if (maxPrecision > 0 && !(precision <= maxPrecision)) {
+            return false;
+        }
+        
+        final double[] best = ws.bestParams;
+        
+        markProcessed(record);
+        
+        record.setPosition(best[0] / pixelSize + left, 
+                best[1] / pixelSize + top);
+        
+        // report the photons collected within the window
+        record.setPhotonCount(best[2] * ws.bestFraction[0]);
+        record.setBackgroundLevel(
+                best[JointLikelihoodFitter.getParameterCount(emitters) - 1]);
+        record.setPrecision(precision);
+        
+        // report the neighbors that are precise enough
+        for (int k = 1; k < emitters; k++) {
+            final int p = k * JointLikelihoodFitter.EMITTER_PARAMETERS;
+            
+            if (maxPrecision > 0 && !(ws.bestPrecision[k] <= maxPrecision)) {
+                continue;
+            }
+            
+            record.addEmitter(
+                    best[p] / pixelSize + left, 
+                    best[p + 1] / pixelSize + top, 
+                    best[p + 2] * ws.bestFraction[k], 
+                    ws.bestPrecision[k]);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Adds particles to the fit one at a time, seeding each new particle 
+     * where the data exceeds the model the most, for as long as the Bayesian
+     * information criterion improves.  The workspace must hold the single 
+     * particle fit on entry and holds the best fit on exit.
+     * @return the number of particles in the best fit
+     */
+    private int selectEmitters(final Workspace ws, 
+                               final PSFModel psf, 
+                               final int size) {
+        
+        final JointLikelihoodFitter joint = ws.joint;
+        final double[] best = ws.bestParams;
+        final double[] params = ws.multiParams;
+        final double penalty = Math.log(size * size);
+        final int stride = JointLikelihoodFitter.EMITTER_PARAMETERS;
+        final double[] pixels = ws.window.getPixels();
+        
+        double bestCriterion = -2.0 * joint.getLikelihood() 
+                + JointLikelihoodFitter.getParameterCount(1) * penalty;
+        int bestCount = 1;
+        
+        for (int k = 2; k <= maxEmitters; k++) {
+            
+            // seed the new particle at the largest residual
+            final int peak = joint.findResidualPeak(psf, pixels, size, 
+                    pixelSize, best, k - 1);
+            
+            System.arraycopy(best, 0, params, 0, (k - 1) * stride);
+            params[(k - 1) * stride] = (peak % size + 0.5) * pixelSize;
+            params[(k - 1) * stride + 1] = (peak / size + 0.5) * pixelSize;
+            params[(k - 1) * stride + 2] = 
+                    Math.max(joint.getResidualSum(), 1.0);
+            params[k * stride] = best[(k - 1) * stride];
+            
+            final boolean success = joint.fit(psf, pixels, size, 
+                    pixelSize, params, k, maxIterations, posEpsilon, 
+                    intEpsilon);
+            
+            synchronized (this) {
+                iterations += joint.getIterations();
+            }
+            
+            if (!success || !isInside(params, k, size)) {
+                break;
+            }
+            
+            final double criterion = -2.0 * joint.getLikelihood()
+                    + JointLikelihoodFitter.getParameterCount(k) * penalty;
+            
+            // stop once another particle no longer explains the data better
+            if (criterion >= bestCriterion) {
+                break;
+            }
+            
+            bestCriterion = criterion;
+            bestCount = k;
+            System.arraycopy(params, 0, best, 0, 
+                    JointLikelihoodFitter.getParameterCount(k));
+            for (int e = 0; e < k; e++) {
+                ws.bestPrecision[e] = findPrecision(joint, e);
+                ws.bestFraction[e] = joint.getWindowFraction(e);
+            }
+        }
+        
+        synchronized (this) {
+            multipleEmitters += bestCount - 1;
+        }
+        
+        return bestCount;
+    }
+    
+    // checks that the fitted particles are valid and within the window
+    private boolean isInside(final double[] params, 
+                             final int emitters, 
+                             final int size) {
+        final int background = 
+                JointLikelihoodFitter.getParameterCount(emitters) - 1;
+        
+        if (Double.isNaN(params[background]) || params[background] < 0) {
+            return false;
+        }
+        
+        for (int k = 0; k < emitters; k++) {
+            final int p = k * JointLikelihoodFitter.EMITTER_PARAMETERS;
+            
+            if (Double.isNaN(params[p + 2]) || params[p + 2] < 0
+                    || !(params[p] >= 0.0) || params[p] > size * pixelSize
+                    || !(params[p + 1] >= 0.0) 
+                    || params[p + 1] > size * pixelSize) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    // marks the pixels around the candidate as processed, so that no other
+    // candidate is fitted to the same particle
+    private static void markProcessed(final FitRecord record) {
+        final int x = record.getCandidateX();
+        final int y = record.getCandidateY();
+        record.setWindow(y - PROCESSED_RADIUS, y + PROCESSED_RADIUS, 
+                x - PROCESSED_RADIUS, x + PROCESSED_RADIUS);
+    }
+    
+    // combines the x and y Cramer-Rao bounds of a particle (in nm)
+    private static double findPrecision(final JointLikelihoodFitter joint,
+                                        final int emitter) {
+        final int p = emitter * JointLikelihoodFitter.EMITTER_PARAMETERS;
+        final double precisionX = joint.getPrecision(p);
+        final double precisionY = joint.getPrecision(p + 1);
+        
+        return Math.sqrt((precisionX * precisionX 
+                        + precisionY * precisionY) / 2.0);
+    }
+    
     private static double findCenterOfMass(final double[] data, 
                                            final double bgNoise) {
         double center = 0;
@@ -244,36 +803,38 @@ implements ImageProcess, SettingsDialog, DebugStats {
     /**
      * Estimates the position of the particle along one axis based on the data
      * provided.
+     * @param psf the PSF model to evaluate
      * @param params the estimated position of the particle, the photon 
      * coefficient found, and the number of photon counts in the background
      * @param data the summation of photon counts along rows or columns
      * @param length the number of elements summed up to obtain the data array
+     * @param ws the scratch buffers of the current thread
+     * @return the number of iterations used
      */
-    private void runMaximumLikelyhoodEstimator(final double[] params,
-                                               final double[] data,
-                                               final double length) {
+    private int runMaximumLikelyhoodEstimator(final PSFModel psf,
+                                              final double[] params,
+                                              final double[] data,
+                                              final double length,
+                                              final Workspace ws) {
         
         synchronized (this) {
             totalAttempts++;
         }
         
+        final double[] expected = ws.expected;
+        final double[] firstDeriv = ws.firstDeriv;
+        final double[] secondDeriv = ws.secondDeriv;
+        
+        int iteration = 0;
+        
         // adjust the position using an iterative method; exit if very little 
         // change occurs.
-        for (int y = 0; y < maxIterations; y++) {
+        while (iteration < maxIterations) {
             
             final double paramPos = params[0];
             final double paramPhoton = params[1];
             final double paramBg = params[2];
             
-            final double[] firstDeriv = 
-                    findFirstDerivative(paramPos, data.length, length);
-            
-            final double[] secondDeriv = 
-                    findSecondDerivative(paramPos, data.length, length);
-            
-            final double[] incomplExpected = 
-                    findExpectedCount(paramPos, data.length, length);
-            
             double numerPos = 0;
             double denomPos = 0;
             double numerPhoton = 0;
@@ -281,22 +842,27 @@ implements ImageProcess, SettingsDialog, DebugStats {
             double numerBg = 0;
             double denomBg = 0;
             
-            // sum the calculations for all data points
+            // evaluate the model and sum the calculations for all data points
             for (int n = 0; n < data.length; n++) {
                 
+                psf.evaluate((n + 0.5) * pixelSize - paramPos, 
+                        expected, firstDeriv, secondDeriv, n);
+                
+                final double incomplExpected = length * expected[n];
+                
                 final double complExpected = 
-                        paramPhoton * incomplExpected[n] + length * paramBg;
+                        paramPhoton * incomplExpected + length * paramBg;
                 
                 final double shared1 = data[n] / complExpected - 1.0;
                 final double shared2 = data[n] / (complExpected*complExpected);
                 
-                final double d1Pos = paramPhoton*firstDeriv[n];
-                final double d2Pos = paramPhoton*secondDeriv[n];
+                final double d1Pos = paramPhoton * length * firstDeriv[n];
+                final double d2Pos = paramPhoton * length * secondDeriv[n];
                 
                 numerPos += shared1 * d1Pos;
                 denomPos += shared1 * d2Pos - shared2 * (d1Pos*d1Pos);
                 
-                final double d1Photon = incomplExpected[n];
+                final double d1Photon = incomplExpected;
                 
                 numerPhoton += shared1 * d1Photon;
                 denomPhoton += -shared2 * (d1Photon*d1Photon);
@@ -313,9 +879,7 @@ implements ImageProcess, SettingsDialog, DebugStats {
             params[1] -= numerPhoton / denomPhoton;
             params[2] -= numerBg / denomBg;
             
-            synchronized (this) {
-                iterations++;
-            }
+            iteration++;
             
             final double intPDiff = 2.0 * Math.abs(paramPhoton - params[1]) 
                                                 / (paramPhoton + params[1]);
@@ -325,91 +889,54 @@ implements ImageProcess, SettingsDialog, DebugStats {
                 break;
             }
         }
+        
+        return iteration;
     }
     
-    /**
-     * @param position the estimated position of the particle
-     * @param pixelCount the number of data points
-     * @return a list of the expected first derivatives
-     */
-    private double[] findFirstDerivative(
-            final double position,
-            final int pixelCount,
-            final double length) {
+    // evaluates the model (scaled by length) at each pixel into the workspace
+    private void evaluateModel(final PSFModel psf,
+                               final double position,
+                               final int pixelCount,
+                               final double length,
+                               final Workspace ws) {
         
-        final int numPixels = pixelCount;
-        final double usablePixel = usablePixelCoeff * pixelSize;
-        final double sigma = ALPHA * pow(2.0 * PI / wavelength, 2);
-        final double[] firstDerivatives = new double[numPixels];
-        
-        for (int i = 0; i < numPixels; i++) {
+        for (int i = 0; i < pixelCount; i++) {
             final double p = (i + 0.5) * pixelSize - position;
-            
-            final double firstTerm = -sigma * pow(p - usablePixel/2.0, 2);
-            final double secondTerm = -sigma * pow(p + usablePixel/2.0, 2);
-            
-            firstDerivatives[i] = length * sqrt(PI / sigma) 
-                                        * (exp(firstTerm) - exp(secondTerm));
+            psf.evaluate(p, ws.expected, ws.firstDeriv, ws.secondDeriv, i);
+            ws.expected[i] *= length;
         }
-        
-        return firstDerivatives;
     }
     
-    /**
-     * @param position the estimated position of the particle
-     * @param pixelCount the number of data points
-     * @return a list of the expected second derivatives
-     */
-    private double[] findSecondDerivative(
-            final double position,
-            final int pixelCount,
-            final double length) {
-    
-        final int numPixels = pixelCount;
+    // returns the PSF model for the current configuration
+    private PSFModel getModel() {
+        final double sigma = PSFModel.findSigma(ALPHA, wavelength);
         final double usablePixel = usablePixelCoeff * pixelSize;
-        final double sigma = ALPHA * pow(2.0 * PI / wavelength, 2);
-        final double[] secondDerivatives = new double[numPixels];
         
-        for (int i = 0; i < numPixels; i++) {
-            final double p = (i + 0.5) * pixelSize - position;
-            
-            final double firstTerm = -sigma * pow(p - usablePixel/2.0, 2);
-            final double secondTerm = -sigma * pow(p + usablePixel/2.0, 2);
-            
-            final double firstConstant = 2.0 * sigma * (p - usablePixel/2.0);
-            final double secondConstant = 2.0 * sigma * (p + usablePixel/2.0);
-            
-            secondDerivatives[i] = length * sqrt(PI / sigma) 
-                    * (firstConstant*exp(firstTerm) - secondConstant*exp(secondTerm));
+        PSFModel psf = model;
+        
+        if (psf == null || !psf.matches(sigma, usablePixel, tableError, 
+                singlePrecision)) {
+            synchronized (this) {
+                psf = model;
+                if (psf == null || !psf.matches(sigma, usablePixel, 
+                        tableError, singlePrecision)) {
+                    psf = new PSFModel(sigma, usablePixel, tableError, 
+                            singlePrecision);
+                    model = psf;
+                }
+            }
         }
         
-        return  secondDerivatives;
+        return psf;
     }
     
-    /**
-     * @param position the estimated position of the particle
-     * @param pixelCount the number of data points
-     * @return a list of the expected second derivatives
-     */
-    private double[] findExpectedCount(
-            final double position,
-            final int pixelCount,
-            final double length) {
-        
-        final double usablePixel = usablePixelCoeff * pixelSize;
-        final double sigma = ALPHA * pow(2.0 * PI / wavelength, 2);
-        final double[] expectedCount = new double[pixelCount];
-        
-        for (int i = 0; i < pixelCount; i++) {
-            final double p = (i + 0.5) * pixelSize - position;
-            final double firstTerm = sqrt(sigma) * (p - usablePixel/2.0);
-            final double secondTerm = sqrt(sigma) * (p + usablePixel/2.0);
-            
-            expectedCount[i] = 
-                    length * PI / 2 / sigma * (erf(secondTerm) - erf(firstTerm));
+    // returns the sum of the array
+    private static double sum(final double[] array) {
+        double sum = 0;
+        for (double value : array) {
+            sum += value;
         }
-        
-        return expectedCount;
+        return sum;
     }
     
     // returns the minimum value of the array
@@ -434,35 +961,13 @@ implements ImageProcess, SettingsDialog, DebugStats {
         return max;
     }
     
-    // fast error function approximation
-    private static double erf(double x) {
-        final double v = Math.abs(x);
-        
-        final double p = 0.3275911;
-        final double t = 1.0/(1.0 + p*v);
-        final double t2 = t*t;
-        final double t3 = t2*t;
-        final double t4 = t3*t;
-        final double t5 = t4*t;
-        final double a1 =  0.254829592 * t;
-        final double a2 = -0.284496736 * t2;
-        final double a3 =  1.421413741 * t3;
-        final double a4 = -1.453152027 * t4;
-        final double a5 =  1.061405429 * t5;
-        final double result = 1.0 - (a1 + a2 + a3 + a4 + a5) * Math.exp(-v*v);
-        
-        if (x < 0)
-            return -result;
-        
-        return result;
-    }
-
     @Override
     public final void resetCounters() {
         synchronized (this) {
             iterations = 0;
             totalAttempts = 0;
             intensityCoeff = 0;
+            multipleEmitters = 0;
         }
     }
 
@@ -474,6 +979,7 @@ implements ImageProcess, SettingsDialog, DebugStats {
                 + ((double) iterations / totalAttempts));
             IJ.log("  Average Intensity Coefficient: "
                     + (intensityCoeff / totalAttempts));
+            IJ.log("  Additional Particles Fitted: " + multipleEmitters);
         }
     }
 
@@ -495,6 +1001,17 @@ implements ImageProcess, SettingsDialog, DebugStats {
                 Prefs.get(INT_MAX_ITER, MAX_ITER_DEF), 0);
         dialog.addNumericField("Initial Radius", 
                 Prefs.get(INIT_RADIUS, DEFAULT_RADIUS), 0, 6, "pixels");
+        dialog.addNumericField("PSF Table Error", 
+                Prefs.get(TABLE_ERROR, TABLE_ERROR_DEF), 3, 6, "%");
+        dialog.addCheckbox("Single Precision PSF Table", 
+                Prefs.get(SINGLE_PRECISION, false));
+        dialog.addCheckbox("Joint 2D Fit", Prefs.get(JOINT_FIT, false));
+        dialog.addNumericField("Maximum Precision (2D)", 
+                Prefs.get(MAX_PRECISION, MAX_PRECISION_DEF), 1, 6, "nm");
+        dialog.addNumericField("Maximum Particles per Window", 
+                Prefs.get(MAX_EMITTERS, MAX_EMITTERS_DEF), 0);
+        dialog.addNumericField("Fitting Batch Size", 
+                Prefs.get(BATCH_SIZE, BATCH_SIZE_DEF), 0, 6, "candidates");
     }
 
     @Override
@@ -506,6 +1023,12 @@ implements ImageProcess, SettingsDialog, DebugStats {
         intEpsilon = dialog.getNextNumber();
         maxIterations = (int) dialog.getNextNumber();
         initialRadius = (int) dialog.getNextNumber();
+        tableError = dialog.getNextNumber() / 100.0;
+        singlePrecision = dialog.getNextBoolean();
+        jointFit = dialog.getNextBoolean();
+        maxPrecision = dialog.getNextNumber();
+        maxEmitters = (int) dialog.getNextNumber();
+        batchSize = (int) dialog.getNextNumber();
         
         IJ.log("MaximumLikelyhoodEstimator Settings: ");
         IJ.log("  Wavelength: " + wavelength);
@@ -514,6 +1037,13 @@ implements ImageProcess, SettingsDialog, DebugStats {
         IJ.log("  Intensity Threshold: " + posEpsilon);
         IJ.log("  Maximum Iterations: " + maxIterations);
         IJ.log("  Initial Radius: " + initialRadius);
+        IJ.log("  PSF Table Error: " + tableError);
+        IJ.log("  Single Precision PSF Table: " 
+                + (singlePrecision ? "Enabled" : "Disabled"));
+        IJ.log("  Joint 2D Fit: " + (jointFit ? "Enabled" : "Disabled"));
+        IJ.log("  Maximum Precision: " + maxPrecision);
+        IJ.log("  Maximum Particles per Window: " + maxEmitters);
+        IJ.log("  Fitting Batch Size: " + batchSize);
         
         Prefs.set(WAVELENGTH, wavelength);
         Prefs.set(USABLE_PIXEL, usablePixelCoeff);
@@ -521,5 +1051,107 @@ implements ImageProcess, SettingsDialog, DebugStats {
         Prefs.set(INT_EPSILON, intEpsilon);
         Prefs.set(INT_MAX_ITER, maxIterations);
         Prefs.set(INIT_RADIUS, initialRadius);
+        Prefs.set(TABLE_ERROR, tableError * 100.0);
+        Prefs.set(SINGLE_PRECISION, singlePrecision);
+        Prefs.set(JOINT_FIT, jointFit);
+        Prefs.set(MAX_PRECISION, maxPrecision);
+        Prefs.set(MAX_EMITTERS, maxEmitters);
+        Prefs.set(BATCH_SIZE, batchSize);
+    }
+    
+    /**
+     * The parameters of a batch fit along one axis and the Newton sums of 
+     * every candidate, kept per thread with the batch.
+     */
+    private static final class BatchFit {
+        // parameters of the axis being fitted and which fits still iterate
+        private final double[] position;
+        private final double[] photon;
+        private final double[] background;
+        private final boolean[] active;
+        
+        // the x-axis results, kept while the y-axis is fitted
+        private final double[] resultX;
+        private final double[] photonX;
+        
+        // model values of one pixel and the Newton sums
+        private final double[] expected;
+        private final double[] firstDeriv;
+        private final double[] secondDeriv;
+        private final double[][] sums;
+        
+        private BatchFit(final int capacity) {
+            position = new double[capacity];
+            photon = new double[capacity];
+            background = new double[capacity];
+            active = new boolean[capacity];
+            resultX = new double[capacity];
+            photonX = new double[capacity];
+            expected = new double[capacity];
+            firstDeriv = new double[capacity];
+            secondDeriv = new double[capacity];
+            sums = new double[6][capacity];
+        }
+    }
+    
+    /**
+     * The scratch buffers used while fitting a candidate.  One instance is 
+     * kept per thread and reused for every candidate that thread fits.
+     */
+    private static final class Workspace {
+        // the window of the candidate being fitted (kept by its record)
+        private CandidateWindow window;
+        private double[] expected = new double[0];
+        private double[] firstDeriv = new double[0];
+        private double[] secondDeriv = new double[0];
+        private final double[] params = new double[3];
+        private final double[] jointParams = 
+                new double[JointLikelihoodFitter.PARAMETERS];
+        private final JointLikelihoodFitter joint = new JointLikelihoodFitter();
+        private double[] multiParams = new double[0];
+        private double[] bestParams = new double[0];
+        private double[] bestPrecision = new double[0];
+        private double[] bestFraction = new double[0];
+        private CandidateBatch batch;
+        private BatchFit batchFit;
+        
+        // retrieves the batch, recreating it if the size has changed
+        private CandidateBatch getBatch(final int capacity) {
+            if (batch == null || batch.getCapacity() != capacity) {
+                batch = new CandidateBatch(capacity);
+            }
+            
+            return batch;
+        }
+        
+        // retrieves the fit state of a batch, recreating it if the size has
+        // changed
+        private BatchFit getBatchFit(final int capacity) {
+            if (batchFit == null || batchFit.active.length != capacity) {
+                batchFit = new BatchFit(capacity);
+            }
+            
+            return batchFit;
+        }
+        
+        // grows the multiple particle buffers to the number of particles
+        private void ensureEmitters(final int emitters) {
+            if (bestPrecision.length < emitters) {
+                final int n = JointLikelihoodFitter.getParameterCount(emitters);
+                multiParams = new double[n];
+                bestParams = new double[n];
+                bestPrecision = new double[emitters];
+                bestFraction = new double[emitters];
+            }
+        }
+        
+        // resizes the buffers if needed
+        private void resize(final int size) {
+            if (expected.length != size) {
+                expected = new double[size];
+                firstDeriv = new double[size];
+                secondDeriv = new double[size];
+            }
+        }
     }
 }
@@ -0,0 +1,535 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * The MLE algorithm was conceived by Alex Small and developed by Rebecca Starr,
+ * with support from California State University Program for Education and
+ * Research in Biotechnology (CSUPERB).
+ */
+
+import static java.lang.Math.PI;
+import static java.lang.Math.abs;
+import static java.lang.Math.exp;
+import static java.lang.Math.log;
+import static java.lang.Math.max;
+import static java.lang.Math.sqrt;
+
+/**
+ * The pixel-integrated point spread function used by the maximum likelihood
+ * estimator, along with its first and second derivatives with respect to the
+ * particle position.
+ *
+ * <p>All three functions depend only on the offset between the pixel center
+ * and the particle, so they are sampled once per configuration into a table
+ * and linearly interpolated afterwards.  The sample spacing is refined until
+ * the interpolation error is below the requested tolerance (relative to the
+ * peak of each function).  A tolerance of zero disables the table and every
+ * value is computed directly.
+ *
+ * <p>The table may be stored in single precision, which halves its size (and
+ * the memory traffic of the lookups) at the cost of a relative rounding error
+ * of about 6e-8 of the peak on top of the interpolation tolerance.
+ *
+ * <p>Besides the scalar {@link #evaluate(double, double[], double[], double[],
+ * int)}, the model can evaluate one pixel for many particle positions at 
+ * once, for fitting a batch of candidates in lock-step.
+ *
+ * <p>Instances are immutable and may be shared between threads.
+ */
+public class PSFModel {
+
+    // values below this fraction of the peak are treated as zero
+    private static final double CUTOFF = 1e-12;
+
+    // upper limit on the number of samples in the table
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    // ln(2) split into a high part with trailing zeros and a low correction
+    private static final double LN2_HI = 6.93147180369123816490e-01;
+    private static final double LN2_LO = 1.90821492927058770002e-10;
+    private static final double LOG2_E = 1.44269504088896338700e+00;
+
+    // arguments beyond these limits under- or overflow a double
+    private static final double EXP_MIN = -708.0;
+    private static final double EXP_MAX = 709.0;
+
+    private final double sigma;
+    private final double usableWidth;
+    private final double tolerance;
+    private final boolean singlePrecision;
+
+    // half-width of the tabulated region (in nm)
+    private final double range;
+
+    // interleaved samples {expected, first, second} and the sample spacing;
+    // only one of the two tables is used
+    private final double[] table;
+    private final float[] floatTable;
+    private final int samples;
+    private final double step;
+    private final double invStep;
+
+    /**
+     * Creates the model and, if the tolerance is positive, its lookup table.
+     * @param sigma the Gaussian coefficient of the PSF (in 1/nm^2)
+     * @param usableWidth the light-sensitive width of a pixel (in nm)
+     * @param tolerance the maximum interpolation error relative to the peak
+     * of each function; zero or less evaluates the model directly
+     * @param singlePrecision true to store the table in single precision
+     */
+    public PSFModel(final double sigma,
+                    final double usableWidth,
+                    final double tolerance,
+                    final boolean singlePrecision) {
+        this.sigma = sigma;
+        this.usableWidth = usableWidth;
+        this.tolerance = tolerance;
+        this.singlePrecision = singlePrecision;
+
+        range = usableWidth / 2.0 + sqrt(-log(CUTOFF) / sigma);
+
+        if (tolerance <= 0) {
+            table = null;
+            floatTable = null;
+            samples = 0;
+            step = 0;
+            invStep = 0;
+            return;
+        }
+
+        // start with a few samples per Gaussian width and refine
+        double spacing = 1.0 / sqrt(sigma) / 4.0;
+        double[] values = sample(spacing);
+
+        while (findError(values, spacing) > tolerance
+                && 2 * (values.length / 3) <= MAX_SAMPLES) {
+            spacing /= 2.0;
+            values = sample(spacing);
+        }
+
+        if (singlePrecision) {
+            floatTable = new float[values.length];
+            for (int i = 0; i < values.length; i++) {
+                floatTable[i] = (float) values[i];
+            }
+            table = null;
+        } else {
+            floatTable = null;
+            table = values;
+        }
+        
+        samples = values.length / 3;
+        step = spacing;
+        invStep = 1.0 / spacing;
+    }
+
+    /**
+     * Checks if this model was built for the given configuration.
+     * @param sigma the Gaussian coefficient of the PSF
+     * @param usableWidth the light-sensitive width of a pixel
+     * @param tolerance the interpolation tolerance
+     * @param singlePrecision true if the table is in single precision
+     * @return true if the configuration is the same; false otherwise
+     */
+    public final boolean matches(final double sigma,
+                                 final double usableWidth,
+                                 final double tolerance,
+                                 final boolean singlePrecision) {
+        return this.sigma == sigma
+                && this.usableWidth == usableWidth
+                && this.tolerance == tolerance
+                && this.singlePrecision == singlePrecision;
+    }
+
+    /**
+     * Retrieves the Gaussian coefficient of the PSF.
+     * @return the Gaussian coefficient (in 1/nm^2)
+     */
+    public final double getSigma() {
+        return sigma;
+    }
+
+    /**
+     * Retrieves the number of samples in the lookup table.
+     * @return the number of samples (zero if evaluated directly)
+     */
+    public final int getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * Retrieves the spacing between samples in the lookup table.
+     * @return the sample spacing in nm (zero if evaluated directly)
+     */
+    public final double getSampleSpacing() {
+        return step;
+    }
+
+    /**
+     * Evaluates the expected count of a pixel (per unit of photon 
+     * coefficient) along with its first and second derivatives with respect
+     * to the particle position, and stores them at the given index.
+     * @param offset the pixel center minus the particle position (in nm)
+     * @param expected receives the expected count
+     * @param first receives the first derivative
+     * @param second receives the second derivative
+     * @param index the index to store the values at
+     */
+    public final void evaluate(final double offset,
+                               final double[] expected,
+                               final double[] first,
+                               final double[] second,
+                               final int index) {
+        if (table == null && floatTable == null) {
+            evaluateExact(offset, expected, first, second, index);
+            return;
+        }
+
+        final double position = (offset + range) * invStep;
+        if (!(position >= 0) || position >= samples - 1) {
+            expected[index] = 0;
+            first[index] = 0;
+            second[index] = 0;
+            return;
+        }
+
+        // all three functions share the same interpolation weights
+        final int sample = (int) position;
+        final double fraction = position - sample;
+        final int k = 3 * sample;
+
+        if (floatTable != null) {
+            final float[] t = floatTable;
+            expected[index] = t[k] + fraction * (t[k + 3] - t[k]);
+            first[index] = t[k + 1] + fraction * (t[k + 4] - t[k + 1]);
+            second[index] = t[k + 2] + fraction * (t[k + 5] - t[k + 2]);
+            return;
+        }
+
+        expected[index] = table[k] + fraction * (table[k + 3] - table[k]);
+        first[index] = table[k + 1] + fraction * (table[k + 4] - table[k + 1]);
+        second[index] = table[k + 2] + fraction * (table[k + 5] - table[k + 2]);
+    }
+
+    /**
+     * Evaluates one pixel for many particle positions, storing the values of
+     * particle {@code j} at index {@code j}.  This gives the same values as
+     * the scalar version, except when evaluating directly: the exponentials
+     * then come from {@link #fastExp(double)}, which changes the results by 
+     * a relative 1e-14 or less.
+     * @param center the center of the pixel (in nm)
+     * @param position the particle positions (in nm)
+     * @param count the number of positions to evaluate
+     * @param expected receives the expected counts
+     * @param first receives the first derivatives
+     * @param second receives the second derivatives
+     */
+    public final void evaluate(final double center,
+                               final double[] position,
+                               final int count,
+                               final double[] expected,
+                               final double[] first,
+                               final double[] second) {
+        if (table != null) {
+            evaluateTable(center, position, count, expected, first, second);
+        } else if (floatTable != null) {
+            evaluateFloatTable(center, position, count, 
+                    expected, first, second);
+        } else {
+            evaluateExact(center, position, count, expected, first, second);
+        }
+    }
+
+    // interpolates the table without branching; positions outside the table
+    // read the first sample with a weight of zero
+    private void evaluateTable(final double center,
+                               final double[] position,
+                               final int count,
+                               final double[] expected,
+                               final double[] first,
+                               final double[] second) {
+        final double[] t = table;
+        final double limit = samples - 1;
+
+        for (int j = 0; j < count; j++) {
+            final double point = (center - position[j] + range) * invStep;
+            final boolean inside = point >= 0 && point < limit;
+            final double weight = inside ? 1.0 : 0.0;
+            final double clamped = inside ? point : 0.0;
+
+            final int sample = (int) clamped;
+            final double fraction = clamped - sample;
+            final int k = 3 * sample;
+
+            expected[j] = weight * (t[k] + fraction * (t[k + 3] - t[k]));
+            first[j] = weight * (t[k + 1] + fraction * (t[k + 4] - t[k + 1]));
+            second[j] = weight * (t[k + 2] + fraction * (t[k + 5] - t[k + 2]));
+        }
+    }
+
+    // the same as evaluateTable, reading the single precision table
+    private void evaluateFloatTable(final double center,
+                                    final double[] position,
+                                    final int count,
+                                    final double[] expected,
+                                    final double[] first,
+                                    final double[] second) {
+        final float[] t = floatTable;
+        final double limit = samples - 1;
+
+        for (int j = 0; j < count; j++) {
+            final double point = (center - position[j] + range) * invStep;
+            final boolean inside = point >= 0 && point < limit;
+            final double weight = inside ? 1.0 : 0.0;
+            final double clamped = inside ? point : 0.0;
+
+            final int sample = (int) clamped;
+            final double fraction = clamped - sample;
+            final int k = 3 * sample;
+
+            expected[j] = weight * (t[k] + fraction * (t[k + 3] - t[k]));
+            first[j] = weight * (t[k + 1] + fraction * (t[k + 4] - t[k + 1]));
+            second[j] = weight * (t[k + 2] + fraction * (t[k + 5] - t[k + 2]));
+        }
+    }
+
+    // evaluates all three functions directly for every position
+    private void evaluateExact(final double center,
+                               final double[] position,
+                               final int count,
+                               final double[] expected,
+                               final double[] first,
+                               final double[] second) {
+        final double halfWidth = usableWidth / 2.0;
+        final double rootSigma = sqrt(sigma);
+        final double coeff = sqrt(PI / sigma);
+        final double scale = PI / 2 / sigma;
+
+        for (int j = 0; j < count; j++) {
+            final double offset = center - position[j];
+            final double low = offset - halfWidth;
+            final double high = offset + halfWidth;
+            final double expLow = fastExp(-sigma * low * low);
+            final double expHigh = fastExp(-sigma * high * high);
+
+            expected[j] = scale * (fastErf(rootSigma * high, expHigh)
+                    - fastErf(rootSigma * low, expLow));
+            first[j] = coeff * (expLow - expHigh);
+            second[j] = coeff 
+                    * (2.0 * sigma * low * expLow - 2.0 * sigma * high * expHigh);
+        }
+    }
+
+    // evaluates all three functions directly using one exp per pixel edge
+    private void evaluateExact(final double offset,
+                               final double[] expected,
+                               final double[] first,
+                               final double[] second,
+                               final int index) {
+        final double low = offset - usableWidth / 2.0;
+        final double high = offset + usableWidth / 2.0;
+        final double expLow = exp(-sigma * low * low);
+        final double expHigh = exp(-sigma * high * high);
+        final double rootSigma = sqrt(sigma);
+        final double coeff = sqrt(PI / sigma);
+
+        expected[index] = PI / 2 / sigma 
+                * (erf(rootSigma * high, expHigh) - erf(rootSigma * low, expLow));
+        first[index] = coeff * (expLow - expHigh);
+        second[index] = coeff 
+                * (2.0 * sigma * low * expLow - 2.0 * sigma * high * expHigh);
+    }
+
+    // samples all three functions over the range with the given spacing
+    private double[] sample(final double spacing) {
+        final int count = (int) Math.ceil(2.0 * range / spacing) + 1;
+        final double[] values = new double[3 * count];
+
+        for (int i = 0; i < count; i++) {
+            final double offset = i * spacing - range;
+            values[3 * i] = exactExpected(sigma, usableWidth, offset);
+            values[3 * i + 1] = exactFirstDerivative(sigma, usableWidth, offset);
+            values[3 * i + 2] = exactSecondDerivative(sigma, usableWidth, offset);
+        }
+
+        return values;
+    }
+
+    // finds the worst relative interpolation error at the sample midpoints
+    private double findError(final double[] values, final double spacing) {
+        final double[] peak = {0.0, 0.0, 0.0};
+        final double[] error = {0.0, 0.0, 0.0};
+        final int count = values.length / 3;
+
+        for (int i = 0; i < count - 1; i++) {
+            final double offset = (i + 0.5) * spacing - range;
+            final double[] exact = {
+                exactExpected(sigma, usableWidth, offset),
+                exactFirstDerivative(sigma, usableWidth, offset),
+                exactSecondDerivative(sigma, usableWidth, offset)
+            };
+
+            for (int f = 0; f < 3; f++) {
+                final double interp =
+                        (values[3 * i + f] + values[3 * i + 3 + f]) / 2.0;
+                peak[f] = max(peak[f], abs(values[3 * i + f]));
+                error[f] = max(error[f], abs(interp - exact[f]));
+            }
+        }
+
+        return max(error[0] / peak[0],
+                max(error[1] / peak[1], error[2] / peak[2]));
+    }
+
+    /**
+     * Computes the Gaussian coefficient of the PSF for the wavelength.
+     * @param alpha the PSF width coefficient
+     * @param wavelength the wavelength of the emitted light (in nm)
+     * @return the Gaussian coefficient (in 1/nm^2)
+     */
+    public static double findSigma(final double alpha,
+                                   final double wavelength) {
+        final double k = 2.0 * PI / wavelength;
+        return alpha * k * k;
+    }
+
+    /**
+     * @param sigma the Gaussian coefficient of the PSF
+     * @param usable the light-sensitive width of a pixel
+     * @param p the pixel center minus the particle position
+     * @return the expected count per unit of photon coefficient
+     */
+    static double exactExpected(final double sigma,
+                                final double usable,
+                                final double p) {
+        final double firstTerm = sqrt(sigma) * (p - usable / 2.0);
+        final double secondTerm = sqrt(sigma) * (p + usable / 2.0);
+
+        return PI / 2 / sigma * (erf(secondTerm) - erf(firstTerm));
+    }
+
+    /**
+     * @param sigma the Gaussian coefficient of the PSF
+     * @param usable the light-sensitive width of a pixel
+     * @param p the pixel center minus the particle position
+     * @return the first derivative of the expected count
+     */
+    static double exactFirstDerivative(final double sigma,
+                                       final double usable,
+                                       final double p) {
+        final double low = p - usable / 2.0;
+        final double high = p + usable / 2.0;
+
+        return sqrt(PI / sigma)
+                * (exp(-sigma * low * low) - exp(-sigma * high * high));
+    }
+
+    /**
+     * @param sigma the Gaussian coefficient of the PSF
+     * @param usable the light-sensitive width of a pixel
+     * @param p the pixel center minus the particle position
+     * @return the second derivative of the expected count
+     */
+    static double exactSecondDerivative(final double sigma,
+                                        final double usable,
+                                        final double p) {
+        final double low = p - usable / 2.0;
+        final double high = p + usable / 2.0;
+
+        return sqrt(PI / sigma)
+                * (2.0 * sigma * low * exp(-sigma * low * low)
+                 - 2.0 * sigma * high * exp(-sigma * high * high));
+    }
+
+    /**
+     * Fast error function approximation.
+     * @param x the argument
+     * @return the approximate error function of x
+     */
+    static double erf(final double x) {
+        return erf(x, Math.exp(-x*x));
+    }
+
+    /**
+     * Fast error function approximation, given exp(-x*x) computed elsewhere.
+     * @param x the argument
+     * @param expNegSquare the value of exp(-x*x)
+     * @return the approximate error function of x
+     */
+    static double erf(final double x, final double expNegSquare) {
+        final double v = Math.abs(x);
+
+        final double p = 0.3275911;
+        final double t = 1.0/(1.0 + p*v);
+        final double t2 = t*t;
+        final double t3 = t2*t;
+        final double t4 = t3*t;
+        final double t5 = t4*t;
+        final double a1 =  0.254829592 * t;
+        final double a2 = -0.284496736 * t2;
+        final double a3 =  1.421413741 * t3;
+        final double a4 = -1.453152027 * t4;
+        final double a5 =  1.061405429 * t5;
+        final double result = 1.0 - (a1 + a2 + a3 + a4 + a5) * expNegSquare;
+
+        if (x < 0)
+            return -result;
+
+        return result;
+    }
+
+    /**
+     * The same approximation as {@link #erf(double, double)}, with the sign 
+     * applied without a branch.  The absolute error is below 1.5e-7 (the 
+     * error of the Abramowitz and Stegun formula 7.1.26).
+     * @param x the argument
+     * @param expNegSquare the value of exp(-x*x)
+     * @return the approximate error function of x
+     */
+    static double fastErf(final double x, final double expNegSquare) {
+        final double t = 1.0 / (1.0 + 0.3275911 * Math.abs(x));
+        final double poly = t * (0.254829592 + t * (-0.284496736 
+                + t * (1.421413741 + t * (-1.453152027 + t * 1.061405429))));
+
+        return Math.copySign(1.0 - poly * expNegSquare, x);
+    }
+
+    /**
+     * Exponential function without library calls.  The argument is reduced 
+     * to x = k ln(2) + r with |r| &lt;= ln(2)/2, exp(r) is evaluated with a
+     * degree 11 Taylor polynomial (truncation error below 7e-15), and 2^k is
+     * built directly from its bits.  The relative error is below 1e-14 for 
+     * x in [-708, 709]; smaller arguments return zero and larger ones are 
+     * clamped.
+     * @param x the argument
+     * @return the approximate exponential of x
+     */
+    static double fastExp(final double x) {
+        final double clamped = Math.max(Math.min(x, EXP_MAX), EXP_MIN);
+        final double k = Math.rint(clamped * LOG2_E);
+        final double r = clamped - k * LN2_HI - k * LN2_LO;
+
+        final double poly = 1.0 + r * (1.0 + r * (1.0 / 2 + r * (1.0 / 6
+                + r * (1.0 / 24 + r * (1.0 / 120 + r * (1.0 / 720
+                + r * (1.0 / 5040 + r * (1.0 / 40320 + r * (1.0 / 362880
+                + r * (1.0 / 3628800 + r * (1.0 / 39916800)))))))))));
+        final double power = 
+                Double.longBitsToDouble(((long) k + 1023L) << 52);
+
+        return x < EXP_MIN ? 0.0 : poly * power;
+    }
+}
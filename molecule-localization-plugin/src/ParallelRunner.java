@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a task on a number of threads and waits for all of them to finish.
+ * Work that is shared out dynamically is taken by the task itself, e.g. 
+ * from an {@link java.util.concurrent.atomic.AtomicInteger} it holds.
+ * If a thread fails, the first failure is thrown to the caller once every 
+ * thread has finished, so that partial results are never used.
+ */
+public final class ParallelRunner {
+    
+    private ParallelRunner() {
+    }
+    
+    /**
+     * The work done by each thread.
+     */
+    public interface Task {
+        /**
+         * @param thread the number of the thread, from zero
+         */
+        void run(int thread);
+    }
+    
+    /**
+     * @return the number of threads to use for work on all processors
+     */
+    public static int getThreadCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+    
+    /**
+     * Runs a task on every processor and waits for all of them.
+     * @param name the name of the threads, followed by their number
+     * @param task the task run by each thread
+     * @throws RuntimeException the first failure of a thread
+     */
+    public static void run(final String name, final Task task) {
+        run(name, getThreadCount(), task);
+    }
+    
+    /**
+     * Runs a task on the given number of threads and waits for all of them.
+     * @param name the name of the threads, followed by their number
+     * @param threads the number of threads
+     * @param task the task run by each thread
+     * @throws RuntimeException the first failure of a thread
+     */
+    public static void run(final String name, 
+                           final int threads, 
+                           final Task task) {
+        final Thread[] thread = new Thread[threads];
+        final AtomicReference<Throwable> failure = 
+                new AtomicReference<Throwable>();
+        
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            thread[i] = new Thread(name + i) {
+                @Override
+                public void run() {
+                    try {
+                        task.run(index);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            thread[i].start();
+        }
+        
+        // the workers still write to shared arrays, so an interrupt does 
+        // not stop the waiting; it is passed on afterwards
+        boolean interrupted = false;
+        for (int i = 0; i < threads; i++) {
+            while (thread[i].isAlive()) {
+                try {
+                    thread[i].join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        
+        final Throwable e = failure.get();
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,424 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+import java.awt.Font;
+import java.util.Arrays;
+import java.util.List;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
+
+/**
+ * Links the localizations into the trajectories of single particles, for
+ * single-particle tracking (sptPALM).  The localizations are visited frame
+ * by frame, and each is linked to the end of an open track within the link
+ * distance.  All pairs of localizations and track ends within the distance
+ * are collected for the frame and linked from the closest pair on, each 
+ * localization and track end at most once, so a crowded frame is not 
+ * decided by the order the localizations were found in.  A track stays open
+ * for as many missed frames as allowed.
+ *
+ * <p>The open track ends are kept on a grid with cells as wide as the link
+ * distance, so only the nine cells around a localization are searched and 
+ * the work grows linearly with the number of localizations.
+ *
+ * <p>Every localization of a track at least the minimum length is given 
+ * the number of its track, and the mean square displacement of each track
+ * is found for the first lags, along with the diffusion coefficient fitted
+ * to it.
+ */
+public class ParticleTracker implements PostProcess, SettingsDialog {
+    
+    private static final double DISTANCE_DEF = 200.0;
+    private static final int GAP_DEF = 1;
+    private static final int LENGTH_DEF = 5;
+    private static final double INTERVAL_DEF = 20.0;
+    
+    // the number of lags of the mean square displacement, and of the fit
+    private static final int LAGS = 10;
+    private static final int FIT_LAGS = 4;
+    
+    private static final String ENABLED = 
+            "Localize_Particles.ParticleTracker.enabled";
+    
+    private static final String DISTANCE = 
+            "Localize_Particles.ParticleTracker.distance";
+    
+    private static final String GAP = 
+            "Localize_Particles.ParticleTracker.gap";
+    
+    private static final String LENGTH = 
+            "Localize_Particles.ParticleTracker.length";
+    
+    private static final String INTERVAL = 
+            "Localize_Particles.ParticleTracker.interval";
+    
+    private boolean enabled;
+    private double distance;                // link distance (nm)
+    private int gap;                        // missed frames allowed
+    private int minimumLength;              // localizations per track
+    private double interval;                // time between frames (ms)
+    
+    @Override
+    public final void displaySettings(final GenericDialog dialog, 
+                                      final Font header) {
+        dialog.addMessage("Particle Tracking", header);
+        dialog.addCheckbox("Track Particles", Prefs.get(ENABLED, false));
+        dialog.addNumericField("Link Distance", 
+                Prefs.get(DISTANCE, DISTANCE_DEF), 1, 6, "nm");
+        dialog.addNumericField("Maximum Gap", 
+                Prefs.get(GAP, GAP_DEF), 0, 6, "frames");
+        dialog.addNumericField("Minimum Track Length", 
+                Prefs.get(LENGTH, LENGTH_DEF), 0, 6, "localizations");
+        dialog.addNumericField("Frame Interval", 
+                Prefs.get(INTERVAL, INTERVAL_DEF), 2, 6, "ms");
+    }
+    
+    @Override
+    public final void saveSettings(final GenericDialog dialog) {
+        enabled = dialog.getNextBoolean();
+        distance = dialog.getNextNumber();
+        gap = Math.max(0, (int) dialog.getNextNumber());
+        minimumLength = Math.max(2, (int) dialog.getNextNumber());
+        interval = dialog.getNextNumber();
+        
+        // nothing is within a distance of zero or less
+        if (enabled && !(distance > 0)) {
+            IJ.error("The link distance must be positive; "
+                    + "no tracks will be linked.");
+            enabled = false;
+        }
+        
+        IJ.log("ParticleTracker Settings: ");
+        IJ.log("  Enabled: " + (enabled ? "True" : "False"));
+        IJ.log("  Link Distance: " + distance + " nm");
+        IJ.log("  Maximum Gap: " + gap + " frames");
+        IJ.log("  Minimum Track Length: " + minimumLength);
+        IJ.log("  Frame Interval: " + interval + " ms");
+        
+        Prefs.set(ENABLED, enabled);
+        Prefs.set(DISTANCE, distance);
+        Prefs.set(GAP, gap);
+        Prefs.set(LENGTH, minimumLength);
+        Prefs.set(INTERVAL, interval);
+    }
+    
+    @Override
+    public final LocalizationStore runPostProcess(
+            final AbstractParticleLocator locator,
+            final LocalizationStore store) {
+        
+        if (!enabled) {
+            return store;
+        }
+        
+        final ImageStack stack = locator.getStack();
+        final int frames = stack.getSize();
+        final List<LocalizationStore.Chunk> chunks = store.getChunks();
+        
+        // sort references to the localizations by frame
+        final int[] start = new int[frames + 2];
+        final int[] sorted = FrameLinkGrid.sortByFrame(chunks, frames, start);
+        
+        // the track of each localization, in the same order as sorted
+        final int[] track = new int[sorted.length];
+        final int tracks = link(chunks, sorted, start, frames, 
+                stack.getWidth(), stack.getHeight(), 
+                distance / locator.getPixelSize(), track);
+        
+        // number the tracks that are long enough from one; the rest get zero
+        final int[] length = new int[tracks + 1];
+        for (int i = 0; i < sorted.length; i++) {
+            length[track[i]]++;
+        }
+        
+        final int[] number = new int[tracks + 1];
+        int kept = 0;
+        for (int t = 1; t <= tracks; t++) {
+            if (length[t] >= minimumLength) {
+                number[t] = ++kept;
+            }
+        }
+        
+        // sort the localizations by track, keeping them in frame order
+        final int[] first = new int[kept + 2];
+        for (int i = 0; i < sorted.length; i++) {
+            track[i] = number[track[i]];
+            first[track[i] + 1]++;
+        }
+        
+        for (int t = 0; t <= kept; t++) {
+            first[t + 1] += first[t];
+        }
+        
+        final int[] byTrack = new int[sorted.length];
+        final int[] next = first.clone();
+        
+        store.addTracks();
+        for (int i = 0; i < sorted.length; i++) {
+            final LocalizationStore.Chunk chunk = 
+                    chunks.get(LocalizationStore.getChunkNumber(sorted[i]));
+            chunk.getTracks()[LocalizationStore.getIndex(sorted[i])] 
+                    = track[i];
+            byTrack[next[track[i]]++] = sorted[i];
+        }
+        
+        showTracks(chunks, byTrack, first, kept, locator.getPixelSize());
+        
+        IJ.log("Particle Tracking: " + kept + " tracks of at least " 
+                + minimumLength + " localizations found in " + sorted.length 
+                + " localizations");
+        
+        return store;
+    }
+    
+    // Links the localizations, visited in frame order, into tracks numbered
+    // from one and returns the number of tracks.
+    private int link(final List<LocalizationStore.Chunk> chunks,
+                     final int[] sorted,
+                     final int[] start,
+                     final int frames,
+                     final int width,
+                     final int height,
+                     final double linkDistance,
+                     final int[] track) {
+        
+        // the open track ends, on a grid with the link distance as its 
+        // cell size, and the track of the end in each slot
+        final FrameLinkGrid ends = new FrameLinkGrid(linkDistance, 
+                width, height);
+        final double limit = linkDistance * linkDistance;
+        int[] endTrack = new int[0];
+        int tracks = 0;
+        
+        // the slot of the end of each open track, by track number
+        int[] slot = new int[256];
+        
+        // the pairs within the link distance in a frame, and their order
+        int[] pairEnd = new int[256];
+        int[] pairIndex = new int[256];
+        long[] order = new long[256];
+        boolean[] linked = new boolean[0];
+        
+        for (int n = 0; n <= frames; n++) {
+            
+            // close the tracks that have been missed for too long
+            ends.closeBefore(n - gap - 1, null);
+            
+            // collect the pairs of localizations and track ends
+            int pairs = 0;
+            for (int i = start[n]; i < start[n + 1]; i++) {
+                final LocalizationStore.Chunk chunk = 
+                        chunks.get(LocalizationStore.getChunkNumber(sorted[i]));
+                final int k = LocalizationStore.getIndex(sorted[i]);
+                final double x = chunk.getX()[k];
+                final double y = chunk.getY()[k];
+                
+                final int near = ends.findNear(x, y);
+                
+                for (int j = 0; j < near; j++) {
+                    final int e = ends.getNear(j);
+                    final double dx = ends.getX(e) - x;
+                    final double dy = ends.getY(e) - y;
+                    final double d = dx * dx + dy * dy;
+                    
+                    if (d > limit) {
+                        continue;
+                    }
+                    
+                    if (pairs == order.length) {
+                        pairEnd = Arrays.copyOf(pairEnd, 2 * pairs);
+                        pairIndex = Arrays.copyOf(pairIndex, 2 * pairs);
+                        order = Arrays.copyOf(order, 2 * pairs);
+                    }
+                    
+                    // non-negative floats sort the same as their bits
+                    pairEnd[pairs] = e;
+                    pairIndex[pairs] = i;
+                    order[pairs] = ((long) Float.floatToIntBits((float) d) 
+                            << 32) | pairs;
+                    pairs++;
+                }
+            }
+            
+            // link the closest pairs first, each end and localization once
+            Arrays.sort(order, 0, pairs);
+            
+            final int count = start[n + 1] - start[n];
+            if (linked.length < count) {
+                linked = new boolean[Math.max(count, 2 * linked.length)];
+            }
+            Arrays.fill(linked, 0, count, false);
+            
+            for (int p = 0; p < pairs; p++) {
+                final int pair = (int) order[p];
+                final int e = pairEnd[pair];
+                final int i = pairIndex[pair];
+                
+                if (ends.getLast(e) == n || linked[i - start[n]]) {
+                    continue;
+                }
+                
+                linked[i - start[n]] = true;
+                track[i] = endTrack[e];
+                ends.setLast(e, n);
+            }
+            
+            // move the linked ends and open tracks for the rest
+            for (int i = start[n]; i < start[n + 1]; i++) {
+                final LocalizationStore.Chunk chunk = 
+                        chunks.get(LocalizationStore.getChunkNumber(sorted[i]));
+                final int k = LocalizationStore.getIndex(sorted[i]);
+                final double x = chunk.getX()[k];
+                final double y = chunk.getY()[k];
+                
+                int e;
+                if (linked[i - start[n]]) {
+                    e = slot[track[i]];
+                } else {
+                    track[i] = ++tracks;
+                    e = ends.open(n);
+                    
+                    if (ends.getCapacity() > endTrack.length) {
+                        endTrack = Arrays.copyOf(endTrack, 
+                                ends.getCapacity());
+                    }
+                    if (tracks == slot.length) {
+                        slot = Arrays.copyOf(slot, 2 * tracks);
+                    }
+                    endTrack[e] = tracks;
+                    slot[tracks] = e;
+                }
+                
+                ends.place(e, x, y);
+            }
+        }
+        
+        return tracks;
+    }
+    
+    // Shows a table of the tracks, with the diffusion coefficient of each,
+    // and a table of the mean square displacement of each track by lag.
+    private void showTracks(final List<LocalizationStore.Chunk> chunks,
+                            final int[] byTrack,
+                            final int[] first,
+                            final int tracks,
+                            final double pixelSize) {
+        
+        final ResultsTable table = new ResultsTable();
+        final ResultsTable curves = new ResultsTable();
+        final double[] sum = new double[LAGS + 1];
+        final int[] pairs = new int[LAGS + 1];
+        final double scale = pixelSize * pixelSize * 1e-6;      // um^2
+        final double seconds = interval * 1e-3;
+        
+        for (int t = 1; t <= tracks; t++) {
+            Arrays.fill(sum, 0);
+            Arrays.fill(pairs, 0);
+            
+            // the squared displacements of all pairs of points a lag apart
+            for (int i = first[t]; i < first[t + 1]; i++) {
+                final LocalizationStore.Chunk from = chunks.get(
+                        LocalizationStore.getChunkNumber(byTrack[i]));
+                final int a = LocalizationStore.getIndex(byTrack[i]);
+                
+                for (int j = i + 1; j < first[t + 1]; j++) {
+                    final LocalizationStore.Chunk to = chunks.get(
+                            LocalizationStore.getChunkNumber(byTrack[j]));
+                    final int b = LocalizationStore.getIndex(byTrack[j]);
+                    final int lag = to.getFrames()[b] - from.getFrames()[a];
+                    
+                    if (lag > LAGS) {
+                        break;
+                    }
+                    
+                    final double dx = to.getX()[b] - from.getX()[a];
+                    final double dy = to.getY()[b] - from.getY()[a];
+                    sum[lag] += dx * dx + dy * dy;
+                    pairs[lag]++;
+                }
+            }
+            
+            // fit a line to the first lags, weighted by their pairs; the 
+            // offset takes up the localization error
+            double sw = 0;
+            double st = 0;
+            double sm = 0;
+            double stt = 0;
+            double stm = 0;
+            int fitted = 0;
+            
+            for (int lag = 1; lag <= LAGS; lag++) {
+                if (pairs[lag] == 0) {
+                    continue;
+                }
+                
+                final double msd = sum[lag] / pairs[lag] * scale;
+                
+                curves.incrementCounter();
+                curves.addValue("Track", t);
+                curves.addValue("Lag (frames)", lag);
+                curves.addValue("Lag (s)", lag * seconds);
+                curves.addValue("MSD (um^2)", msd);
+                curves.addValue("Pairs", pairs[lag]);
+                
+                if (lag <= FIT_LAGS) {
+                    final double w = pairs[lag];
+                    final double time = lag * seconds;
+                    sw += w;
+                    st += w * time;
+                    sm += w * msd;
+                    stt += w * time * time;
+                    stm += w * time * msd;
+                    fitted++;
+                }
+            }
+            
+            // the mean square displacement grows by 4D per second in 2D; 
+            // without two lags to fit a line to, D is left out
+            final double slope = fitted >= 2 
+                    ? (sw * stm - st * sm) / (sw * stt - st * st) 
+                    : Double.NaN;
+            
+            final int head = byTrack[first[t]];
+            final int tail = byTrack[first[t + 1] - 1];
+            
+            table.incrementCounter();
+            table.addValue("Track", t);
+            table.addValue("First Frame", 
+                    chunks.get(LocalizationStore.getChunkNumber(head))
+                    .getFrames()[LocalizationStore.getIndex(head)]);
+            table.addValue("Last Frame", 
+                    chunks.get(LocalizationStore.getChunkNumber(tail))
+                    .getFrames()[LocalizationStore.getIndex(tail)]);
+            table.addValue("Length", first[t + 1] - first[t]);
+            if (!Double.isNaN(slope)) {
+                table.addValue("D (um^2/s)", slope / 4.0);
+            }
+        }
+        
+        table.show("Tracks");
+        curves.show("Track MSD");
+    }
+}
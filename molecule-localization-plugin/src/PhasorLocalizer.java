@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+
+import java.awt.Font;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+
+/**
+ * Localizes a particle from the phase of the first Fourier coefficients of
+ * the window around it.  A particle at position x0 in a window of N pixels
+ * shifts the phase of the first coefficient by 2*pi*x0/N, so the position
+ * follows directly and no iterations are needed.  The constant background
+ * does not contribute to the first coefficient.
+ *
+ * <p>This is much faster than the maximum likelihood estimator but less
+ * precise; it is meant for quick looks at the data.
+ */
+public class PhasorLocalizer
+implements ImageProcess, SettingsDialog, DebugStats {
+
+    private static final int DEFAULT_RADIUS = 3;
+
+    private static final String RADIUS =
+            "Localize_Particles.PhasorLocalizer.radius";
+
+    private int radius;
+
+    // the first Fourier basis for the window size
+    private double[] cosine = new double[0];
+    private double[] sine = new double[0];
+
+    // debug counters
+    private int totalAttempts;
+    private int totalPassed;
+    private double photonSum;
+
+    @Override
+    public final boolean runProcess(final ImageContext context,
+                                    final FitRecord record) {
+
+        final int size = 2 * radius + 1;
+        final int left = record.getCandidateX() - radius;
+        final int top = record.getCandidateY() - radius;
+
+        // ensure that the window does not overlap the border of the image
+        if (left < 0
+                || left + size > context.getWidth()
+                || top < 0
+                || top + size > context.getHeight()) {
+            return false;
+        }
+
+        // the window in photons
+        final double[] pixels = record.extract(context, radius).getPixels();
+
+        double realX = 0;
+        double imagX = 0;
+        double realY = 0;
+        double imagY = 0;
+        double total = 0;
+        double border = 0;
+
+        // accumulate the first Fourier coefficients of both projections
+        for (int y = 0; y < size; y++) {
+            double row = 0;
+
+            for (int x = 0; x < size; x++) {
+                final double S = pixels[y * size + x];
+                realX += S * cosine[x];
+                imagX += S * sine[x];
+                row += S;
+            }
+
+            realY += row * cosine[y];
+            imagY += row * sine[y];
+            total += row;
+
+            // sum the pixels along the edge of the window
+            if (y == 0 || y == size - 1) {
+                border += row;
+            } else {
+                border += pixels[y * size] + pixels[y * size + size - 1];
+            }
+        }
+
+        synchronized (this) {
+            totalAttempts++;
+        }
+
+        // the phase gives the position within the window
+        final double posX = findPosition(realX, imagX, size);
+        final double posY = findPosition(realY, imagY, size);
+
+        if (Double.isNaN(posX) || Double.isNaN(posY)) {
+            return false;
+        }
+
+        // the edge of the window estimates the background
+        final double background = border / (4 * (size - 1));
+        final double photons = total - background * size * size;
+
+        if (photons <= 0) {
+            return false;
+        }
+
+        synchronized (this) {
+            totalPassed++;
+            photonSum += photons;
+        }
+
+        record.setWindow(top, top + size - 1, left, left + size - 1);
+
+        // pixel centers are at half-integer coordinates
+        record.setPosition(posX + left + 0.5, posY + top + 0.5);
+
+        record.setPhotonCount(photons);
+        record.setBackgroundLevel(background);
+        record.setPrecision(Double.NaN);
+
+        return true;
+    }
+
+    // converts the phase of a Fourier coefficient to a pixel index
+    private static double findPosition(final double real,
+                                       final double imaginary,
+                                       final int size) {
+
+        double phase = Math.atan2(imaginary, real);
+        if (phase < 0) {
+            phase += 2.0 * Math.PI;
+        }
+
+        return phase * size / (2.0 * Math.PI);
+    }
+
+    /**
+     * @return the radius of the window around a candidate (pixels)
+     */
+    public final int getRadius() {
+        return radius;
+    }
+
+    @Override
+    public final void displaySettings(final GenericDialog dialog,
+                                      final Font header) {
+        dialog.addMessage("Phasor Localizer", header);
+        dialog.addNumericField("Phasor Window Radius",
+                Prefs.get(RADIUS, DEFAULT_RADIUS), 0, 6, "pixels");
+    }
+
+    @Override
+    public final void saveSettings(final GenericDialog dialog) {
+        radius = Math.max(1, (int) dialog.getNextNumber());
+
+        IJ.log("PhasorLocalizer Settings: ");
+        IJ.log("  Window Radius: " + radius);
+
+        Prefs.set(RADIUS, radius);
+
+        // tabulate the first Fourier basis for the window size
+        final int size = 2 * radius + 1;
+        cosine = new double[size];
+        sine = new double[size];
+
+        for (int n = 0; n < size; n++) {
+            cosine[n] = Math.cos(2.0 * Math.PI * n / size);
+            sine[n] = Math.sin(2.0 * Math.PI * n / size);
+        }
+    }
+
+    @Override
+    public final void resetCounters() {
+        synchronized (this) {
+            totalAttempts = 0;
+            totalPassed = 0;
+            photonSum = 0;
+        }
+    }
+
+    @Override
+    public final void logCounters() {
+        synchronized (this) {
+            IJ.log("Phasor Localizer Stats: ");
+            IJ.log("  Pass Rate: " + (100.0 * totalPassed / totalAttempts)
+                    + "%");
+            IJ.log("  Average Photon Count: " + (photonSum / totalPassed));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+
+import java.awt.Font;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.process.ImageProcessor;
+
+/**
+ * Converts each image to photon counts once, before anything else looks at
+ * it.  By default the brightest pixel of an image is taken to hold the full
+ * photon scale.  For sCMOS cameras, the offset and gain of every pixel can be
+ * given as calibration images instead, along with the read noise variance.
+ *
+ * <p>The offset is in counts, the gain in counts per photon and the variance
+ * in counts squared.  Calibration images must have the size of the stack.
+ */
+public class PhotonCalibration implements SettingsDialog {
+    
+    // the names of the calibration methods
+    private static final String[] METHODS = {
+        "Full Photon Scale",
+        "sCMOS Maps"
+    };
+    
+    private static final String METHOD = 
+            "Localize_Particles.PhotonCalibration.method";
+    
+    private static final String OFFSET_MAP = 
+            "Localize_Particles.PhotonCalibration.offset_map";
+    
+    private static final String GAIN_MAP = 
+            "Localize_Particles.PhotonCalibration.gain_map";
+    
+    private static final String VARIANCE_MAP = 
+            "Localize_Particles.PhotonCalibration.variance_map";
+    
+    private boolean useMaps;
+    private String offsetPath;
+    private String gainPath;
+    private String variancePath;
+    
+    // per pixel calibration (row by row); null unless maps are used
+    private float[] offset;
+    private float[] inverseGain;
+    private float[] variance;
+    
+    @Override
+    public final void displaySettings(final GenericDialog dialog, 
+                                      final Font header) {
+        dialog.addMessage("Photon Calibration", header);
+        dialog.addChoice("Camera Calibration", METHODS, 
+                Prefs.get(METHOD, METHODS[0]));
+        dialog.addStringField("Offset Map", Prefs.get(OFFSET_MAP, ""), 24);
+        dialog.addStringField("Gain Map", Prefs.get(GAIN_MAP, ""), 24);
+        dialog.addStringField("Variance Map", Prefs.get(VARIANCE_MAP, ""), 24);
+    }
+    
+    @Override
+    public final void saveSettings(final GenericDialog dialog) {
+        final String method = dialog.getNextChoice();
+        offsetPath = dialog.getNextString().trim();
+        gainPath = dialog.getNextString().trim();
+        variancePath = dialog.getNextString().trim();
+        
+        useMaps = method.equals(METHODS[1]);
+        
+        IJ.log("PhotonCalibration Settings: ");
+        IJ.log("  Method: " + method);
+        if (useMaps) {
+            IJ.log("  Offset Map: " + offsetPath);
+            IJ.log("  Gain Map: " + gainPath);
+            IJ.log("  Variance Map: " + variancePath);
+        }
+        
+        Prefs.set(METHOD, method);
+        Prefs.set(OFFSET_MAP, offsetPath);
+        Prefs.set(GAIN_MAP, gainPath);
+        Prefs.set(VARIANCE_MAP, variancePath);
+    }
+    
+    /**
+     * Loads the calibration images if they are used.  Errors are shown to 
+     * the user.
+     * @param width the width of the images to calibrate
+     * @param height the height of the images to calibrate
+     * @return false if a calibration image could not be used
+     */
+    public final boolean loadMaps(final int width, final int height) {
+        offset = null;
+        inverseGain = null;
+        variance = null;
+        
+        if (!useMaps) {
+            return true;
+        }
+        
+        offset = readMap("offset", offsetPath, width, height);
+        inverseGain = readMap("gain", gainPath, width, height);
+        
+        if (offset == null || inverseGain == null) {
+            return false;
+        }
+        
+        // the variance is optional
+        if (variancePath.length() > 0) {
+            variance = readMap("variance", variancePath, width, height);
+            if (variance == null) {
+                return false;
+            }
+        }
+        
+        for (int i = 0; i < inverseGain.length; i++) {
+            if (!(inverseGain[i] > 0)) {
+                IJ.error("The gain map must be positive everywhere.");
+                return false;
+            }
+            
+            inverseGain[i] = 1.0f / inverseGain[i];
+            
+            // convert the read noise to photons squared
+            if (variance != null) {
+                variance[i] *= inverseGain[i] * inverseGain[i];
+            }
+        }
+        
+        return true;
+    }
+    
+    // reads a calibration image; null (after telling the user) if unusable
+    private static float[] readMap(final String name,
+                                   final String path,
+                                   final int width,
+                                   final int height) {
+        
+        final ImagePlus imp = path.length() > 0 ? IJ.openImage(path) : null;
+        if (imp == null) {
+            IJ.error("Could not open the " + name + " map: " + path);
+            return null;
+        }
+        
+        final ImageProcessor map = imp.getProcessor();
+        if (map.getWidth() != width || map.getHeight() != height) {
+            IJ.error("The " + name + " map is " + map.getWidth() + "x" 
+                    + map.getHeight() + " but the images are " + width 
+                    + "x" + height + ".");
+            return null;
+        }
+        
+        final float[] values = new float[width * height];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = map.getf(i);
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Converts an image to photon counts.
+     * @param image the image to convert
+     * @param photonScale the photons of the brightest pixel (only used 
+     * without calibration images)
+     * @param photons receives the photon counts, row by row
+     */
+    public final void calibrate(final ImageProcessor image,
+                                final double photonScale,
+                                final float[] photons) {
+        
+        final int size = image.getWidth() * image.getHeight();
+        
+        if (useMaps) {
+            for (int i = 0; i < size; i++) {
+                photons[i] = (image.getf(i) - offset[i]) * inverseGain[i];
+            }
+        } else {
+            final double scale = photonScale / image.getMax();
+            
+            for (int i = 0; i < size; i++) {
+                photons[i] = (float) (image.getf(i) * scale);
+            }
+        }
+    }
+    
+    /**
+     * Tells whether the photon counts depend on the photon scale, which is
+     * only the case without calibration images.
+     * @return true if the photon counts are proportional to the photon scale
+     */
+    public final boolean isScaled() {
+        return !useMaps;
+    }
+    
+    /**
+     * Describes how images are converted, so that results derived from the
+     * photon counts can tell whether they were made the same way.
+     * @return the method along with the offset and gain maps if used
+     */
+    public final String getDescription() {
+        return useMaps 
+                ? METHODS[1] + ": " + offsetPath + "; " + gainPath 
+                : METHODS[0];
+    }
+    
+    /**
+     * Retrieves the read noise variance of every pixel.
+     * @return the variance in photons squared (row by row); null if unknown
+     */
+    public final float[] getVariance() {
+        return variance;
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+/**
+ * A process run on all of the localizations once the stack has been 
+ * searched, such as a correction or an analysis.  The processes are run in
+ * order, each on the localizations left by the one before.
+ */
+public interface PostProcess {
+    
+    /**
+     * Runs the process on the localizations.
+     * @param locator the locator that found the localizations
+     * @param store the localizations found so far
+     * @return the localizations for the processes that follow; either the 
+     * given store, possibly changed in place, or a new one
+     */
+    LocalizationStore runPostProcess(AbstractParticleLocator locator, 
+            LocalizationStore store);
+}
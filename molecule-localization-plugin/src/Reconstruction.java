@@ -19,119 +19,143 @@
  * This plug-in was developed with support from California State University 
  * Program for Education and Research in Biotechnology (CSUPERB).
  */
-
-import java.util.LinkedList;
+import java.io.IOException;
 import java.util.List;
 
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
 /**
- * Reconstructs an image based on the localizations found.
+ * Reconstructs an image based on the localizations found.  The image is 
+ * rendered one row of tiles at a time into a {@link ReconstructionPyramid},
+ * so the heap never holds more than a row of tiles of each level, however 
+ * large the magnified image is.
  */
 public class Reconstruction {
 
-    private final List<double[]> points = new LinkedList<double[]>();
+    private static final int TILE_SIZE = ReconstructionPyramid.TILE_SIZE;
+    
+    private final LocalizationStore points;
     
     /**
-     * Adds the specified coordinates to the list of particles to render.
-     * @param x the x-coordinate of the localization
-     * @param y the y-coordinate of the localization
+     * Creates a reconstruction of the localizations in a store.
+     * @param store the localizations to render
      */
-    public final void add(final double x, final double y) {
-        synchronized (this) {
-            points.add(new double[] {x, y});
-        }
+    public Reconstruction(final LocalizationStore store) {
+        points = store;
     }
     
     /**
-     * Renders the image based on the particles added to the reconstruction.
-     * @param srcTop the top of the area to reconstruct
-     * @param srcLeft the left of the area to reconstruct
-     * @param srcWidth the width of the area to reconstruct
-     * @param srcHeight the height of the area to reconstruct
-     * @param dstWidth the width of the reconstruction
-     * @param dstHeight the height of the reconstruction
-     * @param dstScale the value scale to use for the resulting data
-     * @param scalebarWidth The width of the scale bar in source pixels
-     * @return the reconstructed image
+     * Renders the localizations into an empty pyramid and completes it.  The
+     * localizations are first sorted by the row of tiles they fall into, so
+     * that each row is rendered from its own localizations alone.
+     * @param pyramid the pyramid to fill; level 0 covers the image at the 
+     * given magnification
+     * @param magnification the pixels of level 0 per image pixel
+     * @throws IOException if the pyramid cannot be written
      */
-    public final int[][] reconstruct(final double srcTop, 
-                                     final double srcLeft, 
-                                     final double srcWidth, 
-                                     final double srcHeight, 
-                                     final int dstWidth, 
-                                     final int dstHeight,
-                                     final int dstScale,
-                                     final double scalebarWidth) {
+    public final void render(final ReconstructionPyramid pyramid,
+                             final double magnification) throws IOException {
         
-        final int[][] image = zeros(new int[dstWidth][dstHeight]);
-        
-        int max = 0;
-        for (double[] point : points) {
-            if (point == null) {
-                continue;
-            }
-            final int x = (int) ((point[0] - srcLeft) / srcWidth * dstWidth);
-            final int y = (int) ((point[1] - srcTop) / srcHeight * dstHeight);
-            
-            // skip point if out of view
-            if (x < 0 || y < 0 || x >= dstWidth || y >= dstHeight) {
-                continue;
-            }
-            
-            // accumulate the point
-            image[x][y] += 1;
-            
-            // update maximum
-            if (image[x][y] > max) {
-                max = image[x][y];
-            }
-            
-        }
+        final List<LocalizationStore.Chunk> chunks = points.getChunks();
+        final int width = pyramid.getWidth(0);
+        final int height = pyramid.getHeight(0);
+        final int rows = pyramid.getTilesY(0);
         
-        // return an image with a value range from 0.0 to 1.0
-        final int[][] temp = div(mul(image, dstScale), max);
+        // sort references to the localizations by their row of tiles,
+        // leaving out the ones outside of the image
+        final int[] start = new int[rows + 1];
+        final int[] sorted = LocalizationStore.sortByKey(chunks, rows,
+                new LocalizationStore.Key() {
+                    @Override
+                    public int getKey(final LocalizationStore.Chunk chunk, 
+                                      final int index) {
+                        final int x = 
+                                (int) (chunk.getX()[index] * magnification);
+                        final int y = 
+                                (int) (chunk.getY()[index] * magnification);
+                        
+                        if (x >= 0 && y >= 0 && x < width && y < height) {
+                            return y / TILE_SIZE;
+                        }
+                        return -1;
+                    }
+                }, start);
         
-        // draw scale bar
-        final int width = (int) Math.round(scalebarWidth * dstWidth / srcWidth);
-        for (int x = 48; x < 48 + width; x++) {
-            for (int y = dstHeight - 64; y < dstHeight - 48; y++) {
-                if (x < dstWidth) {
-                    temp[x][y] = dstScale - 100;
+        // render the rows of level 0; only the tiles that are hit are made
+        for (int row = 0; row < rows; row++) {
+            final int[][] tiles = new int[pyramid.getTilesX(0)][];
+            
+            for (int i = start[row]; i < start[row + 1]; i++) {
+                final LocalizationStore.Chunk chunk = 
+                        chunks.get(LocalizationStore.getChunkNumber(sorted[i]));
+                final int k = LocalizationStore.getIndex(sorted[i]);
+                
+                final int x = (int) (chunk.getX()[k] * magnification);
+                final int y = (int) (chunk.getY()[k] * magnification) 
+                        - row * TILE_SIZE;
+                
+                final int column = x / TILE_SIZE;
+                if (tiles[column] == null) {
+                    tiles[column] = new int[TILE_SIZE * TILE_SIZE];
                 }
+                
+                tiles[column][y * TILE_SIZE + x - column * TILE_SIZE]++;
             }
+            
+            pyramid.writeRow(row, tiles);
         }
         
-        return temp;
+        pyramid.finish();
     }
     
-    // returns a matrix filled in with zeros.
-    private static int[][] zeros(final int[][] matrix) {
-        for (int x = 0; x < matrix.length; x++) {
-            for (int y = 0; y < matrix[x].length; y++) {
-                matrix[x][y] = 0;
-            }
+    /**
+     * Reads the finest level of a pyramid that fits a given size, scaled to 
+     * a 16-bit image with a scale bar in its lower left corner.
+     * @param pyramid a complete pyramid
+     * @param maxSize the largest width or height of the overview
+     * @param dstScale the value of the largest count
+     * @param scalebarWidth the width of the scale bar in pixels of level 0
+     * @return the overview
+     * @throws IOException if the pyramid cannot be read
+     */
+    public static ImageProcessor overview(final ReconstructionPyramid pyramid,
+                                          final int maxSize,
+                                          final int dstScale,
+                                          final double scalebarWidth) 
+                                          throws IOException {
+        
+        int level = 0;
+        while (level + 1 < pyramid.getLevels() 
+                && Math.max(pyramid.getWidth(level), 
+                        pyramid.getHeight(level)) > maxSize) {
+            level++;
         }
-        return matrix;
-    }
-    
-    // returns the product between a matrix and a scalar.
-    private static int[][] mul(final int[][] matrix, 
-                               final int scale) {
-        for (int x = 0; x < matrix.length; x++) {
-            for (int y = 0; y < matrix[x].length; y++) {
-                matrix[x][y] *= scale;
-            }
+        
+        final int dstWidth = pyramid.getWidth(level);
+        final int dstHeight = pyramid.getHeight(level);
+        final int max = Math.max(pyramid.getMaximum(level), 1);
+        
+        final FloatProcessor counts = 
+                pyramid.readRegion(level, 0, 0, dstWidth, dstHeight);
+        final float[] values = (float[]) counts.getPixels();
+        
+        // scale the counts so that the largest is the full scale
+        final short[] pixels = new short[dstWidth * dstHeight];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short) ((long) values[i] * dstScale / max);
         }
-        return matrix;
-    }
-    
-    // divides the matrix elements by a scalar.
-    private static int[][] div(final int[][] matrix, 
-                               final int denominator) {
-        for (int x = 0; x < matrix.length; x++) {
-            for (int y = 0; y < matrix[x].length; y++) {
-                matrix[x][y] /= denominator;
+        
+        // draw scale bar
+        final int width = (int) Math.round(scalebarWidth / (1 << level));
+        for (int x = 48; x < 48 + width && x < dstWidth; x++) {
+            for (int y = Math.max(dstHeight - 64, 0); y < dstHeight - 48; 
+                    y++) {
+                pixels[y * dstWidth + x] = (short) (dstScale - 100);
             }
         }
-        return matrix;
+        
+        return new ShortProcessor(dstWidth, dstHeight, pixels, null);
     }
 }
@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+import java.awt.Font;
+import java.util.List;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+
+/**
+ * Renders a movie of reconstructions over a sliding window of frames, such
+ * as frames 1-1000, 101-1100, and so on.  The localizations are sorted once
+ * into blocks of frames as long as the greatest common divisor of the 
+ * window and the step, so every window is a run of whole blocks.  The 
+ * counts of one window are turned into those of the next by adding the 
+ * blocks that come into the window and subtracting the ones that leave it,
+ * so each movie frame costs as much as the localizations in a step, however
+ * long the window is.
+ */
+public class ReconstructionMovie implements SettingsDialog {
+    
+    private static final int WINDOW_DEF = 1000;
+    private static final int STEP_DEF = 100;
+    private static final double MAGNIFICATION_DEF = 4.0;
+    
+    private static final String ENABLED = 
+            "Localize_Particles.ReconstructionMovie.enabled";
+    
+    private static final String WINDOW = 
+            "Localize_Particles.ReconstructionMovie.window";
+    
+    private static final String STEP = 
+            "Localize_Particles.ReconstructionMovie.step";
+    
+    private static final String MAGNIFICATION = 
+            "Localize_Particles.ReconstructionMovie.magnification";
+    
+    private boolean enabled;
+    private int window;                     // frames per movie frame
+    private int step;                       // frames between movie frames
+    private double magnification;
+    
+    @Override
+    public final void displaySettings(final GenericDialog dialog, 
+                                      final Font header) {
+        dialog.addMessage("Reconstruction Movie", header);
+        dialog.addCheckbox("Render Movie", Prefs.get(ENABLED, false));
+        dialog.addNumericField("Movie Window", 
+                Prefs.get(WINDOW, WINDOW_DEF), 0, 6, "frames");
+        dialog.addNumericField("Movie Step", 
+                Prefs.get(STEP, STEP_DEF), 0, 6, "frames");
+        dialog.addNumericField("Movie Magnification", 
+                Prefs.get(MAGNIFICATION, MAGNIFICATION_DEF), 1, 6, "times");
+    }
+    
+    @Override
+    public final void saveSettings(final GenericDialog dialog) {
+        enabled = dialog.getNextBoolean();
+        window = Math.max(1, (int) dialog.getNextNumber());
+        step = Math.max(1, (int) dialog.getNextNumber());
+        magnification = dialog.getNextNumber();
+        
+        IJ.log("ReconstructionMovie Settings: ");
+        IJ.log("  Enabled: " + (enabled ? "True" : "False"));
+        IJ.log("  Window: " + window + " frames");
+        IJ.log("  Step: " + step + " frames");
+        IJ.log("  Magnification: " + magnification);
+        
+        Prefs.set(ENABLED, enabled);
+        Prefs.set(WINDOW, window);
+        Prefs.set(STEP, step);
+        Prefs.set(MAGNIFICATION, magnification);
+    }
+    
+    /**
+     * @return true if a movie was asked for
+     */
+    public final boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Renders the movie.  If the stack is shorter than the window, the 
+     * movie has a single frame covering the whole stack.
+     * @param store the localizations to render
+     * @param frames the number of frames in the stack
+     * @param imageWidth the width of the images searched
+     * @param imageHeight the height of the images searched
+     * @return a stack with one reconstruction per window position
+     */
+    public final ImageStack render(final LocalizationStore store,
+                                   final int frames,
+                                   final int imageWidth,
+                                   final int imageHeight) {
+        
+        final int width = Math.max(1, (int) (imageWidth * magnification));
+        final int height = Math.max(1, (int) (imageHeight * magnification));
+        final int length = Math.min(window, frames);
+        
+        // every window starts and ends on a block boundary
+        final int block = gcd(length, step);
+        final int blocks = (frames + block - 1) / block;
+        
+        // sort references to the localizations in view by block
+        final List<LocalizationStore.Chunk> chunks = store.getChunks();
+        final int[] start = new int[blocks + 1];
+        final int[] sorted = LocalizationStore.sortByKey(chunks, blocks,
+                new LocalizationStore.Key() {
+                    @Override
+                    public int getKey(final LocalizationStore.Chunk chunk, 
+                                      final int index) {
+                        final int frame = chunk.getFrames()[index] - 1;
+                        
+                        if (findPixel(chunk, index, width, height) >= 0 
+                                && frame >= 0 && frame < frames) {
+                            return frame / block;
+                        }
+                        return -1;
+                    }
+                }, start);
+        
+        // the pixel hit by each localization, sorted by block
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = findPixel(
+                    chunks.get(LocalizationStore.getChunkNumber(sorted[i])), 
+                    LocalizationStore.getIndex(sorted[i]), width, height);
+        }
+        
+        // slide the window, adding and subtracting whole blocks
+        final ImageStack movie = new ImageStack(width, height);
+        final int[] counts = new int[width * height];
+        final int perWindow = length / block;
+        final int perStep = step / block;
+        int first = 0;                      // first block in the counts
+        int last = 0;                       // block after the counts
+        
+        for (int begin = 0; begin * block + length <= frames; 
+                begin += perStep) {
+            
+            final int end = begin + perWindow;
+            
+            // blocks that left the window, unless the step skips past them
+            for (int b = first; b < Math.min(begin, last); b++) {
+                for (int i = start[b]; i < start[b + 1]; i++) {
+                    counts[sorted[i]]--;
+                }
+            }
+            
+            // blocks that came into the window
+            for (int b = Math.max(begin, last); b < end; b++) {
+                for (int i = start[b]; i < start[b + 1]; i++) {
+                    counts[sorted[i]]++;
+                }
+            }
+            
+            first = begin;
+            last = end;
+            
+            final float[] pixels = new float[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                pixels[i] = counts[i];
+            }
+            
+            movie.addSlice("Frames " + (begin * block + 1) + "-" 
+                    + (end * block), pixels);
+            
+            IJ.showStatus("Rendering movie: frame " + movie.getSize());
+        }
+        
+        return movie;
+    }
+    
+    // the rendered pixel of a localization; -1 if out of view
+    private int findPixel(final LocalizationStore.Chunk chunk,
+                          final int k,
+                          final int width,
+                          final int height) {
+        final double x = chunk.getX()[k] * magnification;
+        final double y = chunk.getY()[k] * magnification;
+        
+        if (!(x >= 0 && y >= 0 && x < width && y < height)) {
+            return -1;
+        }
+        
+        return (int) y * width + (int) x;
+    }
+    
+    // the greatest common divisor of two positive numbers
+    private static int gcd(final int a, final int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+}
@@ -0,0 +1,480 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+import ij.process.FloatProcessor;
+
+/**
+ * A reconstruction kept on disk as a pyramid of square tiles.  Level 0 holds
+ * integer counts at full magnification, such as the localizations in each 
+ * pixel, and every further level halves the width and height by summing 2x2
+ * pixels, until the whole image fits into a single tile.  Empty tiles are 
+ * not stored, so a sparse reconstruction takes little space.
+ *
+ * <p>The file starts with a header and ends with an index giving the offset
+ * of every stored tile along with the largest count of each level.  A 
+ * pyramid is created, filled with {@link #writeRow}, completed with 
+ * {@link #finish()}, and can then be read like one that was opened; any 
+ * region of any level is read without loading the rest of the file.
+ * A pyramid is not thread-safe.
+ */
+public class ReconstructionPyramid {
+    
+    /** The width and height of a tile in pixels. */
+    public static final int TILE_SIZE = 256;
+    
+    // identifies a pyramid file
+    private static final int MAGIC = 0x50595230;
+    
+    // magic, width, height, tile size, levels, and the offset of the index
+    private static final int HEADER_SIZE = 5 * 4 + 8;
+    
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+    
+    private final File file;
+    private final RandomAccessFile access;
+    private final FileChannel channel;
+    
+    private final int width;
+    private final int height;
+    private final int levels;
+    
+    // the file offset of every tile (0 if empty), and the largest count,
+    // per level
+    private final long[][] offsets;
+    private final int[] maximum;
+    
+    // the end of the tiles written so far; 0 once the pyramid is complete
+    private long end;
+    
+    // the row of tiles of every coarser level still being summed
+    private int[][][] pending;
+    
+    private final ByteBuffer buffer = ByteBuffer.allocate(TILE_BYTES);
+    
+    // sets up the levels of an image of the given size
+    private ReconstructionPyramid(final File file,
+                                  final RandomAccessFile access,
+                                  final int width,
+                                  final int height) {
+        this.file = file;
+        this.access = access;
+        this.channel = access.getChannel();
+        this.width = width;
+        this.height = height;
+        
+        int count = 1;
+        while (Math.max(levelSize(width, count - 1), 
+                levelSize(height, count - 1)) > TILE_SIZE) {
+            count++;
+        }
+        
+        levels = count;
+        offsets = new long[levels][];
+        maximum = new int[levels];
+        
+        for (int level = 0; level < levels; level++) {
+            offsets[level] = new long[getTilesX(level) * getTilesY(level)];
+        }
+    }
+    
+    /**
+     * Creates an empty pyramid, replacing the file if it exists.
+     * @param file the file to hold the pyramid
+     * @param width the width of level 0 in pixels
+     * @param height the height of level 0 in pixels
+     * @return the pyramid, ready for its tiles to be written
+     * @throws IOException if the file cannot be written
+     */
+    public static ReconstructionPyramid create(final File file, 
+                                               final int width, 
+                                               final int height) 
+                                               throws IOException {
+        
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Empty reconstruction.");
+        }
+        
+        final RandomAccessFile access = new RandomAccessFile(file, "rw");
+        access.setLength(0);
+        
+        final ReconstructionPyramid pyramid = 
+                new ReconstructionPyramid(file, access, width, height);
+        pyramid.end = HEADER_SIZE;
+        pyramid.pending = new int[pyramid.levels][][];
+        for (int level = 1; level < pyramid.levels; level++) {
+            pyramid.pending[level] = new int[pyramid.getTilesX(level)][];
+        }
+        
+        return pyramid;
+    }
+    
+    /**
+     * Opens a complete pyramid for reading.
+     * @param file the file holding the pyramid
+     * @return the pyramid
+     * @throws IOException if the file cannot be read or is not a pyramid
+     */
+    public static ReconstructionPyramid open(final File file) 
+            throws IOException {
+        
+        final RandomAccessFile access = new RandomAccessFile(file, "r");
+        
+        try {
+            if (access.readInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a pyramid");
+            }
+            
+            final int width = access.readInt();
+            final int height = access.readInt();
+            
+            if (width <= 0 || height <= 0 
+                    || access.readInt() != TILE_SIZE) {
+                throw new IOException(file.getName() + " is damaged");
+            }
+            
+            final ReconstructionPyramid pyramid = 
+                    new ReconstructionPyramid(file, access, width, height);
+            
+            if (access.readInt() != pyramid.levels) {
+                throw new IOException(file.getName() + " is damaged");
+            }
+            
+            // read the index
+            access.seek(access.readLong());
+            
+            for (int level = 0; level < pyramid.levels; level++) {
+                pyramid.maximum[level] = access.readInt();
+                
+                final long[] index = pyramid.offsets[level];
+                for (int i = 0; i < index.length; i++) {
+                    index[i] = access.readLong();
+                }
+            }
+            
+            return pyramid;
+        } catch (IOException e) {
+            access.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Stores a tile.  Tiles that are never written are read as zeros.
+     * @param level the level of the tile
+     * @param tileX the column of the tile
+     * @param tileY the row of the tile
+     * @param counts the counts of the tile, row by row, 
+     * {@link #TILE_SIZE} by {@link #TILE_SIZE}
+     * @throws IOException if the tile cannot be written
+     */
+    public final void writeTile(final int level, 
+                                final int tileX, 
+                                final int tileY, 
+                                final int[] counts) throws IOException {
+        
+        if (end == 0) {
+            throw new IllegalStateException("The pyramid is complete.");
+        }
+        
+        final IntBuffer values = buffer.asIntBuffer();
+        int max = maximum[level];
+        
+        for (int i = 0; i < counts.length; i++) {
+            max = Math.max(max, counts[i]);
+        }
+        
+        values.put(counts, 0, TILE_SIZE * TILE_SIZE);
+        buffer.clear();
+        
+        final long offset = end;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        buffer.clear();
+        
+        end += TILE_BYTES;
+        maximum[level] = max;
+        offsets[level][tileY * getTilesX(level) + tileX] = offset;
+    }
+    
+    /**
+     * Stores a row of tiles of level 0 and sums it into the coarser levels,
+     * whose rows are stored once both of their halves are in.  The rows are
+     * written from the top down, each once.
+     * @param row the row of the tiles
+     * @param tiles the counts of each tile of the row, as for 
+     * {@link #writeTile}; null for a tile without any
+     * @throws IOException if a tile cannot be written
+     */
+    public final void writeRow(final int row, final int[][] tiles) 
+            throws IOException {
+        completeRow(0, row, tiles);
+    }
+    
+    /**
+     * Writes the header and the index, after which the tiles can be read.
+     * @throws IOException if the file cannot be written
+     */
+    public final void finish() throws IOException {
+        
+        int tiles = 0;
+        for (int level = 0; level < levels; level++) {
+            tiles += offsets[level].length;
+        }
+        
+        final ByteBuffer index = 
+                ByteBuffer.allocate(4 * levels + 8 * tiles);
+        
+        for (int level = 0; level < levels; level++) {
+            index.putInt(maximum[level]);
+            final LongBuffer longs = index.asLongBuffer();
+            longs.put(offsets[level]);
+            index.position(index.position() + 8 * offsets[level].length);
+        }
+        
+        index.flip();
+        while (index.hasRemaining()) {
+            channel.write(index, end + index.position());
+        }
+        
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(width).putInt(height)
+                .putInt(TILE_SIZE).putInt(levels).putLong(end);
+        
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        
+        end = 0;
+    }
+    
+    /**
+     * Reads a tile.
+     * @param level the level of the tile
+     * @param tileX the column of the tile
+     * @param tileY the row of the tile
+     * @return the counts of the tile, row by row; null if it is empty
+     * @throws IOException if the tile cannot be read
+     */
+    public final int[] readTile(final int level, 
+                                final int tileX, 
+                                final int tileY) throws IOException {
+        
+        final long offset = offsets[level][tileY * getTilesX(level) + tileX];
+        if (offset == 0) {
+            return null;
+        }
+        
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException(file.getName() + " is truncated");
+            }
+        }
+        buffer.clear();
+        
+        final int[] counts = new int[TILE_SIZE * TILE_SIZE];
+        buffer.asIntBuffer().get(counts);
+        
+        return counts;
+    }
+    
+    /**
+     * Reads a region of a level, touching only the tiles it overlaps.
+     * @param level the level to read
+     * @param left the left of the region in pixels of the level
+     * @param top the top of the region in pixels of the level
+     * @param regionWidth the width of the region
+     * @param regionHeight the height of the region
+     * @return the counts of the region; zero outside of the image
+     * @throws IOException if a tile cannot be read
+     */
+    public final FloatProcessor readRegion(final int level,
+                                           final int left,
+                                           final int top,
+                                           final int regionWidth,
+                                           final int regionHeight) 
+                                           throws IOException {
+        
+        final float[] pixels = new float[regionWidth * regionHeight];
+        
+        final int right = Math.min(left + regionWidth, getWidth(level));
+        final int bottom = Math.min(top + regionHeight, getHeight(level));
+        
+        for (int ty = Math.max(top, 0) / TILE_SIZE; 
+                ty * TILE_SIZE < bottom; ty++) {
+            for (int tx = Math.max(left, 0) / TILE_SIZE; 
+                    tx * TILE_SIZE < right; tx++) {
+                
+                final int[] counts = readTile(level, tx, ty);
+                if (counts == null) {
+                    continue;
+                }
+                
+                // copy the part of the tile inside the region
+                final int x0 = Math.max(tx * TILE_SIZE, left);
+                final int x1 = Math.min((tx + 1) * TILE_SIZE, right);
+                final int y0 = Math.max(ty * TILE_SIZE, top);
+                final int y1 = Math.min((ty + 1) * TILE_SIZE, bottom);
+                
+                for (int y = y0; y < y1; y++) {
+                    final int src = (y - ty * TILE_SIZE) * TILE_SIZE 
+                            - tx * TILE_SIZE;
+                    final int dst = (y - top) * regionWidth - left;
+                    
+                    for (int x = x0; x < x1; x++) {
+                        pixels[dst + x] = counts[src + x];
+                    }
+                }
+            }
+        }
+        
+        return new FloatProcessor(regionWidth, regionHeight, pixels);
+    }
+    
+    /**
+     * Closes the file.  The pyramid cannot be used afterwards.
+     * @throws IOException if the file cannot be closed
+     */
+    public final void close() throws IOException {
+        access.close();
+    }
+    
+    /**
+     * @return the file holding the pyramid
+     */
+    public final File getFile() {
+        return file;
+    }
+    
+    /**
+     * @return the number of levels, level 0 being the full magnification
+     */
+    public final int getLevels() {
+        return levels;
+    }
+    
+    /**
+     * @param level a level of the pyramid
+     * @return the width of the level in pixels
+     */
+    public final int getWidth(final int level) {
+        return levelSize(width, level);
+    }
+    
+    /**
+     * @param level a level of the pyramid
+     * @return the height of the level in pixels
+     */
+    public final int getHeight(final int level) {
+        return levelSize(height, level);
+    }
+    
+    /**
+     * @param level a level of the pyramid
+     * @return the number of tile columns of the level
+     */
+    public final int getTilesX(final int level) {
+        return (getWidth(level) + TILE_SIZE - 1) / TILE_SIZE;
+    }
+    
+    /**
+     * @param level a level of the pyramid
+     * @return the number of tile rows of the level
+     */
+    public final int getTilesY(final int level) {
+        return (getHeight(level) + TILE_SIZE - 1) / TILE_SIZE;
+    }
+    
+    /**
+     * @param level a level of the pyramid
+     * @return the largest count of any pixel of the level
+     */
+    public final int getMaximum(final int level) {
+        return maximum[level];
+    }
+    
+    // writes a row of tiles and sums it into the next level, completing the
+    // row of that level once both of its halves are in
+    private void completeRow(final int level,
+                             final int row,
+                             final int[][] tiles) throws IOException {
+        
+        for (int column = 0; column < tiles.length; column++) {
+            if (tiles[column] != null) {
+                writeTile(level, column, row, tiles[column]);
+            }
+        }
+        
+        if (level + 1 == levels) {
+            return;
+        }
+        
+        final int[][] coarse = pending[level + 1];
+        final int half = TILE_SIZE / 2;
+        
+        for (int column = 0; column < tiles.length; column++) {
+            final int[] fine = tiles[column];
+            if (fine == null) {
+                continue;
+            }
+            
+            if (coarse[column / 2] == null) {
+                coarse[column / 2] = new int[TILE_SIZE * TILE_SIZE];
+            }
+            
+            // the quarter of the coarse tile covered by the fine one
+            final int[] sum = coarse[column / 2];
+            final int offset = (row % 2) * half * TILE_SIZE 
+                    + (column % 2) * half;
+            
+            for (int y = 0; y < half; y++) {
+                final int src = 2 * y * TILE_SIZE;
+                final int dst = offset + y * TILE_SIZE;
+                
+                for (int x = 0; x < half; x++) {
+                    sum[dst + x] = fine[src + 2 * x] + fine[src + 2 * x + 1]
+                            + fine[src + TILE_SIZE + 2 * x] 
+                            + fine[src + TILE_SIZE + 2 * x + 1];
+                }
+            }
+        }
+        
+        if (row % 2 == 1 || row + 1 == getTilesY(level)) {
+            pending[level + 1] = new int[coarse.length][];
+            completeRow(level + 1, row / 2, coarse);
+        }
+    }
+    
+    // the size of a level, rounding up so that no pixel is lost
+    private static int levelSize(final int size, final int level) {
+        return (int) (((long) size + (1L << level) - 1) >> level);
+    }
+}
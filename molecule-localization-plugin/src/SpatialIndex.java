@@ -0,0 +1,307 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+import java.util.List;
+
+/**
+ * A uniform grid over the localizations of a store, for finding the ones in
+ * a rectangle or within a radius without scanning the whole store.  Each 
+ * cell lists references to its localizations in one shared array.
+ *
+ * <p>The index is built on all processors and does not change afterwards;
+ * it must be rebuilt if the store is changed.  Queries are thread-safe.
+ * A reference packs the chunk of a localization and its index in the chunk,
+ * and is read with {@link #getX(int)} and {@link #getY(int)}.
+ */
+public class SpatialIndex {
+    
+    // the most cells along a side; smaller cells would only cost memory, 
+    // since the queries test the exact positions anyway
+    private static final int MAX_CELLS_ACROSS = 2048;
+    
+    // the most cell counts held by the building threads together
+    private static final int MAX_COUNTS = 1 << 24;
+    
+    private final LocalizationStore.Chunk[] chunks;
+    private final double cellSize;
+    private final int cellsX;
+    private final int cellsY;
+    
+    // the references of cell c are sorted[start[c]] to sorted[start[c+1]-1]
+    private final int[] start;
+    private final int[] sorted;
+    
+    /**
+     * Builds the index.  Localizations outside of the image are kept in the
+     * nearest cell along the border.
+     * @param store the localizations to index
+     * @param width the width of the image (pixels)
+     * @param height the height of the image (pixels)
+     * @param cellSize the width and height of a cell (pixels); it is 
+     * raised so that no side has more than 2048 cells
+     */
+    public SpatialIndex(final LocalizationStore store,
+                        final double width,
+                        final double height,
+                        final double cellSize) {
+        
+        final List<LocalizationStore.Chunk> list = store.getChunks();
+        chunks = list.toArray(new LocalizationStore.Chunk[list.size()]);
+        
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("The cell size must be "
+                    + "positive.");
+        }
+        
+        this.cellSize = Math.max(cellSize, 
+                Math.max(width, height) / MAX_CELLS_ACROSS);
+        cellsX = Math.max(1, Math.min(MAX_CELLS_ACROSS, 
+                (int) Math.ceil(width / this.cellSize)));
+        cellsY = Math.max(1, Math.min(MAX_CELLS_ACROSS, 
+                (int) Math.ceil(height / this.cellSize)));
+        
+        // fewer threads for large grids, as each counts every cell
+        final int cells = cellsX * cellsY;
+        final int threads = Math.max(1, Math.min(chunks.length, 
+                Math.min(ParallelRunner.getThreadCount(), 
+                        MAX_COUNTS / cells)));
+        
+        // each thread counts the cells of its own run of chunks
+        final int[][] counts = new int[threads][cells];
+        ParallelRunner.run("Index", threads, new ParallelRunner.Task() {
+            @Override
+            public void run(final int thread) {
+                final int[] count = counts[thread];
+                
+                for (int c = firstChunk(thread, threads); 
+                        c < firstChunk(thread + 1, threads); c++) {
+                    final LocalizationStore.Chunk chunk = chunks[c];
+                    
+                    for (int k = 0; k < chunk.size(); k++) {
+                        count[findCell(chunk.getX()[k], chunk.getY()[k])]++;
+                    }
+                }
+            }
+        });
+        
+        // turn the counts into the place each thread starts in each cell,
+        // so that the threads fill the cells in the order of the chunks
+        start = new int[cells + 1];
+        int total = 0;
+        
+        for (int cell = 0; cell < cells; cell++) {
+            start[cell] = total;
+            
+            for (int t = 0; t < threads; t++) {
+                final int count = counts[t][cell];
+                counts[t][cell] = total;
+                total += count;
+            }
+        }
+        start[cells] = total;
+        sorted = new int[total];
+        
+        ParallelRunner.run("Index", threads, new ParallelRunner.Task() {
+            @Override
+            public void run(final int thread) {
+                final int[] fill = counts[thread];
+                
+                for (int c = firstChunk(thread, threads); 
+                        c < firstChunk(thread + 1, threads); c++) {
+                    final LocalizationStore.Chunk chunk = chunks[c];
+                    
+                    for (int k = 0; k < chunk.size(); k++) {
+                        final int cell = 
+                                findCell(chunk.getX()[k], chunk.getY()[k]);
+                        sorted[fill[cell]++] = 
+                                LocalizationStore.getReference(c, k);
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * @return the number of localizations in the index
+     */
+    public final int size() {
+        return sorted.length;
+    }
+    
+    /**
+     * @param reference a reference found by a query
+     * @return the x-coordinate of the localization (pixels)
+     */
+    public final float getX(final int reference) {
+        return getChunk(reference).getX()[
+                LocalizationStore.getIndex(reference)];
+    }
+    
+    /**
+     * @param reference a reference found by a query
+     * @return the y-coordinate of the localization (pixels)
+     */
+    public final float getY(final int reference) {
+        return getChunk(reference).getY()[
+                LocalizationStore.getIndex(reference)];
+    }
+    
+    // the chunk holding the localization of a reference
+    private LocalizationStore.Chunk getChunk(final int reference) {
+        return chunks[LocalizationStore.getChunkNumber(reference)];
+    }
+    
+    /**
+     * Counts the localizations in a rectangle.
+     * @param left the left of the rectangle (pixels, inclusive)
+     * @param top the top of the rectangle (pixels, inclusive)
+     * @param right the right of the rectangle (pixels, exclusive)
+     * @param bottom the bottom of the rectangle (pixels, exclusive)
+     * @return the number of localizations
+     */
+    public final int countInRect(final double left, 
+                                 final double top,
+                                 final double right, 
+                                 final double bottom) {
+        return findInRect(left, top, right, bottom, null);
+    }
+    
+    /**
+     * Finds the localizations in a rectangle.  Cells lying wholly inside 
+     * the rectangle are taken without testing their localizations.
+     * @param left the left of the rectangle (pixels, inclusive)
+     * @param top the top of the rectangle (pixels, inclusive)
+     * @param right the right of the rectangle (pixels, exclusive)
+     * @param bottom the bottom of the rectangle (pixels, exclusive)
+     * @param found receives the references if not null; must be large 
+     * enough, which {@link #size()} always is
+     * @return the number of localizations found
+     */
+    public final int findInRect(final double left, 
+                                final double top,
+                                final double right, 
+                                final double bottom,
+                                final int[] found) {
+        
+        final int cx0 = clampX(left);
+        final int cx1 = clampX(right);
+        final int cy0 = clampY(top);
+        final int cy1 = clampY(bottom);
+        int count = 0;
+        
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                final int cell = cy * cellsX + cx;
+                final int from = start[cell];
+                final int to = start[cell + 1];
+                
+                // inner cells lie inside the rectangle
+                final boolean inside = cx > cx0 && cx < cx1 
+                        && cy > cy0 && cy < cy1;
+                
+                for (int i = from; i < to; i++) {
+                    final int reference = sorted[i];
+                    
+                    if (!inside) {
+                        final float x = getX(reference);
+                        final float y = getY(reference);
+                        
+                        if (!(x >= left && x < right 
+                                && y >= top && y < bottom)) {
+                            continue;
+                        }
+                    }
+                    
+                    if (found != null) {
+                        found[count] = reference;
+                    }
+                    count++;
+                }
+            }
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Finds the localizations within a distance of a point.
+     * @param x the x-coordinate of the point (pixels)
+     * @param y the y-coordinate of the point (pixels)
+     * @param radius the largest distance (pixels, inclusive)
+     * @param found receives the references if not null; must be large 
+     * enough, which {@link #size()} always is
+     * @return the number of localizations found
+     */
+    public final int findInRadius(final double x, 
+                                  final double y,
+                                  final double radius,
+                                  final int[] found) {
+        
+        final double radius2 = radius * radius;
+        int count = 0;
+        
+        for (int cy = clampY(y - radius); cy <= clampY(y + radius); cy++) {
+            for (int cx = clampX(x - radius); cx <= clampX(x + radius); 
+                    cx++) {
+                final int cell = cy * cellsX + cx;
+                final int from = start[cell];
+                final int to = start[cell + 1];
+                
+                for (int i = from; i < to; i++) {
+                    final int reference = sorted[i];
+                    final double dx = getX(reference) - x;
+                    final double dy = getY(reference) - y;
+                    
+                    if (dx * dx + dy * dy > radius2) {
+                        continue;
+                    }
+                    
+                    if (found != null) {
+                        found[count] = reference;
+                    }
+                    count++;
+                }
+            }
+        }
+        
+        return count;
+    }
+    
+    // the cell of a point, clamped to the grid
+    private int findCell(final double x, final double y) {
+        return clampY(y) * cellsX + clampX(x);
+    }
+    
+    private int clampX(final double x) {
+        return Math.max(0, Math.min((int) Math.floor(x / cellSize), 
+                cellsX - 1));
+    }
+    
+    private int clampY(final double y) {
+        return Math.max(0, Math.min((int) Math.floor(y / cellSize), 
+                cellsY - 1));
+    }
+    
+    // the first chunk of a thread's run of chunks
+    private int firstChunk(final int thread, final int threads) {
+        return (int) ((long) chunks.length * thread / threads);
+    }
+}
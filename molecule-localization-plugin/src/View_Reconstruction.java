@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2011 Shane Stahlheber
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Acknowledgments:
+ * This plug-in was developed with support from California State University 
+ * Program for Education and Research in Biotechnology (CSUPERB).
+ */
+import java.io.File;
+import java.io.IOException;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+/** 
+ * Shows a region of a reconstruction pyramid written by a locator, at any
+ * level of the pyramid.  Only the tiles overlapping the region are read.
+ */
+public class View_Reconstruction implements PlugIn {
+    
+    private static final String FILE = 
+            "Localize_Particles.View_Reconstruction.file";
+    
+    @Override
+    public final void run(final String args) {
+        final GenericDialog dialog = new GenericDialog("View Reconstruction");
+        dialog.addStringField("Pyramid File", Prefs.get(FILE, ""), 40);
+        dialog.addNumericField("Level", 0, 0, 6, "(0 is full magnification)");
+        dialog.addNumericField("Left", 0, 0, 6, "pixels");
+        dialog.addNumericField("Top", 0, 0, 6, "pixels");
+        dialog.addNumericField("Width", 2048, 0, 6, "pixels");
+        dialog.addNumericField("Height", 2048, 0, 6, "pixels");
+        
+        dialog.showDialog();
+        
+        if (dialog.wasCanceled()) {
+            return;
+        }
+        
+        final String path = dialog.getNextString().trim();
+        final int level = (int) dialog.getNextNumber();
+        final int left = (int) dialog.getNextNumber();
+        final int top = (int) dialog.getNextNumber();
+        final int width = (int) dialog.getNextNumber();
+        final int height = (int) dialog.getNextNumber();
+        
+        Prefs.set(FILE, path);
+        
+        try {
+            final ReconstructionPyramid pyramid = 
+                    ReconstructionPyramid.open(new File(path));
+            
+            try {
+                if (level < 0 || level >= pyramid.getLevels()
+                        || width <= 0 || height <= 0) {
+                    IJ.error("The pyramid has levels 0 to " 
+                            + (pyramid.getLevels() - 1) 
+                            + ", and the region must not be empty.");
+                    return;
+                }
+                
+                new ImagePlus("Reconstruction (level " + level + ")", 
+                        pyramid.readRegion(level, left, top, width, height))
+                        .show();
+            } finally {
+                pyramid.close();
+            }
+        } catch (IOException e) {
+            IJ.error("Could not read " + path + ": " + e.getMessage());
+        }
+    }
+}